@@ -0,0 +1,111 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * Insert cost when the table is nearly full, where kicking tags around
+ * dominates. {@code steadyLoad} replaces a random item with a new one at a
+ * fixed load factor, so every put lands in random buckets. {@code fill}
+ * inserts into an empty filter until the first failure and reports the load
+ * factor reached in per mille.
+ * <p>
+ * Run with
+ * {@code mvn -P dev,benchmark test-compile exec:exec -Djmh.args=HighLoadInsert}
+ * 
+ * @author Mark Gunlogson
+ *
+ */
+@Fork(1)
+public class HighLoadInsertBenchmark {
+	static final int ITEMS = 1 << 20;
+
+	@State(Scope.Thread)
+	public static class SteadyLoad {
+		@Param({ "0.9", "0.95" })
+		double loadFactor;
+
+		CuckooFilter<Integer> filter;
+		int[] items;
+		int nextItem;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), ITEMS).build();
+			long target = (long) (loadFactor * filter.getActualCapacity());
+			items = new int[(int) target];
+			for (nextItem = 0; nextItem < items.length; nextItem++) {
+				filter.put(nextItem);
+				items[nextItem] = nextItem;
+			}
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Load {
+		public long loadPerMille;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public boolean steadyLoad(SteadyLoad state) {
+		int pos = ThreadLocalRandom.current().nextInt(state.items.length);
+		state.filter.delete(state.items[pos]);
+		int item = state.nextItem++;
+		state.items[pos] = item;
+		return state.filter.put(item);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	// one iteration, JMH sums counters over iterations
+	@Measurement(iterations = 1)
+	public CuckooFilter<Integer> fill(Load load) {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), ITEMS).build();
+		int item = 0;
+		while (filter.put(item)) {
+			item++;
+		}
+		load.loadPerMille = Math.round(filter.getLoadFactor() * 1000);
+		return filter;
+	}
+
+}
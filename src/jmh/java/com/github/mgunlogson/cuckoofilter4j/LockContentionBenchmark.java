@@ -0,0 +1,127 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * Lock contention with 32 threads. {@code stripes} has every thread write
+ * lock its own stripe, so any slowdown of the plain layout over the padded
+ * one is false sharing between neighbouring locks. {@code filter} runs a
+ * lookup heavy mix on a whole filter.
+ * <p>
+ * False sharing only shows up when threads really run at the same time, so
+ * run it on a machine with several cores. On a single core both layouts
+ * score the same.
+ * <p>
+ * Run with
+ * {@code mvn -P dev,benchmark test-compile exec:exec -Djmh.args=LockContention}
+ * 
+ * @author Mark Gunlogson
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class LockContentionBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Stripes {
+		@Param({ "plain", "padded" })
+		String layout;
+
+		StampedLock[] locks;
+		final AtomicInteger nextStripe = new AtomicInteger();
+
+		@Setup(Level.Trial)
+		public void setup() {
+			locks = new StampedLock[64];
+			for (int i = 0; i < locks.length; i++) {
+				locks[i] = "padded".equals(layout) ? new SegmentedBucketLocker.PaddedStampedLock()
+						: new StampedLock();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Stripe {
+		StampedLock lock;
+
+		@Setup(Level.Trial)
+		public void setup(Stripes stripes) {
+			lock = stripes.locks[stripes.nextStripe.getAndIncrement() % stripes.locks.length];
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Filter {
+		static final int ITEMS = 1 << 20;
+
+		CuckooFilter<Integer> filter;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), ITEMS * 2).withExpectedConcurrency(32)
+					.build();
+			for (int i = 0; i < ITEMS; i++) {
+				filter.put(i);
+			}
+		}
+	}
+
+	@Benchmark
+	public long stripes(Stripe stripe) {
+		long stamp = stripe.lock.writeLock();
+		stripe.lock.unlockWrite(stamp);
+		return stamp;
+	}
+
+	@Benchmark
+	public boolean filter(Filter state) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int item = random.nextInt(Filter.ITEMS);
+		// one write in 16
+		if ((item & 15) == 0) {
+			state.filter.delete(item);
+			return state.filter.put(item);
+		}
+		return state.filter.mightContain(item);
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+/**
+ * Base for the tables that give each tag its own array element, so every
+ * read and write is a single aligned array access with no bit shifting. The
+ * bucket operations are shared, subclasses only pick the element type and
+ * read and write single slots. Slot {@code i} of bucket {@code b} is element
+ * {@code b * bucketSize + i}.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+abstract class ArrayFilterTable extends FilterTable {
+	private static final long serialVersionUID = -4306358810318616446L;
+
+	ArrayFilterTable(int bitsPerTag, long numBuckets, int bucketSize) {
+		super(bitsPerTag, numBuckets, bucketSize);
+	}
+
+	/**
+	 * Checks if the table fits in a single java array.
+	 */
+	static boolean canHold(long numBuckets, int bucketSize) {
+		return numBuckets <= ArrayUtil.MAX_ARRAY_LENGTH / bucketSize;
+	}
+
+	/**
+	 * Reads a slot, zero extended. Zero means the slot is empty.
+	 */
+	abstract long getSlot(int slotIndex);
+
+	/**
+	 * Writes the low {@code bitsPerTag} bits of the tag to a slot.
+	 */
+	abstract void setSlot(int slotIndex, long tag);
+
+	@Override
+	long readTag(long bucketIndex, int posInBucket) {
+		return getSlot(slotIndex(bucketIndex, posInBucket));
+	}
+
+	@Override
+	void writeTag(long bucketIndex, int posInBucket, long tag) {
+		setSlot(slotIndex(bucketIndex, posInBucket), tag);
+	}
+
+	@Override
+	boolean insertToBucket(long bucketIndex, long tag) {
+		int start = slotIndex(bucketIndex, 0);
+		for (int i = start; i < start + bucketSize; i++) {
+			if (getSlot(i) == 0) {
+				setSlot(i, tag);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	boolean findTag(long i1, long i2, long tag) {
+		int start1 = slotIndex(i1, 0);
+		int start2 = slotIndex(i2, 0);
+		// no short circuit so there's nothing to branch on until the end
+		boolean found = false;
+		for (int i = 0; i < bucketSize; i++) {
+			found |= (getSlot(start1 + i) == tag) | (getSlot(start2 + i) == tag);
+		}
+		return found;
+	}
+
+	@Override
+	boolean deleteFromBucket(long i1, long tag) {
+		int start = slotIndex(i1, 0);
+		for (int i = start; i < start + bucketSize; i++) {
+			if (getSlot(i) == tag) {
+				setSlot(i, 0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	int countTag(long i1, long i2, long tag) {
+		int start1 = slotIndex(i1, 0);
+		int start2 = slotIndex(i2, 0);
+		int tagCount = 0;
+		for (int i = 0; i < bucketSize; i++) {
+			tagCount += (getSlot(start1 + i) == tag ? 1 : 0) + (getSlot(start2 + i) == tag ? 1 : 0);
+		}
+		return tagCount;
+	}
+
+	@Override
+	int countEmpty(long bucketIndex) {
+		int start = slotIndex(bucketIndex, 0);
+		int empty = 0;
+		for (int i = start; i < start + bucketSize; i++) {
+			empty += getSlot(i) == 0 ? 1 : 0;
+		}
+		return empty;
+	}
+
+	private int slotIndex(long bucketIndex, int posInBucket) {
+		return (int) (bucketIndex * bucketSize) + posInBucket;
+	}
+
+	@Override
+	long getStorageSize() {
+		return numBuckets * bucketSize * bitsPerTag;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.io.Serializable;
+
+/**
+ * Fixed length bit storage used by the bit packed tables. The tables only
+ * ever touch the bits through the range methods, so where the bits actually
+ * live is up to the implementation: {@code LongBitSet} keeps them on the heap
+ * and {@code DirectBitSet} keeps them in direct memory.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+abstract class BitStorage implements Serializable {
+	private static final long serialVersionUID = -2284516419390286931L;
+
+	/**
+	 * Allocates empty storage for new tables.
+	 */
+	interface Allocator {
+		BitStorage allocate(long numBits);
+	}
+
+	static final Allocator HEAP = new Allocator() {
+		@Override
+		public BitStorage allocate(long numBits) {
+			return new LongBitSet(numBits);
+		}
+	};
+
+	static final Allocator DIRECT = new Allocator() {
+		@Override
+		public BitStorage allocate(long numBits) {
+			return new DirectBitSet(numBits);
+		}
+	};
+
+	/**
+	 * Returns the number of bits stored.
+	 */
+	abstract long length();
+
+	/**
+	 * Returns {@code numBits} consecutive bits starting at {@code startIndex}
+	 * in the low bits of a long, numBits 1-64 inclusive.
+	 */
+	abstract long getBitRange(long startIndex, int numBits);
+
+	/**
+	 * Overwrites {@code numBits} consecutive bits starting at
+	 * {@code startIndex} with the low bits of {@code value}.
+	 */
+	abstract void setBitRange(long startIndex, int numBits, long value);
+
+	/**
+	 * Same as {@link #setBitRange(long, int, long)} but returns the bits that
+	 * were overwritten.
+	 */
+	abstract long getAndSetBitRange(long startIndex, int numBits, long value);
+
+	/**
+	 * Releases the memory held by the storage. Heap storage is left to the
+	 * garbage collector so this does nothing by default. The storage must not
+	 * be used afterwards.
+	 */
+	void free() {
+	}
+
+	@Override
+	public abstract BitStorage clone();
+
+}
@@ -0,0 +1,157 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Table for 12 bit tags. A bucket of four 12 bit tags is exactly 48 bits, so
+ * each bucket is stored in three consecutive {@code short}s. A bucket never
+ * straddles anything, it's always three aligned reads into a long and then
+ * all slots are matched at once with a {@code SlotMatcher}.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class Bucket48FilterTable extends FilterTable {
+	private static final long serialVersionUID = 5393212306312617040L;
+	private static final int TAG_BITS = 12;
+	private static final long TAG_MASK = (1L << TAG_BITS) - 1;
+	private static final int BUCKET_SIZE = 4;
+	private static final int SHORTS_PER_BUCKET = 3;
+	private final short[] buckets;
+	private final SlotMatcher matcher;
+
+	Bucket48FilterTable(long numBuckets) {
+		this(new short[(int) (numBuckets * SHORTS_PER_BUCKET)], numBuckets);
+	}
+
+	private Bucket48FilterTable(short[] buckets, long numBuckets) {
+		super(TAG_BITS, numBuckets, BUCKET_SIZE);
+		this.buckets = buckets;
+		this.matcher = new SlotMatcher(TAG_BITS, BUCKET_SIZE);
+	}
+
+	/**
+	 * Checks if the table fits in a single java array. Only buckets of 4 tags
+	 * fill exactly 3 shorts.
+	 */
+	static boolean canHold(long numBuckets, int bucketSize) {
+		return bucketSize == BUCKET_SIZE
+				&& numBuckets <= ArrayUtil.MAX_ARRAY_LENGTH / SHORTS_PER_BUCKET;
+	}
+
+	private long readBucket(long bucketIndex) {
+		int i = (int) (bucketIndex * SHORTS_PER_BUCKET);
+		return (buckets[i] & 0xFFFFL) | (buckets[i + 1] & 0xFFFFL) << 16 | (buckets[i + 2] & 0xFFFFL) << 32;
+	}
+
+	private void writeBucket(long bucketIndex, long bucket) {
+		int i = (int) (bucketIndex * SHORTS_PER_BUCKET);
+		buckets[i] = (short) bucket;
+		buckets[i + 1] = (short) (bucket >>> 16);
+		buckets[i + 2] = (short) (bucket >>> 32);
+	}
+
+	@Override
+	long readTag(long bucketIndex, int posInBucket) {
+		return (readBucket(bucketIndex) >>> (posInBucket * TAG_BITS)) & TAG_MASK;
+	}
+
+	@Override
+	void writeTag(long bucketIndex, int posInBucket, long tag) {
+		int shift = posInBucket * TAG_BITS;
+		long bucket = readBucket(bucketIndex) & ~(TAG_MASK << shift);
+		writeBucket(bucketIndex, bucket | ((tag & TAG_MASK) << shift));
+	}
+
+	@Override
+	long readTagAndSet(long bucketIndex, int posInBucket, long newTag) {
+		int shift = posInBucket * TAG_BITS;
+		long bucket = readBucket(bucketIndex);
+		writeBucket(bucketIndex, (bucket & ~(TAG_MASK << shift)) | ((newTag & TAG_MASK) << shift));
+		return (bucket >>> shift) & TAG_MASK;
+	}
+
+	@Override
+	boolean insertToBucket(long bucketIndex, long tag) {
+		long bucket = readBucket(bucketIndex);
+		long emptySlots = matcher.match(bucket, 0);
+		if (emptySlots == 0)
+			return false;
+		int shift = matcher.firstSlot(emptySlots) * TAG_BITS;
+		writeBucket(bucketIndex, bucket | ((tag & TAG_MASK) << shift));
+		return true;
+	}
+
+	@Override
+	boolean findTag(long i1, long i2, long tag) {
+		return (matcher.match(readBucket(i1), tag) | matcher.match(readBucket(i2), tag)) != 0;
+	}
+
+	@Override
+	boolean deleteFromBucket(long i1, long tag) {
+		long bucket = readBucket(i1);
+		long matches = matcher.match(bucket, tag);
+		if (matches == 0)
+			return false;
+		int shift = matcher.firstSlot(matches) * TAG_BITS;
+		writeBucket(i1, bucket & ~(TAG_MASK << shift));
+		return true;
+	}
+
+	@Override
+	int countTag(long i1, long i2, long tag) {
+		return Long.bitCount(matcher.match(readBucket(i1), tag)) + Long.bitCount(matcher.match(readBucket(i2), tag));
+	}
+
+	@Override
+	int countEmpty(long bucketIndex) {
+		return Long.bitCount(matcher.match(readBucket(bucketIndex), 0));
+	}
+
+	@Override
+	long getStorageSize() {
+		return (long) buckets.length * Short.SIZE;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof Bucket48FilterTable) {
+			Bucket48FilterTable that = (Bucket48FilterTable) object;
+			return this.numBuckets == that.numBuckets && Arrays.equals(this.buckets, that.buckets);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(bitsPerTag, Arrays.hashCode(buckets), numBuckets);
+	}
+
+	@Override
+	Bucket48FilterTable copy() {
+		return new Bucket48FilterTable(buckets.clone(), numBuckets);
+	}
+
+}
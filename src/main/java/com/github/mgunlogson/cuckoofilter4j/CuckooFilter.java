@@ -18,11 +18,21 @@ package com.github.mgunlogson.cuckoofilter4j;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.StampedLock;
 
@@ -55,10 +65,15 @@ import com.google.common.hash.Funnel;
  * {@code #delete(Object)}. While counting Bloom filters invariably use more
  * space to allow deletions, Cuckoo filters achieve this with <i>no</i> space or
  * time cost. Like counting variations of Bloom filters, Cuckoo filters have a
- * limit to the number of times you can insert duplicate items. This limit is
- * 8-9 in the current design, depending on internal state. You should never
- * exceed 7 if possible. <i>Reaching this limit can cause further inserts to
- * fail and degrades the performance of the filter</i>. Occasional duplicates
+ * limit to the number of times you can insert duplicate items. Both of an
+ * item's buckets can be filled with copies, twice the bucket size, and more
+ * copies go to the victim stash while it has room, up to
+ * {@code 2 * bucketSize + VictimStash.CAPACITY} (8-16 with the default bucket
+ * size of 4) depending on how much of the stash other items use. The stash
+ * is shared by the whole filter, so you should never exceed 7 with the
+ * default bucket size if possible. <i>Reaching this limit can cause further
+ * inserts to fail and degrades the performance of the filter</i>. Occasional
+ * duplicates
  * will not degrade the performance of the filter but will slightly reduce
  * capacity.
  * 
@@ -67,8 +82,8 @@ import com.google.common.hash.Funnel;
  * for each item using {@code #approximateCount(Object)}. This is probabilistic
  * like the rest of the filter and any error is always an increase. The count
  * will never return less than the number of actual inserts, but may return
- * more. The insert limit of 7 still stands when counting so this is only useful
- * for small numbers.
+ * more. The same limit on duplicates stands when counting so this is only
+ * useful for small numbers.
  * 
  * <p>
  * Once the filter reaches capacity ({@linkplain #put(Object)} returns false).
@@ -85,7 +100,7 @@ import com.google.common.hash.Funnel;
  * Hash collision attacks are theoretically possible against Cuckoo filters (as
  * with any hash table based structure). If this is an issue for your
  * application, use one of the cryptographically secure (but slower) hash
- * functions. The default hash function, Murmer3 is <i>not</i> secure. Secure
+ * functions. The default hash function, XXH3 is <i>not</i> secure. Secure
  * functions include SHA and SipHash. All hashes, including non-secure, are
  * internally seeded and salted. Practical attacks against any of them are
  * unlikely.
@@ -93,6 +108,32 @@ import com.google.common.hash.Funnel;
  * <p>
  * This implementation of a Cuckoo filter is serializable.
  * 
+ * <p>
+ * Filters built with {@code Builder#withOffHeapStorage(boolean)} keep their
+ * table outside of the Java heap. Call {@code #close()} when done with them to
+ * release the memory right away instead of waiting for garbage collection.
+ * 
+ * <p>
+ * Filters can also live in a memory mapped file, see
+ * {@code Builder#buildMapped(Path)} and {@code #open(Path, Funnel)}. Opening a
+ * mapped filter doesn't read the table, pages are loaded by the OS as they're
+ * used and shared with any other process mapping the same file.
+ * 
+ * <p>
+ * Items that are already hashed can skip the filter's hash function with
+ * {@code #putHash(long)}, {@code #mightContainHash(long)} and the other
+ * {@code Hash} methods, which take a 64 bit hash or a 128 bit hash as two
+ * longs. That way one hash can probe several filters. The filter's seed isn't
+ * applied to these, so the caller's hash needs to be well distributed and
+ * always computed the same way for a filter. Pre-hashed and regular items
+ * shouldn't be mixed in one filter since they're hashed differently.
+ * 
+ * <p>
+ * Variable length keys can be hashed for those methods without a funnel with
+ * {@code #hashBytes(byte[], int, int)}, {@code #hashBytes(ByteBuffer)} and
+ * {@code #hashChars(CharSequence)}, which run xxHash64 straight over the key
+ * with no copying or charset encoding.
+ * 
  * @see <a href="https://www.cs.cmu.edu/~dga/papers/cuckoo-conext2014.pdf">
  *      paper on Cuckoo filter properties.</a>
  * @see <a href="https://github.com/seiflotfy/cuckoofilter">Golang Cuckoo filter
@@ -104,7 +145,7 @@ import com.google.common.hash.Funnel;
  *            the type of items that the {@code CuckooFilter} accepts
  * @author Mark Gunlogson
  */
-public final class CuckooFilter<T> implements Serializable {
+public final class CuckooFilter<T> implements Serializable, Closeable {
 
 	/*
 	 * IMPORTANT THREAD SAFETY NOTES. To prevent deadlocks, all methods needing
@@ -116,16 +157,15 @@ public final class CuckooFilter<T> implements Serializable {
 	 */
 	private static final long serialVersionUID = -1337735144654851942L;
 	static final int INSERT_ATTEMPTS = 500;
-	static final int BUCKET_SIZE = 4;
-	// make sure to update getNeededBitsForFpRate() if changing this... then
-	// again don't change this
-	private static final double LOAD_FACTOR = 0.955;
+	// path searches before falling back to the random walk, another search
+	// is only needed if a concurrent writer changed the path under us
+	static final int PATH_SEARCH_ATTEMPTS = 4;
+	static final int DEFAULT_BUCKET_SIZE = 4;
 	private static final double DEFAULT_FP = 0.01;
 	private static final int DEFAULT_CONCURRENCY = 16;
 
 	@VisibleForTesting
 	final FilterTable table;
-	@VisibleForTesting
 	final IndexTagCalc<T> hasher;
 	private final AtomicLong count;
 	/**
@@ -134,32 +174,41 @@ public final class CuckooFilter<T> implements Serializable {
 	 * locker and ignore this
 	 */
 	private final int expectedConcurrency;
+	// lookups don't lock, see Builder#withSingleWriter()
+	@VisibleForTesting
+	final boolean singleWriter;
 	private final StampedLock victimLock;
 	private transient SegmentedBucketLocker bucketLocker;
 
 	@VisibleForTesting
-	Victim victim;
-	@VisibleForTesting
-	boolean hasVictim;
+	final VictimStash victims;
+	// only set for filters stored in a memory mapped file
+	@Nullable
+	private transient MappedFilterFile mappedFile;
+	// set first thing in close(), lookups that don't lock check it instead
+	private transient volatile boolean closed;
 
 	/**
 	 * Creates a Cuckoo filter.
 	 */
-	private CuckooFilter(IndexTagCalc<T> hasher, FilterTable table, AtomicLong count, boolean hasVictim, Victim victim,
-			int expectedConcurrency) {
+	private CuckooFilter(IndexTagCalc<T> hasher, FilterTable table, AtomicLong count, VictimStash victims,
+			int expectedConcurrency, boolean singleWriter) {
 		this.hasher = hasher;
 		this.table = table;
 		this.count = count;
-		this.hasVictim = hasVictim;
+		this.victims = victims;
 		this.expectedConcurrency = expectedConcurrency;
-		// no nulls even if victim hasn't been used!
-		if (victim == null)
-			this.victim = new Victim();
-		else
-			this.victim = victim;
+		this.singleWriter = singleWriter;
 
 		this.victimLock = new StampedLock();
-		this.bucketLocker = new SegmentedBucketLocker(expectedConcurrency);
+		this.bucketLocker = newBucketLocker();
+	}
+
+	private SegmentedBucketLocker newBucketLocker() {
+		// one segment for single writer filters, so writers take turns
+		if (singleWriter)
+			return new SegmentedBucketLocker(1, 1);
+		return new SegmentedBucketLocker(expectedConcurrency, hasher.getNumBuckets());
 	}
 
 	/***
@@ -179,14 +228,18 @@ public final class CuckooFilter<T> implements Serializable {
 		private Algorithm hashAlgorithm;
 		private double fpp = DEFAULT_FP;
 		private int expectedConcurrency = DEFAULT_CONCURRENCY;
+		private int bucketSize = DEFAULT_BUCKET_SIZE;
+		private boolean semiSorted;
+		private boolean offHeap;
+		private boolean singleWriter;
 
 		/**
 		 * Creates a Builder interface for {@link CuckooFilter CuckooFilter}
 		 * with the expected number of insertions using the default false
 		 * positive rate, {@code #hashAlgorithm}, and concurrency. The default
-		 * false positive rate is 1%. The default hash is Murmur3, automatically
-		 * using the 32 bit version for small tables and 128 bit version for
-		 * larger ones. The default concurrency is 16 expected threads.
+		 * false positive rate is 1%. The default hash is XXH3, automatically
+		 * using the 64 bit version for most tables and 128 bit version for
+		 * very large ones. The default concurrency is 16 expected threads.
 		 *
 		 * <p>
 		 * Note that overflowing a {@code CuckooFilter} with significantly more
@@ -222,9 +275,9 @@ public final class CuckooFilter<T> implements Serializable {
 		 * Creates a Builder interface for {@link CuckooFilter CuckooFilter}
 		 * with the expected number of insertions using the default false
 		 * positive rate, {@code #hashAlgorithm}, and concurrency. The default
-		 * false positive rate is 1%. The default hash is Murmur3, automatically
-		 * using the 32 bit version for small tables and 128 bit version for
-		 * larger ones. The default concurrency is 16 expected threads.
+		 * false positive rate is 1%. The default hash is XXH3, automatically
+		 * using the 64 bit version for most tables and 128 bit version for
+		 * very large ones. The default concurrency is 16 expected threads.
 		 *
 		 * <p>
 		 * Note that overflowing a {@code CuckooFilter} with significantly more
@@ -273,11 +326,12 @@ public final class CuckooFilter<T> implements Serializable {
 		}
 
 		/**
-		 * Sets the hashing algorithm used internally. The default is Murmur3,
-		 * 32 or 128 bit sized automatically. Calling this with a Murmur3
-		 * variant instead of using the default will disable automatic hash
-		 * sizing of Murmur3. The size of the table will be significantly
-		 * limited with a 32 bit hash to around 270 MB. Table size is still
+		 * Sets the hashing algorithm used internally. The default is XXH3,
+		 * {@code Algorithm#XXH3_64} or {@code Algorithm#XXH3_128} picked
+		 * automatically from the number of hash bits the table needs. Calling
+		 * this, even with an XXH3 variant, disables the automatic sizing. The
+		 * size of the table will be significantly limited with a 32 bit hash
+		 * like Murmur3_32 to around 270 MB. Table size is still
 		 * limited in certain circumstances when using 64 bit hashes like
 		 * SipHash. 128+ bit hashes will allow practically unlimited table size.
 		 * In any case, filter creation will fail on {@code #build()} with an
@@ -317,6 +371,84 @@ public final class CuckooFilter<T> implements Serializable {
 			return this;
 		}
 
+		/**
+		 * Sets the number of tags in each bucket. Lookups check two buckets,
+		 * so smaller buckets are faster to search but fill up sooner. Buckets
+		 * of 2 reach about 84% occupancy before inserts start failing, 4 about
+		 * 95%, and 8 about 98%. Bigger buckets need slightly longer tags for
+		 * the same false positive rate, which is taken into account when the
+		 * filter is sized. The default is 4, which gives the best space
+		 * efficiency for most false positive rates.
+		 * 
+		 * @param bucketSize
+		 *            number of tags per bucket, 2, 4, or 8
+		 * @return The builder interface
+		 */
+		public Builder<T> withBucketSize(int bucketSize) {
+			checkArgument(Utils.isValidBucketSize(bucketSize), "bucketSize (%s) must be 2, 4, or 8", bucketSize);
+			this.bucketSize = bucketSize;
+			return this;
+		}
+
+		/**
+		 * Stores buckets semi-sorted, which saves one bit per item (~8-12%
+		 * memory for common false positive rates) without changing the false
+		 * positive rate. Operations are somewhat slower since buckets are
+		 * decoded and re-sorted on access. The default is off. Only supported
+		 * for tags of 16 bits or less, which means false positive rates down
+		 * to roughly 0.00012 (0.012%), and for the default bucket size of 4.
+		 * Filter creation will fail on {@code #build()} for lower rates or
+		 * other bucket sizes.
+		 * 
+		 * @param semiSorted
+		 *            true to store buckets semi-sorted
+		 * @return The builder interface
+		 */
+		public Builder<T> withSemiSortedBuckets(boolean semiSorted) {
+			this.semiSorted = semiSorted;
+			return this;
+		}
+
+		/**
+		 * Keeps the filter's table in direct memory outside of the Java heap,
+		 * so giant filters don't add to garbage collection work. The default
+		 * is off. Tags are always bit packed off-heap, which is a little
+		 * slower than the array layouts used on the heap for common tag
+		 * sizes. Filters using off-heap storage should be released with
+		 * {@code CuckooFilter#close()}, copies and deserialized instances
+		 * allocate their own memory and need closing too.
+		 * 
+		 * @param offHeap
+		 *            true to store the table off-heap
+		 * @return The builder interface
+		 */
+		public Builder<T> withOffHeapStorage(boolean offHeap) {
+			this.offHeap = offHeap;
+			return this;
+		}
+
+		/**
+		 * Optimizes the filter for one thread writing and many threads
+		 * reading. Lookups never lock, so they don't slow each other down or
+		 * hold up the writer. Writes all go through one lock, several threads
+		 * can still insert and delete but only one at a time, and the expected
+		 * concurrency is ignored. The default is off.
+		 * <p>
+		 * Inserts and deletes change one tag in place, which lookups see
+		 * either before or after. When a full bucket forces tags to be moved,
+		 * lookups running at the same time retry until the moves are done.
+		 * Semi-sorted buckets are re-encoded on every change, so with them
+		 * lookups retry around every write.
+		 * 
+		 * @param singleWriter
+		 *            true to serialize writes and make lookups lock free
+		 * @return The builder interface
+		 */
+		public Builder<T> withSingleWriter(boolean singleWriter) {
+			this.singleWriter = singleWriter;
+			return this;
+		}
+
 		/**
 		 * Builds and returns a {@code CuckooFilter<T>}. Invalid configurations
 		 * will fail on this call.
@@ -324,19 +456,119 @@ public final class CuckooFilter<T> implements Serializable {
 		 * @return a Cuckoo filter of type T
 		 */
 		public CuckooFilter<T> build() {
-			int tagBits = Utils.getBitsPerItemForFpRate(fpp, LOAD_FACTOR);
-			long numBuckets = Utils.getBucketsNeeded(maxKeys, LOAD_FACTOR, BUCKET_SIZE);
+			return build(offHeap ? BitStorage.DIRECT : BitStorage.HEAP);
+		}
+
+		/**
+		 * Builds a {@code CuckooFilter<T>} stored in a new memory mapped file.
+		 * Changes to the table go straight to the mapping, the OS writes them
+		 * to disk in the background and {@code CuckooFilter#flush()} forces
+		 * them out. Reopen the filter later with
+		 * {@code CuckooFilter#open(Path, Funnel)}. The off-heap setting is
+		 * ignored since the table is always stored in the file. Invalid
+		 * configurations will fail on this call.
+		 * 
+		 * @param file
+		 *            the file to create, must not exist yet
+		 * @return a Cuckoo filter of type T
+		 * @throws IOException
+		 *             if the file exists or can't be created
+		 */
+		public CuckooFilter<T> buildMapped(Path file) throws IOException {
+			checkNotNull(file);
+			MappedFilterFile mappedFile = MappedFilterFile.create(file);
+			try {
+				CuckooFilter<T> filter = build(mappedFile);
+				mappedFile.writeHeader(semiSorted ? MappedFilterFile.LAYOUT_SEMI_SORTED
+						: MappedFilterFile.LAYOUT_PACKED, filter.hasher, bucketSize, expectedConcurrency, singleWriter);
+				mappedFile.writeState(0, filter.victims);
+				mappedFile.force();
+				filter.mappedFile = mappedFile;
+				return filter;
+			} catch (UncheckedIOException e) {
+				mappedFile.close();
+				Files.deleteIfExists(file);
+				throw e.getCause();
+			} catch (RuntimeException e) {
+				mappedFile.close();
+				Files.deleteIfExists(file);
+				throw e;
+			}
+		}
+
+		private CuckooFilter<T> build(BitStorage.Allocator allocator) {
+			checkArgument(!semiSorted || bucketSize == SemiSortedFilterTable.BUCKET_SIZE,
+					"Semi-sorted buckets only support a bucket size of %s", SemiSortedFilterTable.BUCKET_SIZE);
+			double loadFactor = Utils.getLoadFactor(bucketSize);
+			int tagBits = Utils.getBitsPerItemForFpRate(fpp, bucketSize);
+			long numBuckets = Utils.getBucketsNeeded(maxKeys, loadFactor, bucketSize);
 			IndexTagCalc<T> hasher;
 			if (hashAlgorithm == null) {
 				hasher = IndexTagCalc.create(funnel, numBuckets, tagBits);
 			} else
 				hasher = IndexTagCalc.create(hashAlgorithm, funnel, numBuckets, tagBits);
-			FilterTable filtertbl = FilterTable.create(tagBits, numBuckets);
-			return new CuckooFilter<>(hasher, filtertbl, new AtomicLong(0), false, null, expectedConcurrency);
+			FilterTable filtertbl;
+			if (semiSorted)
+				filtertbl = SemiSortedFilterTable.create(tagBits, numBuckets, allocator);
+			else
+				filtertbl = FilterTable.create(tagBits, numBuckets, bucketSize, allocator);
+			return new CuckooFilter<>(hasher, filtertbl, new AtomicLong(0), new VictimStash(), expectedConcurrency,
+					singleWriter);
 		}
 	}
 
 
+	/**
+	 * Opens a filter stored in a memory mapped file by
+	 * {@code Builder#buildMapped(Path)}. Only the header is read, the table is
+	 * paged in by the OS as it's used. Processes mapping the same file share
+	 * pages and see each other's table changes, but the count is only
+	 * exchanged through {@code #flush()} and {@code #close()}, so a file should
+	 * only have one writer at a time.
+	 * 
+	 * @param file
+	 *            the filter file
+	 * @param funnel
+	 *            the funnel the filter was built with. This isn't stored in the
+	 *            file, a different funnel will silently give wrong results
+	 * @return the filter
+	 * @throws IOException
+	 *             if the file can't be opened or isn't a valid filter file
+	 */
+	public static <T> CuckooFilter<T> open(Path file, Funnel<? super T> funnel) throws IOException {
+		checkNotNull(file);
+		checkNotNull(funnel);
+		MappedFilterFile mappedFile = MappedFilterFile.open(file);
+		try {
+			int tagBits = mappedFile.getTagBits();
+			long numBuckets = mappedFile.getNumBuckets();
+			IndexTagCalc<T> hasher = new IndexTagCalc<>(new SerializableSaltedHasher<T>(mappedFile.getSeedNSalt(),
+					mappedFile.getAddlSipSeed(), funnel, mappedFile.getAlgorithm()), numBuckets, tagBits);
+			FilterTable table;
+			switch (mappedFile.getLayout()) {
+			case MappedFilterFile.LAYOUT_PACKED:
+				table = FilterTable.create(tagBits, numBuckets, mappedFile.getBucketSize(), mappedFile);
+				break;
+			case MappedFilterFile.LAYOUT_SEMI_SORTED:
+				table = SemiSortedFilterTable.create(tagBits, numBuckets, mappedFile);
+				break;
+			default:
+				throw new IOException("Unknown table layout " + mappedFile.getLayout() + " in Cuckoo filter file");
+			}
+			CuckooFilter<T> filter = new CuckooFilter<>(hasher, table, new AtomicLong(mappedFile.getCount()),
+					mappedFile.getVictims(), mappedFile.getExpectedConcurrency(),
+					mappedFile.isSingleWriter());
+			filter.mappedFile = mappedFile;
+			return filter;
+		} catch (UncheckedIOException e) {
+			mappedFile.close();
+			throw e.getCause();
+		} catch (IOException | RuntimeException e) {
+			mappedFile.close();
+			throw e;
+		}
+	}
+
 	/**
 	 * Gets the current number of items in the Cuckoo filter. Can be higher than
 	 * the max number of keys the filter was created to store if it is running
@@ -363,7 +595,7 @@ public final class CuckooFilter<T> implements Serializable {
 	 * @return load fraction of total space used, 0-1 inclusive
 	 */
 	public double getLoadFactor() {
-		return count.get() / (hasher.getNumBuckets() * (double) BUCKET_SIZE);
+		return count.get() / (hasher.getNumBuckets() * (double) table.bucketSize);
 	}
 
 	/**
@@ -379,12 +611,12 @@ public final class CuckooFilter<T> implements Serializable {
 	 * @return number of keys filter can theoretically hold at 100% fill
 	 */
 	public long getActualCapacity() {
-		return hasher.getNumBuckets() * BUCKET_SIZE;
+		return hasher.getNumBuckets() * table.bucketSize;
 	}
 
 	/**
-	 * Gets the size of the underlying {@code LongBitSet} table for the filter,
-	 * in bits. This should only be used if you understand the source.
+	 * Gets the size of the underlying memory table for the filter, in bits.
+	 * This should only be used if you understand the source.
 	 * 
 	 * @return space used by table in bits
 	 */
@@ -401,8 +633,9 @@ public final class CuckooFilter<T> implements Serializable {
 	 * Further inserts <i>may</i> fail, although deleting items can also make
 	 * the filter usable again.
 	 * <p>
-	 * Also note that inserting the same item more than 8 times will cause an
-	 * insertion failure.
+	 * Also note that inserting the same item more than twice the bucket size
+	 * times (8 by default) fills both of its buckets, further copies only fit
+	 * while the victim stash has room and fail after that.
 	 *
 	 * @param item
 	 *            item to insert into the filter
@@ -411,47 +644,474 @@ public final class CuckooFilter<T> implements Serializable {
 	 *         Returns {@code false} if insertion failed.
 	 */
 	public boolean put(T item) {
-		BucketAndTag pos = hasher.generate(item);
-		long curTag = pos.tag;
-		long curIndex = pos.index;
+		BucketAndTag pos = hasher.generateReused(item);
+		return putTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Puts an element into the filter unless it might already be there, as
+	 * one atomic operation. Works like {@link #mightContain(Object)} followed
+	 * by {@link #put(Object)} when it returned {@code false}, but the item is
+	 * only hashed once and its buckets only locked once. The check and insert
+	 * can't be split by another thread, so when several threads call this
+	 * with the same new item exactly one of them sees {@code false} and the
+	 * others see {@code true}.
+	 * <p>
+	 * If the item isn't there and the filter is too full to take it, nothing
+	 * is inserted and {@code IllegalStateException} is thrown, since neither
+	 * answer would be true. The filter should be considered full then, same
+	 * as after a failed {@link #put(Object)}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} if the item might already be in the filter, in
+	 *         which case nothing was inserted. {@code false} if it definitely
+	 *         wasn't there and has been inserted.
+	 * @throws IllegalStateException
+	 *             if the item wasn't there and the filter is full
+	 */
+	public boolean putIfAbsent(T item) {
+		BucketAndTag pos = hasher.generateReused(item);
+		return putTagIfAbsent(pos.index, pos.tag);
+	}
+
+	/**
+	 * Hashes a key's bytes for the filter's {@code Hash} methods, for example
+	 * {@code filter.putHash(filter.hashBytes(key, 0, key.length))}. The bytes
+	 * are hashed in place with xxHash64 and the filter's seed, whatever
+	 * hashing algorithm the filter was built with. Nothing is copied or
+	 * allocated. Like any 64 bit hash, this is only enough for filters that
+	 * could use a 64 bit hash function, see {@code #putHash(long)}.
+	 * 
+	 * @param bytes
+	 *            array holding the key
+	 * @param off
+	 *            offset of the key in the array
+	 * @param len
+	 *            length of the key
+	 * @return 64 bit hash of the key
+	 */
+	public long hashBytes(byte[] bytes, int off, int len) {
+		checkNotNull(bytes);
+		return hasher.hashBytes(bytes, off, len);
+	}
+
+	/**
+	 * Same as {@code #hashBytes(byte[], int, int)} for the bytes between a
+	 * buffer's position and limit. Direct buffers are read in place too, and
+	 * the buffer's position isn't changed. A key gets the same hash from an
+	 * array or a buffer.
+	 * 
+	 * @param bytes
+	 *            buffer holding the key
+	 * @return 64 bit hash of the key
+	 */
+	public long hashBytes(ByteBuffer bytes) {
+		checkNotNull(bytes);
+		return hasher.hashBytes(bytes);
+	}
+
+	/**
+	 * Same as {@code #hashBytes(byte[], int, int)} for a character sequence's
+	 * UTF-16 code units, read straight from the sequence without encoding it
+	 * to bytes first.
+	 * 
+	 * @param chars
+	 *            the key
+	 * @return 64 bit hash of the key
+	 */
+	public long hashChars(CharSequence chars) {
+		checkNotNull(chars);
+		return hasher.hashChars(chars);
+	}
+
+	/**
+	 * Puts an item that's already hashed to 64 bits into the filter, skipping
+	 * the filter's hash function. Otherwise works like {@code #put(Object)}.
+	 * The bucket index is taken from the high bits of the hash and the tag
+	 * from the low bits, so a 64 bit hash is only enough for filters that
+	 * could use a 64 bit hash function. Use {@code #putHash(long, long)} for
+	 * larger ones.
+	 * 
+	 * @param hash
+	 *            64 bit hash of the item
+	 * @return {@code true} if the cuckoo filter inserts this item successfully.
+	 *         Returns {@code false} if insertion failed.
+	 */
+	public boolean putHash(long hash) {
+		BucketAndTag pos = hasher.generateFromHash(hash);
+		return putTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Puts an item that's already hashed to 128 bits into the filter, skipping
+	 * the filter's hash function. Otherwise works like {@code #put(Object)}.
+	 * The bucket index is taken from {@code hashLow} and the tag from
+	 * {@code hashHigh}, which works for filters of any size.
+	 * 
+	 * @param hashLow
+	 *            low 64 bits of the item's hash
+	 * @param hashHigh
+	 *            high 64 bits of the item's hash
+	 * @return {@code true} if the cuckoo filter inserts this item successfully.
+	 *         Returns {@code false} if insertion failed.
+	 */
+	public boolean putHash(long hashLow, long hashHigh) {
+		BucketAndTag pos = hasher.generateFromHash(hashLow, hashHigh);
+		return putTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #putIfAbsent(Object)} for an item that's already hashed
+	 * to 64 bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hash
+	 *            64 bit hash of the item
+	 * @return {@code true} if the item might already be in the filter.
+	 *         {@code false} if it wasn't and has been inserted.
+	 * @throws IllegalStateException
+	 *             if the item wasn't there and the filter is full
+	 */
+	public boolean putIfAbsentHash(long hash) {
+		BucketAndTag pos = hasher.generateFromHash(hash);
+		return putTagIfAbsent(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #putIfAbsent(Object)} for an item that's already hashed
+	 * to 128 bits, see {@code #putHash(long, long)}.
+	 * 
+	 * @param hashLow
+	 *            low 64 bits of the item's hash
+	 * @param hashHigh
+	 *            high 64 bits of the item's hash
+	 * @return {@code true} if the item might already be in the filter.
+	 *         {@code false} if it wasn't and has been inserted.
+	 * @throws IllegalStateException
+	 *             if the item wasn't there and the filter is full
+	 */
+	public boolean putIfAbsentHash(long hashLow, long hashHigh) {
+		BucketAndTag pos = hasher.generateFromHash(hashLow, hashHigh);
+		return putTagIfAbsent(pos.index, pos.tag);
+	}
+
+	/**
+	 * Puts a batch of items into the filter. Works like calling
+	 * {@code #put(Object)} for each item, but faster for large batches. The
+	 * whole batch is hashed first, then items are grouped by the lock
+	 * segments their buckets belong to so each group takes its locks once
+	 * instead of once per item. Items whose buckets are both full are
+	 * inserted one at a time afterwards.
+	 * <p>
+	 * Items aren't inserted in order, so if the filter fills up it isn't
+	 * necessarily the last items that fail. The batch isn't atomic, other
+	 * threads can see part of it before the call returns.
+	 * 
+	 * @param items
+	 *            items to insert into the filter
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item was
+	 *         inserted successfully
+	 */
+	public BitSet putAll(Collection<? extends T> items) {
+		checkNotNull(items);
+		long[] indexes = new long[items.size()];
+		long[] tags = new long[items.size()];
+		generateAll(items, indexes, tags);
+		return putAllTags(indexes, tags);
+	}
+
+	/**
+	 * Same as {@code #putAll(Collection)} for an array of items.
+	 * 
+	 * @param items
+	 *            items to insert into the filter
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item was
+	 *         inserted successfully
+	 */
+	public BitSet putAll(T[] items) {
+		checkNotNull(items);
+		long[] indexes = new long[items.length];
+		long[] tags = new long[items.length];
+		generateAll(items, indexes, tags);
+		return putAllTags(indexes, tags);
+	}
+
+	/**
+	 * Same as {@code #putAll(Collection)} for items that are already hashed
+	 * to 64 bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hashes
+	 *            64 bit hashes of the items
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item was
+	 *         inserted successfully
+	 */
+	public BitSet putAllHash(long[] hashes) {
+		checkNotNull(hashes);
+		long[] indexes = new long[hashes.length];
+		long[] tags = new long[hashes.length];
+		generateAllFromHash(hashes, indexes, tags);
+		return putAllTags(indexes, tags);
+	}
+
+	/**
+	 * Hashes a batch of items into bucket indexes and tags.
+	 */
+	private void generateAll(Collection<? extends T> items, long[] indexes, long[] tags) {
+		int i = 0;
+		for (T item : items) {
+			if (i == indexes.length)
+				throw new ConcurrentModificationException();
+			BucketAndTag pos = hasher.generateReused(item);
+			indexes[i] = pos.index;
+			tags[i] = pos.tag;
+			i++;
+		}
+		if (i != indexes.length)
+			throw new ConcurrentModificationException();
+	}
+
+	private void generateAll(T[] items, long[] indexes, long[] tags) {
+		for (int i = 0; i < items.length; i++) {
+			BucketAndTag pos = hasher.generateReused(items[i]);
+			indexes[i] = pos.index;
+			tags[i] = pos.tag;
+		}
+	}
+
+	private void generateAllFromHash(long[] hashes, long[] indexes, long[] tags) {
+		for (int i = 0; i < hashes.length; i++) {
+			BucketAndTag pos = hasher.generateFromHash(hashes[i]);
+			indexes[i] = pos.index;
+			tags[i] = pos.tag;
+		}
+	}
+
+	/**
+	 * Inserts a batch of tags with one lock per group of items sharing lock
+	 * segments. Only the quick insert into a free slot happens under the
+	 * group's locks, the cuckoo loop locks buckets as it goes so it can't run
+	 * while holding them.
+	 */
+	private BitSet putAllTags(long[] indexes, long[] tags) {
+		checkOpen();
+		int size = indexes.length;
+		BitSet inserted = new BitSet(size);
+		long[] altIndexes = new long[size];
+		for (int i = 0; i < size; i++) {
+			altIndexes[i] = hasher.altIndex(indexes[i], tags[i]);
+		}
+		int[] order = bucketLocker.groupBySegments(indexes, altIndexes, size);
+		int[] full = new int[size];
+		int fullCount = 0;
+		int groupStart = 0;
+		while (groupStart < size) {
+			int first = order[groupStart];
+			int groupEnd = groupStart + 1;
+			while (groupEnd < size && bucketLocker.isSameSegments(indexes[first], altIndexes[first],
+					indexes[order[groupEnd]], altIndexes[order[groupEnd]])) {
+				groupEnd++;
+			}
+			long victimLockStamp = writeLockVictimIfRewriting();
+			bucketLocker.lockBucketsWrite(indexes[first], altIndexes[first]);
+			try {
+				int added = 0;
+				for (int j = groupStart; j < groupEnd; j++) {
+					int item = order[j];
+					if (table.insertToEmptierBucket(indexes[item], altIndexes[item], tags[item])) {
+						inserted.set(item);
+						added++;
+					} else {
+						full[fullCount++] = item;
+					}
+				}
+				// counted under the bucket locks like putTag()
+				count.addAndGet(added);
+			} finally {
+				bucketLocker.unlockBucketsWrite(indexes[first], altIndexes[first]);
+				unlockVictimIfRewriting(victimLockStamp);
+			}
+			groupStart = groupEnd;
+		}
+		for (int j = 0; j < fullCount; j++) {
+			int item = full[j];
+			if (putTag(indexes[item], tags[item]))
+				inserted.set(item);
+		}
+		return inserted;
+	}
+
+	private boolean putTag(long curIndex, long curTag) {
+		checkOpen();
 		long altIndex = hasher.altIndex(curIndex, curTag);
+		long victimLockStamp = writeLockVictimIfRewriting();
 		bucketLocker.lockBucketsWrite(curIndex, altIndex);
 		try {
-			if (table.insertToBucket(curIndex, curTag) || table.insertToBucket(altIndex, curTag)) {
+			if (table.insertToEmptierBucket(curIndex, altIndex, curTag)) {
 				count.incrementAndGet();
 				return true;
 			}
 		} finally {
 			bucketLocker.unlockBucketsWrite(curIndex, altIndex);
+			unlockVictimIfRewriting(victimLockStamp);
 		}
-		// don't do insertion loop if victim slot is already filled
-		long victimLockStamp = writeLockVictimIfClear();
+		// a short chain of moves is usually enough to make room
+		if (tryInsertAlongPath(curIndex, altIndex, curTag, false))
+			return true;
+		// don't do insertion loop if the victim stash is already full
+		victimLockStamp = writeLockVictimIfRoom();
 		if (victimLockStamp == 0L)
-			// victim was set...can't insert
+			// stash is full...can't insert
 			return false;
 		try {
-			// fill victim slot and run fun insert method below
-			victim.setTag(curTag);
-			victim.setI1(curIndex);
-			victim.setI2(altIndex);
-			hasVictim = true;
-			for (int i = 0; i <= INSERT_ATTEMPTS; i++) {
-				if (trySwapVictimIntoEmptySpot())
-					break;
-			}
-			/*
-			 * count is incremented here because we should never increase count
-			 * when not locking buckets or victim. Reason is because otherwise
-			 * count may be inconsistent across threads when doing operations
-			 * that lock the whole table like hashcode() or equals()
-			 */
-			count.getAndIncrement();
+			stashAndKick(curIndex, altIndex, curTag);
 		} finally {
 			victimLock.unlock(victimLockStamp);
 		}
 		// if we get here, we either managed to insert victim using retries or
-		// it's in victim slot from another thread. Either way, it's in the
-		// table.
+		// it's in the victim stash. Either way, it's in the table.
+		return true;
+	}
+
+	/**
+	 * Stashes a tag and kicks tags around until it finds a home or it's left
+	 * in the stash. Needs the victim write lock and room in the stash.
+	 */
+	private void stashAndKick(long curIndex, long altIndex, long curTag) {
+		// older victims may fit now, since we have the lock anyway
+		insertVictims();
+		// stash the tag and run fun insert method below
+		int pos = victims.add(curIndex, altIndex, curTag);
+		for (int i = 0; i <= INSERT_ATTEMPTS; i++) {
+			if (trySwapVictimIntoEmptySpot(victims.get(pos))) {
+				victims.remove(pos);
+				break;
+			}
+		}
+		/*
+		 * count is incremented here because we should never increase count
+		 * when not locking buckets or victim. Reason is because otherwise
+		 * count may be inconsistent across threads when doing operations
+		 * that lock the whole table like hashcode() or equals()
+		 */
+		count.getAndIncrement();
+	}
+
+	private boolean putTagIfAbsent(long i1, long tag) {
+		checkOpen();
+		long i2 = hasher.altIndex(i1, tag);
+		// the stash only changes under the victim write lock, so an optimistic
+		// stamp covers it while the bucket locks cover the table. Writes that
+		// rewrite buckets need the write lock, so they all take the slow path
+		long victimLockStamp = rewritesUnlockedBuckets() ? 0L : victimLock.tryOptimisticRead();
+		if (victimLockStamp != 0L) {
+			bucketLocker.lockBucketsWrite(i1, i2);
+			try {
+				if (table.findTag(i1, i2, tag))
+					return true;
+				boolean stashed = isVictim(i1, tag);
+				if (victimLock.validate(victimLockStamp)) {
+					if (stashed)
+						return true;
+					if (table.insertToEmptierBucket(i1, i2, tag)) {
+						count.incrementAndGet();
+						return false;
+					}
+				}
+			} finally {
+				bucketLocker.unlockBucketsWrite(i1, i2);
+			}
+		}
+		/*
+		 * Both buckets are full or the stash changed under us. The victim
+		 * write lock is held until the tag has a home so a concurrent call
+		 * with the same item waits here and finds it, instead of checking
+		 * while the tag is between moves.
+		 */
+		long victimWriteStamp = victimLock.writeLock();
+		try {
+			bucketLocker.lockBucketsWrite(i1, i2);
+			try {
+				if (table.findTag(i1, i2, tag) || isVictim(i1, tag))
+					return true;
+				if (table.insertToEmptierBucket(i1, i2, tag)) {
+					count.incrementAndGet();
+					return false;
+				}
+			} finally {
+				bucketLocker.unlockBucketsWrite(i1, i2);
+			}
+			if (!tryInsertAlongPath(i1, i2, tag, true)) {
+				// returning false would claim the item is recorded now
+				checkState(!victims.isFull(), "filter is full");
+				stashAndKick(i1, i2, tag);
+			}
+			return false;
+		} finally {
+			victimLock.unlockWrite(victimWriteStamp);
+		}
+	}
+
+	/**
+	 * Searches for the shortest chain of moves that frees a slot in one of the
+	 * tag's buckets and carries it out, last move first so every tag moves
+	 * into a free slot and none is ever homeless. The search reads without
+	 * locks, each move locks just its two buckets and checks the tag it moves
+	 * is still there. If another writer got in the way the search is repeated
+	 * a few times before giving up.
+	 * 
+	 * @param victimLocked
+	 *            true if the caller already holds the victim write lock
+	 * @return true if the tag was inserted
+	 */
+	private boolean tryInsertAlongPath(long i1, long i2, long tag, boolean victimLocked) {
+		EvictionPath path = new EvictionPath();
+		for (int i = 0; i < PATH_SEARCH_ATTEMPTS; i++) {
+			if (!path.search(table, hasher, i1, i2))
+				return false;
+			// lock free lookups only notice moves through the victim lock
+			boolean lockVictim = singleWriter && !victimLocked;
+			long victimLockStamp = lockVictim ? victimLock.writeLock() : 0L;
+			try {
+				if (movePath(path)) {
+					bucketLocker.lockBucketsWrite(i1, i2);
+					try {
+						if (table.insertToEmptierBucket(i1, i2, tag)) {
+							count.incrementAndGet();
+							return true;
+						}
+					} finally {
+						bucketLocker.unlockBucketsWrite(i1, i2);
+					}
+				}
+			} finally {
+				if (lockVictim)
+					victimLock.unlockWrite(victimLockStamp);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the tags along a path found by {@link EvictionPath}, starting from
+	 * the bucket with the free slot.
+	 * 
+	 * @return false if the table no longer matches the path, moves already
+	 *         made are left in place since they're valid on their own
+	 */
+	private boolean movePath(EvictionPath path) {
+		for (int node = path.getEnd(); !path.isRoot(node); node = path.getParent(node)) {
+			long from = path.getBucket(path.getParent(node));
+			long to = path.getBucket(node);
+			long tag = path.getTag(node);
+			bucketLocker.lockBucketsWrite(from, to);
+			try {
+				if (!table.findTag(from, from, tag) || !table.insertToBucket(to, tag))
+					return false;
+				table.deleteFromBucket(from, tag);
+			} finally {
+				bucketLocker.unlockBucketsWrite(from, to);
+			}
+		}
 		return true;
 	}
 
@@ -463,22 +1123,26 @@ public final class CuckooFilter<T> implements Serializable {
 	 * The basic flow below is to insert our current tag into a position in an
 	 * already full bucket, then move the tag that we overwrote to it's
 	 * alternate index. We repeat this until we move a tag into a non-full
-	 * bucket or run out of attempts. This tag shuffling process is what gives
+	 * bucket or run out of attempts. Only used when the path search in
+	 * {@link #tryInsertAlongPath(long, long, long, boolean)} finds nothing, a random
+	 * walk can go further than its length limit. This tag shuffling process is what gives
 	 * the Cuckoo filter such a high load factor. When we run out of attempts,
-	 * we leave the orphaned tag in the victim slot.
+	 * we leave the orphaned tag in the victim stash.
 	 * 
 	 * We need to be extremely careful here to avoid deadlocks and thread stalls
 	 * during this process. The most nefarious deadlock is that two or more
 	 * threads run out of tries simultaneously and all need a place to store a
-	 * victim even though we only have one slot
+	 * victim, which is why only the holder of the victim write lock kicks.
 	 * 
+	 * @return true if the victim found a home, it should be removed from the
+	 *         stash
 	 */
-	private boolean trySwapVictimIntoEmptySpot() {
+	private boolean trySwapVictimIntoEmptySpot(Victim victim) {
 
 		long curIndex = victim.getI2();
 		// lock bucket. We always use I2 since victim tag is from bucket I1
 		bucketLocker.lockSingleBucketWrite(curIndex);
-		long curTag = table.swapRandomTagInBucket(curIndex, victim.getTag());
+		long curTag = table.readTagAndSet(curIndex, chooseSlotToKick(curIndex), victim.getTag());
 		bucketLocker.unlockSingleBucketWrite(curIndex);
 		// new victim's I2 is different as long as tag isn't the same
 		long altIndex = hasher.altIndex(curIndex, curTag);
@@ -486,7 +1150,6 @@ public final class CuckooFilter<T> implements Serializable {
 		bucketLocker.lockSingleBucketWrite(altIndex);
 		try {
 			if (table.insertToBucket(altIndex, curTag)) {
-				hasVictim = false;
 				return true;
 			} else {
 				// still have a victim, but a different one...
@@ -503,9 +1166,34 @@ public final class CuckooFilter<T> implements Serializable {
 	}
 
 	/**
-	 * Attempts to insert the victim item if it exists. Remember that inserting
-	 * from the victim cache to the main table DOES NOT affect the count since
-	 * items in the victim cache are technically still in the table
+	 * Picks the slot to kick out of a full bucket, preferring a tag whose
+	 * alternate bucket has the most room so the walk ends sooner. The other
+	 * buckets aren't locked, a stale count just makes a worse choice. Scanning
+	 * from a random slot breaks ties randomly, so a walk where every
+	 * alternate is full is still random and doesn't cycle.
+	 */
+	private int chooseSlotToKick(long bucketIndex) {
+		int bucketSize = table.bucketSize;
+		int start = ThreadLocalRandom.current().nextInt(bucketSize);
+		int best = start;
+		int bestEmpty = -1;
+		for (int i = 0; i < bucketSize; i++) {
+			// bucket sizes are powers of two
+			int pos = (start + i) & (bucketSize - 1);
+			long altIndex = hasher.altIndex(bucketIndex, table.readTag(bucketIndex, pos));
+			int empty = table.countEmpty(altIndex);
+			if (empty > bestEmpty) {
+				best = pos;
+				bestEmpty = empty;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Attempts to insert the stashed victims if there are any. Remember that
+	 * inserting from the victim cache to the main table DOES NOT affect the
+	 * count since items in the victim cache are technically still in the table
 	 * 
 	 */
 	private void insertIfVictim() {
@@ -513,34 +1201,72 @@ public final class CuckooFilter<T> implements Serializable {
 		if (victimLockstamp == 0L)
 			return;
 		try {
-
 			// when we get here we definitely have a victim and a write lock
-			bucketLocker.lockBucketsWrite(victim.getI1(), victim.getI2());
+			insertVictims();
+		} finally {
+			victimLock.unlock(victimLockstamp);
+		}
+
+	}
+
+	/**
+	 * Moves stashed victims back into the table where their buckets have room.
+	 * Needs the victim write lock.
+	 */
+	private void insertVictims() {
+		// backwards, removing moves the last entry into the gap
+		for (int pos = victims.size() - 1; pos >= 0; pos--) {
+			// copied out since removing overwrites the entry
+			Victim victim = victims.get(pos);
+			long i1 = victim.getI1();
+			long i2 = victim.getI2();
+			long tag = victim.getTag();
+			bucketLocker.lockBucketsWrite(i1, i2);
 			try {
-				if (table.insertToBucket(victim.getI1(), victim.getTag())
-						|| table.insertToBucket(victim.getI2(), victim.getTag())) {
-					// set this here because we already have lock
-					hasVictim = false;
+				if (table.insertToEmptierBucket(i1, i2, tag)) {
+					victims.remove(pos);
 				}
 			} finally {
-				bucketLocker.unlockBucketsWrite(victim.getI1(), victim.getI2());
+				bucketLocker.unlockBucketsWrite(i1, i2);
 			}
-		} finally {
-			victimLock.unlock(victimLockstamp);
 		}
+	}
 
+	/**
+	 * Single writer lookups read the table without bucket locks and only
+	 * validate against the victim lock. That's fine while writes change one
+	 * tag in place, but a table that rewrites whole buckets can hide
+	 * unchanged tags from a lookup mid-write.
+	 */
+	private boolean rewritesUnlockedBuckets() {
+		return singleWriter && table.rewritesBuckets();
+	}
+
+	/**
+	 * Takes the victim write lock around a table write that lock free lookups
+	 * couldn't otherwise see, before any bucket locks.
+	 * 
+	 * @return the write lock stamp, or zero if the lock isn't needed
+	 */
+	private long writeLockVictimIfRewriting() {
+		return rewritesUnlockedBuckets() ? victimLock.writeLock() : 0L;
+	}
+
+	private void unlockVictimIfRewriting(long victimLockStamp) {
+		if (victimLockStamp != 0L)
+			victimLock.unlockWrite(victimLockStamp);
 	}
 
 	/***
-	 * Checks if the victim is set using a read lock and upgrades to a write
-	 * lock if it is. Will either return a write lock stamp if victim is set, or
-	 * zero if no victim.
+	 * Checks if any victims are stashed using a read lock and upgrades to a
+	 * write lock if there are. Will either return a write lock stamp if a
+	 * victim is set, or zero if no victim.
 	 * 
 	 * @return a write lock stamp for the Victim or 0 if no victim
 	 */
 	private long writeLockVictimIfSet() {
 		long victimLockstamp = victimLock.readLock();
-		if (hasVictim) {
+		if (!victims.isEmpty()) {
 			// try to upgrade our read lock to write exclusive if victim
 			long writeLockStamp = victimLock.tryConvertToWriteLock(victimLockstamp);
 			// could not get write lock
@@ -550,7 +1276,7 @@ public final class CuckooFilter<T> implements Serializable {
 				// now just block until we have exclusive lock
 				victimLockstamp = victimLock.writeLock();
 				// make sure victim is still set with our new write lock
-				if (!hasVictim) {
+				if (victims.isEmpty()) {
 					// victim has been cleared by another thread... so just give
 					// up our lock
 					victimLock.tryUnlockWrite();
@@ -567,15 +1293,15 @@ public final class CuckooFilter<T> implements Serializable {
 	}
 
 	/***
-	 * Checks if the victim is clear using a read lock and upgrades to a write
-	 * lock if it is clear. Will either return a write lock stamp if victim is
-	 * clear, or zero if a victim is already set.
+	 * Checks if the victim stash has room using a read lock and upgrades to a
+	 * write lock if it does. Will either return a write lock stamp if there's
+	 * room, or zero if the stash is full.
 	 * 
-	 * @return a write lock stamp for the Victim or 0 if victim is set
+	 * @return a write lock stamp for the Victim or 0 if the stash is full
 	 */
-	private long writeLockVictimIfClear() {
+	private long writeLockVictimIfRoom() {
 		long victimLockstamp = victimLock.readLock();
-		if (!hasVictim) {
+		if (!victims.isFull()) {
 			// try to upgrade our read lock to write exclusive if victim
 			long writeLockStamp = victimLock.tryConvertToWriteLock(victimLockstamp);
 			// could not get write lock
@@ -584,12 +1310,11 @@ public final class CuckooFilter<T> implements Serializable {
 				victimLock.unlock(victimLockstamp);
 				// now just block until we have exclusive lock
 				victimLockstamp = victimLock.writeLock();
-				// make sure victim is still clear with our new write lock
-				if (!hasVictim)
+				// make sure there's still room with our new write lock
+				if (!victims.isFull())
 					return victimLockstamp;
 				else {
-					// victim has been set by another thread... so just give up
-					// our lock
+					// filled by another thread... so just give up our lock
 					victimLock.tryUnlockWrite();
 					return 0L;
 				}
@@ -612,20 +1337,47 @@ public final class CuckooFilter<T> implements Serializable {
 	 */
 	boolean checkIsVictim(BucketAndTag tagToCheck) {
 		checkNotNull(tagToCheck);
+		return checkIsVictim(tagToCheck.index, tagToCheck.tag);
+	}
+
+	private boolean checkIsVictim(long index, long tag) {
+		long stamp = victimLock.tryOptimisticRead();
+		boolean isVictim = isVictim(index, tag);
+		if (victimLock.validate(stamp))
+			return isVictim;
 		victimLock.readLock();
 		try {
-			if (hasVictim) {
-				if (victim.getTag() == tagToCheck.tag
-						&& (tagToCheck.index == victim.getI1() || tagToCheck.index == victim.getI2())) {
-					return true;
-				}
-			}
-			return false;
+			return isVictim(index, tag);
 		} finally {
 			victimLock.tryUnlockRead();
 		}
 	}
 
+	/**
+	 * Counts stashed copies of a tag, duplicates may have been stashed more
+	 * than once.
+	 */
+	private int countVictims(long index, long tag) {
+		long stamp = victimLock.tryOptimisticRead();
+		int victimCount = victims.count(index, tag);
+		if (victimLock.validate(stamp))
+			return victimCount;
+		victimLock.readLock();
+		try {
+			return victims.count(index, tag);
+		} finally {
+			victimLock.tryUnlockRead();
+		}
+	}
+
+	/**
+	 * Compares with the victims without locking, the caller has to lock or
+	 * validate the victim lock.
+	 */
+	private boolean isVictim(long index, long tag) {
+		return victims.find(index, tag) >= 0;
+	}
+
 	/**
 	 * Returns {@code true} if the element <i>might</i> have been put in this
 	 * Cuckoo filter, {@code false} if this is <i>definitely</i> not the case.
@@ -636,18 +1388,186 @@ public final class CuckooFilter<T> implements Serializable {
 	 * @return true if the item might be in the filter
 	 */
 	public boolean mightContain(T item) {
-		BucketAndTag pos = hasher.generate(item);
-		long i1 = pos.index;
-		long i2 = hasher.altIndex(pos.index, pos.tag);
-		bucketLocker.lockBucketsRead(i1, i2);
-		try {
-			if (table.findTag(i1, i2, pos.tag)) {
-				return true;
+		BucketAndTag pos = hasher.generateReused(item);
+		return mightContainTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #mightContain(Object)} for an item that's already hashed
+	 * to 64 bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hash
+	 *            64 bit hash of the item
+	 * @return true if the item might be in the filter
+	 */
+	public boolean mightContainHash(long hash) {
+		BucketAndTag pos = hasher.generateFromHash(hash);
+		return mightContainTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #mightContain(Object)} for an item that's already hashed
+	 * to 128 bits, see {@code #putHash(long, long)}.
+	 * 
+	 * @param hashLow
+	 *            low 64 bits of the item's hash
+	 * @param hashHigh
+	 *            high 64 bits of the item's hash
+	 * @return true if the item might be in the filter
+	 */
+	public boolean mightContainHash(long hashLow, long hashHigh) {
+		BucketAndTag pos = hasher.generateFromHash(hashLow, hashHigh);
+		return mightContainTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Checks a batch of items against the filter. Gives the same answers as
+	 * calling {@code #mightContain(Object)} for each item, but faster for large
+	 * batches. All the items are hashed before the table is touched, and then
+	 * probed grouped by lock segment so each group validates its optimistic
+	 * read once.
+	 * The probe loop does nothing but read buckets, so on tables much bigger
+	 * than the CPU cache the memory reads of neighbouring items overlap
+	 * instead of waiting on each other.
+	 * 
+	 * @param items
+	 *            items to check
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item might be
+	 *         in the filter
+	 */
+	public BitSet mightContainAll(Collection<? extends T> items) {
+		checkNotNull(items);
+		long[] indexes = new long[items.size()];
+		long[] tags = new long[items.size()];
+		generateAll(items, indexes, tags);
+		return mightContainAllTags(indexes, tags);
+	}
+
+	/**
+	 * Same as {@code #mightContainAll(Collection)} for an array of items.
+	 * 
+	 * @param items
+	 *            items to check
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item might be
+	 *         in the filter
+	 */
+	public BitSet mightContainAll(T[] items) {
+		checkNotNull(items);
+		long[] indexes = new long[items.length];
+		long[] tags = new long[items.length];
+		generateAll(items, indexes, tags);
+		return mightContainAllTags(indexes, tags);
+	}
+
+	/**
+	 * Same as {@code #mightContainAll(Collection)} for items that are already
+	 * hashed to 64 bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hashes
+	 *            64 bit hashes of the items
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item might be
+	 *         in the filter
+	 */
+	public BitSet mightContainAllHash(long[] hashes) {
+		checkNotNull(hashes);
+		long[] indexes = new long[hashes.length];
+		long[] tags = new long[hashes.length];
+		generateAllFromHash(hashes, indexes, tags);
+		return mightContainAllTags(indexes, tags);
+	}
+
+	private BitSet mightContainAllTags(long[] indexes, long[] tags) {
+		checkOpen();
+		int size = indexes.length;
+		BitSet found = new BitSet(size);
+		long[] altIndexes = new long[size];
+		for (int i = 0; i < size; i++) {
+			altIndexes[i] = hasher.altIndex(indexes[i], tags[i]);
+		}
+		if (singleWriter) {
+			// no locks to group by
+			for (int i = 0; i < size; i++) {
+				if (mightContainTagSingleWriter(indexes[i], altIndexes[i], tags[i]))
+					found.set(i);
 			}
-		} finally {
-			bucketLocker.unlockBucketsRead(i1, i2);
+			return found;
+		}
+		int[] order = bucketLocker.groupBySegments(indexes, altIndexes, size);
+		int groupStart = 0;
+		while (groupStart < size) {
+			int first = order[groupStart];
+			int groupEnd = groupStart + 1;
+			while (groupEnd < size && bucketLocker.isSameSegments(indexes[first], altIndexes[first],
+					indexes[order[groupEnd]], altIndexes[order[groupEnd]])) {
+				groupEnd++;
+			}
+			long i1 = indexes[first];
+			long i2 = altIndexes[first];
+			long stamp1 = bucketLocker.tryOptimisticReadBucket(i1);
+			long stamp2 = bucketLocker.tryOptimisticReadBucket(i2);
+			for (int j = groupStart; j < groupEnd; j++) {
+				int item = order[j];
+				found.set(item, table.findTag(indexes[item], altIndexes[item], tags[item]));
+			}
+			if (!bucketLocker.validateBucketsRead(i1, stamp1, i2, stamp2)) {
+				// written to while probing, do the group again under the locks
+				bucketLocker.lockBucketsRead(i1, i2);
+				try {
+					for (int j = groupStart; j < groupEnd; j++) {
+						int item = order[j];
+						found.set(item, table.findTag(indexes[item], altIndexes[item], tags[item]));
+					}
+				} finally {
+					bucketLocker.unlockBucketsRead(i1, i2);
+				}
+			}
+			groupStart = groupEnd;
+		}
+		// anything not in the table could still be the victim
+		for (int i = found.nextClearBit(0); i < size; i = found.nextClearBit(i + 1)) {
+			if (checkIsVictim(indexes[i], tags[i]))
+				found.set(i);
+		}
+		return found;
+	}
+
+	private boolean mightContainTag(long i1, long tag) {
+		checkOpen();
+		long i2 = hasher.altIndex(i1, tag);
+		if (singleWriter)
+			return mightContainTagSingleWriter(i1, i2, tag);
+		// lookups don't write to the locks unless a writer gets in the way
+		long stamp1 = bucketLocker.tryOptimisticReadBucket(i1);
+		long stamp2 = bucketLocker.tryOptimisticReadBucket(i2);
+		boolean found = table.findTag(i1, i2, tag);
+		if (!bucketLocker.validateBucketsRead(i1, stamp1, i2, stamp2)) {
+			bucketLocker.lockBucketsRead(i1, i2);
+			try {
+				found = table.findTag(i1, i2, tag);
+			} finally {
+				bucketLocker.unlockBucketsRead(i1, i2);
+			}
+		}
+		return found || checkIsVictim(i1, tag);
+	}
+
+	/**
+	 * Lookup for single writer filters, without touching any locks. Inserts
+	 * and deletes only write the words holding the tag they change, so the
+	 * buckets can be read while they happen. Tags are only moved between
+	 * buckets and the victim under the victim write lock, which a lookup
+	 * validates against and retries until no moves overlapped its reads.
+	 */
+	private boolean mightContainTagSingleWriter(long i1, long i2, long tag) {
+		for (;;) {
+			long stamp = victimLock.tryOptimisticRead();
+			if (stamp != 0L) {
+				boolean found = table.findTag(i1, i2, tag) || isVictim(i1, tag);
+				if (victimLock.validate(stamp))
+					return found;
+			}
+			Thread.yield();
 		}
-		return checkIsVictim(pos);
 	}
 
 	/**
@@ -660,10 +1580,12 @@ public final class CuckooFilter<T> implements Serializable {
 	 * The false inflation chance of the count depends on the filter's false
 	 * positive rate, but is generally low for sane configurations.
 	 * <p>
-	 * NOTE: Inserting the same key more than 7 times will cause a bucket
-	 * overflow, greatly decreasing the performance of the filter and making
-	 * early insertion failure (less than design load factor) very likely. For
-	 * this reason the filter should only be used to count small values.
+	 * NOTE: Inserting the same key more than twice the bucket size times (8
+	 * by default) overflows both of its buckets into the victim stash, which
+	 * holds {@code VictimStash.CAPACITY} tags for the whole filter. This greatly
+	 * decreases the performance of the filter and makes early insertion
+	 * failure (less than design load factor) very likely. For this reason the
+	 * filter should only be used to count small values.
 	 * 
 	 * <p>
 	 * Also note that getting the count is generally about half as fast as
@@ -677,19 +1599,65 @@ public final class CuckooFilter<T> implements Serializable {
 	 *         {@code #mightContain(Object)} in this case.
 	 */
 	public int approximateCount(T item) {
-		BucketAndTag pos = hasher.generate(item);
-		long i1 = pos.index;
-		long i2 = hasher.altIndex(pos.index, pos.tag);
-		int tagCount = 0;
-		bucketLocker.lockBucketsRead(i1, i2);
-		try {
-			tagCount = table.countTag(i1, i2, pos.tag);
-		} finally {
-			bucketLocker.unlockBucketsRead(i1, i2);
+		BucketAndTag pos = hasher.generateReused(item);
+		return approximateCountTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #approximateCount(Object)} for an item that's already
+	 * hashed to 64 bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hash
+	 *            64 bit hash of the item
+	 * @return the number of times the item was probably added to the filter
+	 */
+	public int approximateCountHash(long hash) {
+		BucketAndTag pos = hasher.generateFromHash(hash);
+		return approximateCountTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #approximateCount(Object)} for an item that's already
+	 * hashed to 128 bits, see {@code #putHash(long, long)}.
+	 * 
+	 * @param hashLow
+	 *            low 64 bits of the item's hash
+	 * @param hashHigh
+	 *            high 64 bits of the item's hash
+	 * @return the number of times the item was probably added to the filter
+	 */
+	public int approximateCountHash(long hashLow, long hashHigh) {
+		BucketAndTag pos = hasher.generateFromHash(hashLow, hashHigh);
+		return approximateCountTag(pos.index, pos.tag);
+	}
+
+	private int approximateCountTag(long i1, long tag) {
+		checkOpen();
+		long i2 = hasher.altIndex(i1, tag);
+		if (singleWriter) {
+			// same as mightContainTagSingleWriter()
+			for (;;) {
+				long stamp = victimLock.tryOptimisticRead();
+				if (stamp != 0L) {
+					int tagCount = table.countTag(i1, i2, tag) + victims.count(i1, tag);
+					if (victimLock.validate(stamp))
+						return tagCount;
+				}
+				Thread.yield();
+			}
 		}
-		if (checkIsVictim(pos))
-			tagCount++;
-		return tagCount;
+		long stamp1 = bucketLocker.tryOptimisticReadBucket(i1);
+		long stamp2 = bucketLocker.tryOptimisticReadBucket(i2);
+		int tagCount = table.countTag(i1, i2, tag);
+		if (!bucketLocker.validateBucketsRead(i1, stamp1, i2, stamp2)) {
+			bucketLocker.lockBucketsRead(i1, i2);
+			try {
+				tagCount = table.countTag(i1, i2, tag);
+			} finally {
+				bucketLocker.unlockBucketsRead(i1, i2);
+			}
+		}
+		return tagCount + countVictims(i1, tag);
 	}
 
 	/**
@@ -714,16 +1682,52 @@ public final class CuckooFilter<T> implements Serializable {
 	 */
 
 	public boolean delete(T item) {
-		BucketAndTag pos = hasher.generate(item);
-		long i1 = pos.index;
-		long i2 = hasher.altIndex(pos.index, pos.tag);
+		BucketAndTag pos = hasher.generateReused(item);
+		return deleteTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #delete(Object)} for an item that's already hashed to 64
+	 * bits, see {@code #putHash(long)}.
+	 * 
+	 * @param hash
+	 *            64 bit hash of the item
+	 * @return {@code true} if the cuckoo filter deleted this item successfully.
+	 *         Returns {@code false} if the item was not found.
+	 */
+	public boolean deleteHash(long hash) {
+		BucketAndTag pos = hasher.generateFromHash(hash);
+		return deleteTag(pos.index, pos.tag);
+	}
+
+	/**
+	 * Same as {@code #delete(Object)} for an item that's already hashed to 128
+	 * bits, see {@code #putHash(long, long)}.
+	 * 
+	 * @param hashLow
+	 *            low 64 bits of the item's hash
+	 * @param hashHigh
+	 *            high 64 bits of the item's hash
+	 * @return {@code true} if the cuckoo filter deleted this item successfully.
+	 *         Returns {@code false} if the item was not found.
+	 */
+	public boolean deleteHash(long hashLow, long hashHigh) {
+		BucketAndTag pos = hasher.generateFromHash(hashLow, hashHigh);
+		return deleteTag(pos.index, pos.tag);
+	}
+
+	private boolean deleteTag(long i1, long tag) {
+		checkOpen();
+		long i2 = hasher.altIndex(i1, tag);
+		long victimLockStamp = writeLockVictimIfRewriting();
 		bucketLocker.lockBucketsWrite(i1, i2);
 		boolean deleteSuccess = false;
 		try {
-			if (table.deleteFromBucket(i1, pos.tag) || table.deleteFromBucket(i2, pos.tag))
+			if (table.deleteFromBucket(i1, tag) || table.deleteFromBucket(i2, tag))
 				deleteSuccess = true;
 		} finally {
 			bucketLocker.unlockBucketsWrite(i1, i2);
+			unlockVictimIfRewriting(victimLockStamp);
 		}
 		// try to insert the victim again if we were able to delete an item
 		if (deleteSuccess) {
@@ -731,16 +1735,17 @@ public final class CuckooFilter<T> implements Serializable {
 			insertIfVictim();// might as well try to insert again
 			return true;
 		}
-		// if delete failed but we have a victim, check if the item we're trying
-		// to delete IS actually the victim
-		long victimLockStamp = writeLockVictimIfSet();
+		// if delete failed but we have victims, check if the item we're trying
+		// to delete IS actually one of them
+		victimLockStamp = writeLockVictimIfSet();
 		if (victimLockStamp == 0L)
 			return false;
 		else {
 			try {
 				// check victim match
-				if (victim.getTag() == pos.tag && (victim.getI1() == pos.index || victim.getI2() == pos.index)) {
-					hasVictim = false;
+				int pos = victims.find(i1, tag);
+				if (pos >= 0) {
+					victims.remove(pos);
 					count.decrementAndGet();
 					return true;
 				} else
@@ -755,7 +1760,7 @@ public final class CuckooFilter<T> implements Serializable {
 		// default deserialization
 		ois.defaultReadObject();
 		// not serializable so we rebuild here
-		bucketLocker = new SegmentedBucketLocker(expectedConcurrency);
+		bucketLocker = newBucketLocker();
 	}
 
 	@Override
@@ -768,15 +1773,8 @@ public final class CuckooFilter<T> implements Serializable {
 			victimLock.readLock();
 			bucketLocker.lockAllBucketsRead();
 			try {
-				if (hasVictim) {
-					// only compare victim if set, victim is sometimes stale
-					// since we use bool flag to determine if set or not
-					return this.hasher.equals(that.hasher) && this.table.equals(that.table)
-							&& this.count.get() == that.count.get() && this.hasVictim == that.hasVictim
-							&& victim.equals(that.victim);
-				}
 				return this.hasher.equals(that.hasher) && this.table.equals(that.table)
-						&& this.count.get() == that.count.get() && this.hasVictim == that.hasVictim;
+						&& this.count.get() == that.count.get() && this.victims.equals(that.victims);
 			} finally {
 				bucketLocker.unlockAllBucketsRead();
 				victimLock.tryUnlockRead();
@@ -790,10 +1788,7 @@ public final class CuckooFilter<T> implements Serializable {
 		victimLock.readLock();
 		bucketLocker.lockAllBucketsRead();
 		try {
-			if (hasVictim) {
-				return Objects.hash(hasher, table, count.get(), victim);
-			}
-			return Objects.hash(hasher, table, count.get());
+			return Objects.hash(hasher, table, count.get(), victims);
 		} finally {
 			bucketLocker.unlockAllBucketsRead();
 			victimLock.tryUnlockRead();
@@ -810,15 +1805,83 @@ public final class CuckooFilter<T> implements Serializable {
 	 * @return a copy of the filter
 	 */
 	public CuckooFilter<T> copy() {
+		checkOpen();
 		victimLock.readLock();
 		bucketLocker.lockAllBucketsRead();
 		try {
-			return new CuckooFilter<>(hasher.copy(), table.copy(), count, hasVictim, victim.copy(),
-					expectedConcurrency);
+			return new CuckooFilter<>(hasher.copy(), table.copy(), new AtomicLong(count.get()), victims.copy(),
+					expectedConcurrency, singleWriter);
 		} finally {
 			bucketLocker.unlockAllBucketsRead();
 			victimLock.tryUnlockRead();
 		}
 	}
 
+	/**
+	 * Writes all changes to a memory mapped filter out to disk (msync), along
+	 * with the current count. Does nothing for filters that aren't stored in a
+	 * file.
+	 */
+	public void flush() {
+		checkOpen();
+		if (mappedFile == null)
+			return;
+		victimLock.readLock();
+		bucketLocker.lockAllBucketsRead();
+		try {
+			mappedFile.writeState(count.get(), victims);
+		} finally {
+			bucketLocker.unlockAllBucketsRead();
+			victimLock.tryUnlockRead();
+		}
+		// no need to hold up other threads while the OS writes pages
+		mappedFile.force();
+	}
+
+	private void checkOpen() {
+		checkState(!closed, "filter is closed");
+	}
+
+	/**
+	 * Releases memory held outside of the Java heap by off-heap filters, or
+	 * flushes and unmaps memory mapped filters. Any operation on the filter
+	 * after it's closed throws {@code IllegalStateException}, closing it again
+	 * does nothing.
+	 * <p>
+	 * Writes in progress are waited for, but lookups aren't: they read the
+	 * table without locking until a writer gets in the way, and never lock at
+	 * all in single writer mode. An off-heap or mapped filter must not be
+	 * closed while lookups may still be running, they could read memory that
+	 * has already been released.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if a mapped filter's file fails to close
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		// stop new operations before waiting on the ones already holding locks
+		closed = true;
+		long victimLockStamp = victimLock.writeLock();
+		bucketLocker.lockAllBucketsWrite();
+		try {
+			if (mappedFile != null) {
+				mappedFile.writeState(count.get(), victims);
+				mappedFile.force();
+			}
+			table.free();
+			if (mappedFile != null) {
+				MappedFilterFile toClose = mappedFile;
+				mappedFile = null;
+				toClose.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			bucketLocker.unlockAllBucketsWrite();
+			victimLock.unlock(victimLockStamp);
+		}
+	}
+
 }
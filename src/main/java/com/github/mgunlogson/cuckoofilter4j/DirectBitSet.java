@@ -0,0 +1,274 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bit storage kept outside of the Java heap in direct {@code ByteBuffer}
+ * segments, so giant filters don't add to GC marking work. A single buffer
+ * can't hold more than 2GB so the bits are split into fixed size segments.
+ * Words are always little endian so the layout is the same on every platform.
+ * <p>
+ * The memory is released by {@link #free()}, or when the buffers are garbage
+ * collected if it's never called. Serialization copies the bits, the copy is
+ * allocated in direct memory again when read back.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class DirectBitSet extends BitStorage {
+	private static final long serialVersionUID = 6035916421805398762L;
+	// 1GB segments, a power of 2 so finding a word's segment is a shift
+	static final int SEGMENT_SHIFT = 30;
+	private static final int WORDS_PER_SEGMENT_SHIFT = SEGMENT_SHIFT - 3;
+	private static final long WORD_IN_SEGMENT_MASK = (1L << WORDS_PER_SEGMENT_SHIFT) - 1;
+
+	private transient ByteBuffer[] segments;
+	private transient long numBits;
+
+	/**
+	 * Allocates zeroed direct memory for {@code numBits} bits.
+	 */
+	DirectBitSet(long numBits) {
+		this(allocateSegments(numBits), numBits);
+	}
+
+	/**
+	 * Wraps existing segments. Every segment but the last must be exactly
+	 * {@code 1 << SEGMENT_SHIFT} bytes.
+	 */
+	DirectBitSet(ByteBuffer[] segments, long numBits) {
+		checkArgument(numBits > 0, "numBits (%s) must be > 0", numBits);
+		this.segments = segments;
+		this.numBits = numBits;
+	}
+
+	private static ByteBuffer[] allocateSegments(long numBits) {
+		checkArgument(numBits > 0, "numBits (%s) must be > 0", numBits);
+		long numBytes = bits2bytes(numBits);
+		ByteBuffer[] segments = new ByteBuffer[(int) ((numBytes - 1) >>> SEGMENT_SHIFT) + 1];
+		for (int i = 0; i < segments.length; i++) {
+			long remaining = numBytes - ((long) i << SEGMENT_SHIFT);
+			int size = (int) Math.min(remaining, 1L << SEGMENT_SHIFT);
+			// direct buffers are zeroed on allocation
+			segments[i] = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return segments;
+	}
+
+	/** number of bytes needed to hold numBits in whole words */
+	static long bits2bytes(long numBits) {
+		return (((numBits - 1) >>> 6) + 1) << 3;
+	}
+
+	private long getWord(long wordNum) {
+		return segments[(int) (wordNum >>> WORDS_PER_SEGMENT_SHIFT)]
+				.getLong((int) (wordNum & WORD_IN_SEGMENT_MASK) << 3);
+	}
+
+	private void setWord(long wordNum, long word) {
+		segments[(int) (wordNum >>> WORDS_PER_SEGMENT_SHIFT)].putLong((int) (wordNum & WORD_IN_SEGMENT_MASK) << 3,
+				word);
+	}
+
+	@Override
+	long length() {
+		return numBits;
+	}
+
+	@Override
+	long getBitRange(long startIndex, int numBits) {
+		assert numBits > 0 && numBits <= 64 : "numBits=" + numBits;
+		assert startIndex >= 0 && startIndex + numBits <= this.numBits : "startIndex=" + startIndex + ", numBits="
+				+ this.numBits;
+		long wordNum = startIndex >>> 6;
+		int shift = (int) (startIndex & 0x3f);
+		long mask = -1L >>> -numBits;
+		long value = getWord(wordNum) >>> shift;
+		if (shift + numBits > 64) {
+			// range spills over into the next word
+			value |= getWord(wordNum + 1) << -shift;
+		}
+		return value & mask;
+	}
+
+	@Override
+	void setBitRange(long startIndex, int numBits, long value) {
+		assert numBits > 0 && numBits <= 64 : "numBits=" + numBits;
+		assert startIndex >= 0 && startIndex + numBits <= this.numBits : "startIndex=" + startIndex + ", numBits="
+				+ this.numBits;
+		long wordNum = startIndex >>> 6;
+		int shift = (int) (startIndex & 0x3f);
+		long mask = -1L >>> -numBits;
+		value &= mask;
+		setWord(wordNum, (getWord(wordNum) & ~(mask << shift)) | (value << shift));
+		if (shift + numBits > 64) {
+			// range spills over into the next word
+			int spilled = -shift & 0x3f;
+			setWord(wordNum + 1, (getWord(wordNum + 1) & ~(mask >>> spilled)) | (value >>> spilled));
+		}
+	}
+
+	@Override
+	long getAndSetBitRange(long startIndex, int numBits, long value) {
+		long old = getBitRange(startIndex, numBits);
+		setBitRange(startIndex, numBits, value);
+		return old;
+	}
+
+	private long numWords() {
+		return ((numBits - 1) >>> 6) + 1;
+	}
+
+	@Override
+	void free() {
+		ByteBuffer[] toFree = segments;
+		// anything touching the storage after this fails instead of reading
+		// freed memory
+		segments = null;
+		if (toFree != null) {
+			for (ByteBuffer segment : toFree) {
+				Cleaner.clean(segment);
+			}
+		}
+	}
+
+	@Override
+	public DirectBitSet clone() {
+		DirectBitSet copy = new DirectBitSet(numBits);
+		for (int i = 0; i < segments.length; i++) {
+			ByteBuffer src = segments[i].duplicate();
+			src.clear();
+			copy.segments[i].duplicate().put(src);
+		}
+		return copy;
+	}
+
+	/** returns true if both sets have the same bits set */
+	@Override
+	public boolean equals(@Nullable Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof DirectBitSet)) {
+			return false;
+		}
+		DirectBitSet other = (DirectBitSet) o;
+		if (numBits != other.numBits) {
+			return false;
+		}
+		for (long i = numWords(); --i >= 0;) {
+			if (getWord(i) != other.getWord(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		// same as LongBitSet
+		long h = 0;
+		for (long i = numWords(); --i >= 0;) {
+			h ^= getWord(i);
+			h = (h << 1) | (h >>> 63); // rotate left
+		}
+		return (int) ((h >> 32) ^ h) + 0x98761234;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeLong(numBits);
+		long numWords = numWords();
+		for (long i = 0; i < numWords; i++) {
+			out.writeLong(getWord(i));
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		numBits = in.readLong();
+		segments = allocateSegments(numBits);
+		long numWords = numWords();
+		for (long i = 0; i < numWords; i++) {
+			setWord(i, in.readLong());
+		}
+	}
+
+	/**
+	 * Frees direct and mapped buffers right away instead of waiting for GC.
+	 * There's no public API for this so we go through reflection: Java 9+ has
+	 * {@code Unsafe#invokeCleaner(ByteBuffer)}, Java 7/8 buffers have a
+	 * {@code cleaner()} method. If neither works the buffer is left to the GC.
+	 */
+	static final class Cleaner {
+		@Nullable
+		private static final Object UNSAFE;
+		@Nullable
+		private static final Method INVOKE_CLEANER;
+
+		static {
+			Object unsafe = null;
+			Method invokeCleaner = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+			} catch (Exception e) {
+				// pre Java 9, use the buffer's cleaner instead
+				invokeCleaner = null;
+			}
+			UNSAFE = unsafe;
+			INVOKE_CLEANER = invokeCleaner;
+		}
+
+		private Cleaner() {
+		}
+
+		static void clean(ByteBuffer buffer) {
+			if (!buffer.isDirect())
+				return;
+			try {
+				if (INVOKE_CLEANER != null) {
+					INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				} else {
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner != null) {
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+					}
+				}
+			} catch (Exception e) {
+				// nothing else we can do, GC will get it eventually
+			}
+		}
+	}
+
+}
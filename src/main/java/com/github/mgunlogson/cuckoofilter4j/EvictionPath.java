@@ -0,0 +1,149 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.Arrays;
+
+/**
+ * Breadth first search for the shortest chain of tag moves that frees a slot
+ * in one of two full buckets, the same idea as libcuckoo's cuckoo path search.
+ * A random walk may need hundreds of kicks when the table is nearly full, the
+ * shortest path is usually only a few moves long.
+ * <p>
+ * The search only reads the table and takes no locks, so what it finds is a
+ * guess. Each move has to be checked again under the bucket locks when it's
+ * carried out, see {@code CuckooFilter#tryInsertAlongPath}.
+ * <p>
+ * Every node is a bucket, reached by moving {@link #getTag(int)} out of its
+ * parent bucket to its alternate. Roots are the two buckets of the tag being
+ * inserted. Not thread safe, use one per insert.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class EvictionPath {
+	/**
+	 * Most moves in a path. libcuckoo uses the same limit, longer paths are
+	 * left to the random walk.
+	 */
+	static final int MAX_LENGTH = 5;
+	/**
+	 * Most slots read in one search, the same budget as the random walk has
+	 * kicks.
+	 */
+	static final int MAX_SLOTS = CuckooFilter.INSERT_ATTEMPTS;
+	private static final int NO_PARENT = -1;
+
+	private long[] buckets = new long[16];
+	private long[] tags = new long[16];
+	private int[] parents = new int[16];
+	private int size;
+	private int end = NO_PARENT;
+
+	/**
+	 * Searches for a bucket with a free slot that can be reached from i1 or i2
+	 * by moving tags to their alternate buckets.
+	 *
+	 * @return true if a path was found, its last node is {@link #getEnd()}
+	 */
+	boolean search(FilterTable table, IndexTagCalc<?> hasher, long i1, long i2) {
+		size = 0;
+		end = NO_PARENT;
+		add(i1, 0, NO_PARENT);
+		if (i2 != i1)
+			add(i2, 0, NO_PARENT);
+		int slotsRead = 0;
+		int levelStart = 0;
+		for (int length = 1; length <= MAX_LENGTH; length++) {
+			int levelEnd = size;
+			for (int node = levelStart; node < levelEnd; node++) {
+				long bucket = buckets[node];
+				for (int pos = 0; pos < table.bucketSize; pos++) {
+					if (++slotsRead > MAX_SLOTS)
+						return false;
+					long tag = table.readTag(bucket, pos);
+					if (tag == 0)
+						// emptied since we looked, a retry will take it
+						continue;
+					long altIndex = hasher.altIndex(bucket, tag);
+					if (altIndex == bucket)
+						continue;
+					int child = add(altIndex, tag, node);
+					if (table.countEmpty(altIndex) > 0) {
+						end = child;
+						return true;
+					}
+				}
+			}
+			levelStart = levelEnd;
+		}
+		return false;
+	}
+
+	private int add(long bucket, long tag, int parent) {
+		if (size == buckets.length) {
+			buckets = Arrays.copyOf(buckets, size * 2);
+			tags = Arrays.copyOf(tags, size * 2);
+			parents = Arrays.copyOf(parents, size * 2);
+		}
+		buckets[size] = bucket;
+		tags[size] = tag;
+		parents[size] = parent;
+		return size++;
+	}
+
+	/**
+	 * Last node of the path found, the bucket with a free slot.
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the parent node, or -1 if the node is one of the roots
+	 */
+	int getParent(int node) {
+		return parents[node];
+	}
+
+	boolean isRoot(int node) {
+		return parents[node] == NO_PARENT;
+	}
+
+	long getBucket(int node) {
+		return buckets[node];
+	}
+
+	/**
+	 * Tag moved from the parent's bucket into this node's bucket.
+	 */
+	long getTag(int node) {
+		return tags[node];
+	}
+
+	/**
+	 * Number of moves in the path found.
+	 */
+	int length() {
+		int length = 0;
+		for (int node = end; !isRoot(node); node = parents[node]) {
+			length++;
+		}
+		return length;
+	}
+
+}
@@ -17,73 +17,131 @@
 package com.github.mgunlogson.cuckoofilter4j;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Serializable;
-import java.util.Objects;
-import java.util.concurrent.ThreadLocalRandom;
-
-
-import javax.annotation.Nullable;
 
 import com.google.common.math.IntMath;
 import com.google.common.math.LongMath;
 
 /**
- * This class represents the link to access methods on the underlying BitSet.
- * 
+ * This class represents the link to access methods on the underlying memory
+ * table. The layout of the memory is up to the implementation,
+ * {@code #create(int, long, BitStorage.Allocator)} picks the fastest one for
+ * the tag size. Common tag sizes get aligned array backed tables on the heap
+ * and everything else uses a bit packed {@code BitStorage}.
+ *
+ * NOTE: for speed, implementations don't check for inserts into invalid
+ * bucket indexes or bucket positions!
+ *
  * @author Mark Gunlogson
  *
  */
-final class FilterTable implements Serializable {
+abstract class FilterTable implements Serializable {
 	private static final long serialVersionUID = 4172048932165857538L;
-	/*
-	 * NOTE: Google's Guava library uses a custom BitSet implementation that
-	 * looks to be adapted from the Lucene project. Guava project notes show
-	 * this seems to be done for faster serialization and support for
-	 * longs(giant filters). We just use the Lucene LongBitSet directly to make
-	 * updates easier.
-	 * 
-	 * NOTE: for speed, we don't check for inserts into invalid bucket indexes
-	 * or bucket positions!
-	 */
-	private final LongBitSet memBlock;
 
-	private final int bitsPerTag;
+	final int bitsPerTag;
 
-	private final long numBuckets;
+	final long numBuckets;
 
-	private FilterTable(LongBitSet memBlock, int bitsPerTag, long numBuckets) {
+	final int bucketSize;
+
+	FilterTable(int bitsPerTag, long numBuckets, int bucketSize) {
 		this.bitsPerTag = bitsPerTag;
-		this.memBlock = memBlock;
 		this.numBuckets = numBuckets;
+		this.bucketSize = bucketSize;
+	}
+
+	/**
+	 * Creates a FilterTable on the heap with the default bucket size
+	 */
+	static FilterTable create(int bitsPerTag, long numBuckets) {
+		return create(bitsPerTag, numBuckets, CuckooFilter.DEFAULT_BUCKET_SIZE, BitStorage.HEAP);
 	}
 
 	/**
 	 * Creates a FilterTable
-	 * 
+	 *
 	 * @param bitsPerTag
 	 *            number of bits needed for each tag
 	 * @param numBuckets
 	 *            number of buckets in filter
+	 * @param bucketSize
+	 *            number of tags in each bucket, 2, 4, or 8
+	 * @param allocator
+	 *            allocates the storage for bit packed tables, the aligned
+	 *            layouts are only used on the heap
 	 * @return
 	 */
-	static FilterTable create(int bitsPerTag, long numBuckets) {
+	static FilterTable create(int bitsPerTag, long numBuckets, int bucketSize, BitStorage.Allocator allocator) {
+		checkNotNull(allocator);
 		// why would this ever happen?
 		checkArgument(bitsPerTag < 48, "tagBits (%s) should be less than 48 bits", bitsPerTag);
 		// shorter fingerprints don't give us a good fill capacity
 		checkArgument(bitsPerTag > 4, "tagBits (%s) must be > 4", bitsPerTag);
 		checkArgument(numBuckets > 1, "numBuckets (%s) must be > 1", numBuckets);
+		checkArgument(Utils.isValidBucketSize(bucketSize), "bucketSize (%s) must be 2, 4, or 8", bucketSize);
 		// checked so our implementors don't get too.... "enthusiastic" with
 		// table size
-		long bitsPerBucket = IntMath.checkedMultiply(CuckooFilter.BUCKET_SIZE, bitsPerTag);
+		long bitsPerBucket = IntMath.checkedMultiply(bucketSize, bitsPerTag);
 		long bitSetSize = LongMath.checkedMultiply(bitsPerBucket, numBuckets);
-		LongBitSet memBlock = new LongBitSet(bitSetSize);
-		return new FilterTable(memBlock, bitsPerTag, numBuckets);
+		// aligned layouts for the common tag sizes, as long as they fit in a
+		// single java array
+		if (allocator == BitStorage.HEAP) {
+			switch (bitsPerTag) {
+			case 8:
+				if (ByteFilterTable.canHold(numBuckets, bucketSize))
+					return new ByteFilterTable(numBuckets, bucketSize);
+				break;
+			case 12:
+				if (Bucket48FilterTable.canHold(numBuckets, bucketSize))
+					return new Bucket48FilterTable(numBuckets);
+				break;
+			case 16:
+				if (ShortFilterTable.canHold(numBuckets, bucketSize))
+					return new ShortFilterTable(numBuckets, bucketSize);
+				break;
+			default:
+			}
+		}
+		return new PackedFilterTable(allocator.allocate(bitSetSize), bitsPerTag, numBuckets, bucketSize);
+	}
+
+	/**
+	 * Reads the tag at a bucket position.
+	 */
+	abstract long readTag(long bucketIndex, int posInBucket);
+
+	/**
+	 * Writes a tag to a bucket position, overwriting whatever was there.
+	 */
+	abstract void writeTag(long bucketIndex, int posInBucket, long tag);
+
+	/**
+	 * Gets the size of the memory used for the table, in bits
+	 */
+	abstract long getStorageSize();
+
+	abstract FilterTable copy();
+
+	/**
+	 * Releases any memory the table holds outside of the Java heap. The table
+	 * must not be used afterwards.
+	 */
+	void free() {
+	}
+
+	/**
+	 * True if changing one tag rewrites the others in its bucket, so a reader
+	 * that doesn't lock can miss tags that weren't changed at all.
+	 */
+	boolean rewritesBuckets() {
+		return false;
 	}
 
 	/**
 	 * inserts a tag into an empty position in the chosen bucket.
-	 * 
+	 *
 	 * @param bucketIndex
 	 *            index
 	 * @param tag
@@ -91,8 +149,7 @@ final class FilterTable implements Serializable {
 	 * @return true if insert succeeded(bucket not full)
 	 */
 	boolean insertToBucket(long bucketIndex, long tag) {
-
-		for (int i = 0; i < CuckooFilter.BUCKET_SIZE; i++) {
+		for (int i = 0; i < bucketSize; i++) {
 			if (checkTag(bucketIndex, i, 0)) {
 				writeTagNoClear(bucketIndex, i, tag);
 				return true;
@@ -102,23 +159,34 @@ final class FilterTable implements Serializable {
 	}
 
 	/**
-	 * Replaces a tag in a random position in the given bucket and returns the
-	 * tag that was replaced.
-	 * 
-	 * @param curIndex
-	 *            bucket index
-	 * @param tag
-	 *            tag
-	 * @return the replaced tag
+	 * Inserts a tag into whichever of its two buckets has more empty slots,
+	 * the first one on a tie. Always trying the first bucket first fills it
+	 * well before the second, keeping the pair balanced means both run out of
+	 * room later and the cuckoo loop starts later.
+	 *
+	 * @return true if insert succeeded(at least one bucket not full)
 	 */
-	long swapRandomTagInBucket(long curIndex, long tag) {
-		int randomBucketPosition = ThreadLocalRandom.current().nextInt(CuckooFilter.BUCKET_SIZE);
-		return readTagAndSet(curIndex, randomBucketPosition, tag);
+	boolean insertToEmptierBucket(long i1, long i2, long tag) {
+		if (countEmpty(i2) > countEmpty(i1))
+			return insertToBucket(i2, tag);
+		return insertToBucket(i1, tag) || insertToBucket(i2, tag);
+	}
+
+	/**
+	 * Counts the empty slots in a bucket.
+	 */
+	int countEmpty(long bucketIndex) {
+		int empty = 0;
+		for (int i = 0; i < bucketSize; i++) {
+			if (checkTag(bucketIndex, i, 0))
+				empty++;
+		}
+		return empty;
 	}
 
 	/**
 	 * Finds a tag if present in two buckets.
-	 * 
+	 *
 	 * @param i1
 	 *            first bucket index
 	 * @param i2
@@ -128,22 +196,16 @@ final class FilterTable implements Serializable {
 	 * @return true if tag found in one of the buckets
 	 */
 	boolean findTag(long i1, long i2, long tag) {
-		for (int i = 0; i < CuckooFilter.BUCKET_SIZE; i++) {
+		for (int i = 0; i < bucketSize; i++) {
 			if (checkTag(i1, i, tag) || checkTag(i2, i, tag))
 				return true;
 		}
 		return false;
 	}
 
-	long getStorageSize() {
-		// NOTE: checked source in current Lucene LongBitSet class for thread
-		// safety, make sure it stays this way if you update the class.
-		return memBlock.length();
-	}
-
 	/**
 	 * Deletes an item from the table if it is found in the bucket
-	 * 
+	 *
 	 * @param i1
 	 *            bucket index
 	 * @param tag
@@ -151,7 +213,7 @@ final class FilterTable implements Serializable {
 	 * @return true if item was deleted
 	 */
 	boolean deleteFromBucket(long i1, long tag) {
-		for (int i = 0; i < CuckooFilter.BUCKET_SIZE; i++) {
+		for (int i = 0; i < bucketSize; i++) {
 			if (checkTag(i1, i, tag)) {
 				deleteTag(i1, i);
 				return true;
@@ -160,58 +222,22 @@ final class FilterTable implements Serializable {
 		return false;
 	}
 
-	/**
-	 * Works but currently only used for testing
-	 */
-	long readTag(long bucketIndex, int posInBucket) {
-		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
-		long tag = 0;
-		long tagEndIdx = tagStartIdx + bitsPerTag;
-		// looping over true bits per nextBitSet javadocs
-		for (long i = memBlock.nextSetBit(tagStartIdx); i >= 0 && i < tagEndIdx; i = memBlock.nextSetBit(i + 1L)) {
-			// set corresponding bit in tag
-			tag |= 1 << (i - tagStartIdx);
-		}
-		return tag;
-	}
-
 	/**
 	 * Reads a tag and sets the bits to a new tag at same time for max
 	 * speedification
 	 */
 	long readTagAndSet(long bucketIndex, int posInBucket, long newTag) {
-		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
-		long tag = 0;
-		long tagEndIdx = tagStartIdx + bitsPerTag;
-		int tagPos = 0;
-		for (long i = tagStartIdx; i < tagEndIdx; i++) {
-			if ((newTag & (1L << tagPos)) != 0) {
-				if (memBlock.getAndSet(i)) {
-					tag |= 1 << tagPos;
-				}
-			} else {
-				if (memBlock.getAndClear(i)) {
-					tag |= 1 << tagPos;
-				}
-			}
-			tagPos++;
-		}
+		long tag = readTag(bucketIndex, posInBucket);
+		writeTag(bucketIndex, posInBucket, newTag);
 		return tag;
 	}
 
 	/**
 	 * Check if a tag in a given position in a bucket matches the tag you passed
-	 * it. Faster than regular read because it stops checking if it finds a
-	 * non-matching bit.
+	 * it.
 	 */
 	boolean checkTag(long bucketIndex, int posInBucket, long tag) {
-		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
-		final int bityPerTag = bitsPerTag;
-		for (long i = 0; i < bityPerTag; i++) {
-			if (memBlock.get(i + tagStartIdx) != ((tag & (1L << i)) != 0))
-				return false;
-		}
-		return true;
+		return readTag(bucketIndex, posInBucket) == tag;
 	}
 
 	/**
@@ -220,7 +246,7 @@ final class FilterTable implements Serializable {
 	 */
 	int countTag(long i1, long i2, long tag) {
 		int tagCount = 0;
-		for (int posInBucket = 0; posInBucket < CuckooFilter.BUCKET_SIZE; posInBucket++) {
+		for (int posInBucket = 0; posInBucket < bucketSize; posInBucket++) {
 			if (checkTag(i1, posInBucket, tag))
 				tagCount++;
 			if (checkTag(i2, posInBucket, tag))
@@ -230,64 +256,22 @@ final class FilterTable implements Serializable {
 	}
 
 	/**
-	 * Writes a tag to a bucket position. Faster than regular write because it
-	 * assumes tag starts with all zeros, but doesn't work properly if the
-	 * position wasn't empty.
+	 * Writes a tag to a bucket position. Kept separate from
+	 * {@code #readTagAndSet(long, int, long)} since the caller already knows
+	 * the position is empty and doesn't need the old value.
 	 */
 	void writeTagNoClear(long bucketIndex, int posInBucket, long tag) {
-		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
-		// BIT BANGIN YEAAAARRHHHGGGHHH
-		for (int i = 0; i < bitsPerTag; i++) {
-			// second arg just does bit test in tag
-			if ((tag & (1L << i)) != 0) {
-				memBlock.set(tagStartIdx + i);
-			}
-		}
+		writeTag(bucketIndex, posInBucket, tag);
 	}
 
-
 	/**
 	 *  Deletes (clears) a tag at a specific bucket index and position
-	 * 
+	 *
 	 * @param bucketIndex bucket index
 	 * @param posInBucket position in bucket
 	 */
 	void deleteTag(long bucketIndex, int posInBucket) {
-		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
-		memBlock.clear(tagStartIdx, tagStartIdx + bitsPerTag);
-	}
-
-	/**
-	 *  Finds the bit offset in the bitset for a tag
-	 * 
-	 * @param bucketIndex  the bucket index
-	 * @param posInBucket  position in bucket
-	 * @return
-	 */
-	private long getTagOffset(long bucketIndex, int posInBucket) {
-		return (bucketIndex * CuckooFilter.BUCKET_SIZE * bitsPerTag) + (posInBucket * bitsPerTag);
-	}
-
-	@Override
-	public boolean equals(@Nullable Object object) {
-		if (object == this) {
-			return true;
-		}
-		if (object instanceof FilterTable) {
-			FilterTable that = (FilterTable) object;
-			return this.bitsPerTag == that.bitsPerTag && this.memBlock.equals(that.memBlock)
-					&& this.numBuckets == that.numBuckets;
-		}
-		return false;
-	}
-
-	@Override
-	public int hashCode() {
-		return Objects.hash(bitsPerTag, memBlock, numBuckets);
-	}
-
-	public FilterTable copy() {
-		return new FilterTable(memBlock.clone(), bitsPerTag, numBuckets);
+		writeTag(bucketIndex, posInBucket, 0L);
 	}
 
 }
@@ -19,27 +19,32 @@ package com.github.mgunlogson.cuckoofilter4j;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import javax.annotation.Nullable;
 
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
 import com.google.common.hash.Funnel;
-import com.google.common.hash.HashCode;
+import com.google.common.hash.xxHashFunction;
 import com.google.common.primitives.Longs;
 
 /**
  * Hopefully keeping this class as simple as possible will allow JVM to prevent
- * allocating these entirely.
+ * allocating these entirely. The filter's hot paths don't count on it, they
+ * reuse one instance per thread, see
+ * {@code IndexTagCalc#generateReused(Object)}.
  * 
  * @author Mark Gunlogson
  *
  */
 final class BucketAndTag {
 
-	final long index;
-	final long tag;
+	long index;
+	long tag;
 
 	BucketAndTag(long bucketIndex, long tag) {
 		this.index = bucketIndex;
@@ -62,11 +67,11 @@ final class IndexTagCalc<T> implements Serializable {
 	private final long numBuckets;
 	private final int tagBits;
 	private final int hashLength;
+	// result holder for generateReused(), one per thread
+	private transient ThreadLocal<BucketAndTag> reusedResult = newReusedResult();
 
 	IndexTagCalc(SerializableSaltedHasher<T> hasher, long numBuckets, int tagBits) {
 		checkNotNull(hasher);
-		checkArgument((numBuckets & -numBuckets) == numBuckets, "Number of buckets (%s) must be a power of two",
-				numBuckets);
 		checkArgument(tagBits > 0, "Number of tag bits (%s) must be positive", tagBits);
 		// no matter the hash function we use index and tag are always longs.
 		// So, make sure user didn't choose obscenely large fingerprints
@@ -80,6 +85,22 @@ final class IndexTagCalc<T> implements Serializable {
 				"Unsupported Hash Configuration! Hash must be 32, 64, or more than 128 bits and index and tag must fit within hash size. Make table smaller, or use a longer hash.");
 	}
 
+	private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+		// default deserialization
+		ois.defaultReadObject();
+		// not serializable so we rebuild here
+		reusedResult = newReusedResult();
+	}
+
+	private static ThreadLocal<BucketAndTag> newReusedResult() {
+		return new ThreadLocal<BucketAndTag>() {
+			@Override
+			protected BucketAndTag initialValue() {
+				return new BucketAndTag(0, 0);
+			}
+		};
+	}
+
 	static <T> IndexTagCalc<T> create(Algorithm hasherAlg, Funnel<? super T> funnel, long numBuckets, int tagBits) {
 		SerializableSaltedHasher<T> hasher = SerializableSaltedHasher.create(hasherAlg, funnel);
 		return new IndexTagCalc<>(hasher, numBuckets, tagBits);
@@ -94,6 +115,14 @@ final class IndexTagCalc<T> implements Serializable {
 		return numBuckets;
 	}
 
+	int getTagBits() {
+		return tagBits;
+	}
+
+	SerializableSaltedHasher<T> getHasher() {
+		return hasher;
+	}
+
 	private static int getTotalBitsNeeded(long numBuckets, int tagBits) {
 		return getIndexBitsUsed(numBuckets) + tagBits;
 	}
@@ -134,6 +163,19 @@ final class IndexTagCalc<T> implements Serializable {
 	 * 
 	 */
 	BucketAndTag generate(T item) {
+		return generate(item, new BucketAndTag(0, 0));
+	}
+
+	/**
+	 * Same as {@code #generate(Object)} but returns an instance that's reused
+	 * by every call on the current thread, so nothing is allocated for
+	 * xxHash64 filters. Read the fields right away, before the next call.
+	 */
+	BucketAndTag generateReused(T item) {
+		return generate(item, reusedResult.get());
+	}
+
+	private BucketAndTag generate(T item, BucketAndTag result) {
 		/*
 		 * How do we get tag and bucketIndex from a single 32 bit hash? Max
 		 * filter size is constrained to 32 bits of bits (by BitSet) So, the bit
@@ -143,43 +185,132 @@ final class IndexTagCalc<T> implements Serializable {
 		 */
 		long tag = 0;
 		long bucketIndex = 0;
-		HashCode code = hasher.hashObj(item);
 		// 32 bit hash
-//		if (hashLength == 32) {
-//			int hashVal = code.asInt();
-//			bucketIndex = getBucketIndex32(hashVal);
-//			// loop until tag isn't equal to empty bucket (0)
-//			tag = getTagValue32(hashVal);
-//			for (int salt = 1; tag == 0; salt++) {
-//				hashVal = hasher.hashObjWithSalt(item, salt).asInt();
-//				tag = getTagValue32(hashVal);
-//				assert salt < 100;// shouldn't happen in our timeline
-//			}
-//		} else 
-		if (hashLength == 64) {//TODO fix hashLength 32 not 64
-			long hashVal = code.asLong();
+		if (hashLength == 32) {
+			int hashVal = (int) hasher.hashObjAsLong(item);
+			bucketIndex = getBucketIndex32(hashVal);
+			// loop until tag isn't equal to empty bucket (0)
+			tag = getTagValue32(hashVal);
+			for (int salt = 1; tag == 0; salt++) {
+				hashVal = (int) hasher.hashObjWithSaltAsLong(item, salt);
+				tag = getTagValue32(hashVal);
+				assert salt < 100;// shouldn't happen in our timeline
+			}
+		} else if (hashLength == 64) {
+			long hashVal = hasher.hashObjAsLong(item);
 			bucketIndex = getBucketIndex64(hashVal);
 			// loop until tag isn't equal to empty bucket (0)
 			tag = getTagValue64(hashVal);
 			for (int salt = 1; tag == 0; salt++) {
-				hashVal = hasher.hashObjWithSalt(item, salt).asLong();
+				hashVal = hasher.hashObjWithSaltAsLong(item, salt);
 				tag = getTagValue64(hashVal);
 				assert salt < 100;// shouldn't happen in our timeline
 			}
 		}
 		// >=128
 		else {
-			byte[] hashVal = code.asBytes();
-			bucketIndex = getBucketIndex64(longFromLowBytes(hashVal));
+			/*
+			 * tag from the first 8 bytes of the hash and index from the next 8,
+			 * both big endian. The hash's first long is little endian so it's
+			 * byte swapped, the salted retries only need the tag.
+			 */
+			if (hasher.hasWideLongHash()) {
+				// both halves straight from the reused hasher, no copying
+				tag = getTagValue64(Long.reverseBytes(hasher.hashObjAsLong(item)));
+				bucketIndex = getBucketIndex64(Long.reverseBytes(hasher.lastHashHighAsLong()));
+			} else {
+				byte[] hashVal = hasher.hashObj(item).asBytes();
+				bucketIndex = getBucketIndex64(longFromLowBytes(hashVal));
+				tag = getTagValue64(longFromHighBytes(hashVal));
+			}
 			// loop until tag isn't equal to empty bucket (0)
-			tag = getTagValue64(longFromHighBytes(hashVal));
 			for (int salt = 1; tag == 0; salt++) {
-				hashVal = hasher.hashObjWithSalt(item, salt).asBytes();
-				tag = getTagValue64(longFromHighBytes(hashVal));
+				tag = getTagValue64(Long.reverseBytes(hasher.hashObjWithSaltAsLong(item, salt)));
 				assert salt < 100;// shouldn't happen in our timeline
 			}
 		}
-		return new BucketAndTag(bucketIndex, tag);
+		result.index = bucketIndex;
+		result.tag = tag;
+		return result;
+	}
+
+	/**
+	 * Hashes a primitive key for {@code LongCuckooFilter} and
+	 * {@code IntCuckooFilter}, using a single seeded 64 bit mixer instead of
+	 * a funnel and a hasher. The mixer is a bijection so distinct keys never
+	 * share a full hash.
+	 */
+	long hashLong(long item) {
+		return mix64(item ^ hasher.getSeedNSalt());
+	}
+
+	/**
+	 * Seeded xxHash64 of a key's bytes, read in place. Used for the filter's
+	 * direct key methods instead of a funnel and hasher.
+	 */
+	long hashBytes(byte[] bytes, int off, int len) {
+		return xxHashFunction.hashBytes(bytes, off, len, hasher.getSeedNSalt());
+	}
+
+	/**
+	 * Same as {@code #hashBytes(byte[], int, int)} for the remaining bytes in
+	 * a buffer.
+	 */
+	long hashBytes(ByteBuffer bytes) {
+		return xxHashFunction.hashBuffer(bytes, hasher.getSeedNSalt());
+	}
+
+	/**
+	 * Same as {@code #hashBytes(byte[], int, int)} for the UTF-16 code units
+	 * of a character sequence.
+	 */
+	long hashChars(CharSequence chars) {
+		return xxHashFunction.hashChars(chars, hasher.getSeedNSalt());
+	}
+
+	/**
+	 * Bucket index and tag for an item that's already hashed to 64 bits,
+	 * taken the same way as from a 64 bit hash function. Returns the per
+	 * thread instance like {@code #generateReused(Object)}.
+	 */
+	BucketAndTag generateFromHash(long hashVal) {
+		BucketAndTag result = reusedResult.get();
+		result.index = getBucketIndex64(hashVal);
+		result.tag = getTagFromHash(hashVal);
+		return result;
+	}
+
+	/**
+	 * Bucket index and tag for an item that's already hashed to 128 bits,
+	 * taken the same way as from a 128 bit hash function: index from the low
+	 * half and tag from the high half. Returns the per thread instance like
+	 * {@code #generateReused(Object)}.
+	 */
+	BucketAndTag generateFromHash(long hashLow, long hashHigh) {
+		BucketAndTag result = reusedResult.get();
+		result.index = getBucketIndex64(hashLow);
+		result.tag = getTagFromHash(hashHigh);
+		return result;
+	}
+
+	private long getTagFromHash(long hashVal) {
+		long tag = getTagValue64(hashVal);
+		// there's no item to rehash with a salt, so remix the hash instead
+		for (int salt = 1; tag == 0; salt++) {
+			tag = getTagValue64(mix64(hashVal + salt));
+			assert salt < 100;// shouldn't happen in our timeline
+		}
+		return tag;
+	}
+
+	/**
+	 * 64 bit finalizer from SplitMix64 (Stafford's Mix13 variant). Every input
+	 * bit affects every output bit.
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
 	}
 
 	long getTagValue32(int hashVal) {
@@ -196,8 +327,9 @@ final class IndexTagCalc<T> implements Serializable {
 
 	long getBucketIndex32(int hashVal) {
 		// take index bits from left end of hash
-		// just use everything we're not using for tag, why not
-		return hashIndex(hashVal >>> tagBits);
+		// just use everything we're not using for tag, why not. Left aligned
+		// in a long for hashIndex()
+		return hashIndex(((long) hashVal << 32) & (-1L << (Integer.SIZE + tagBits)));
 	}
 
 	long getTagValue64(long hashVal) {
@@ -217,7 +349,7 @@ final class IndexTagCalc<T> implements Serializable {
 	long getBucketIndex64(long hashVal) {
 		// take index bits from left end of hash
 		// just use everything we're not using for tag, why not
-		return hashIndex(hashVal >>> tagBits);
+		return hashIndex(hashVal & (-1L << tagBits));
 	}
 
 	private long longFromHighBytes(byte[] bytes) {
@@ -234,21 +366,49 @@ final class IndexTagCalc<T> implements Serializable {
 		 * MurmurHash3...interesting. Similar value used in reference
 		 * implementation https://github.com/efficient/cuckoofilter/
 		 */
-		long altIndex = bucketIndex ^ (tag * 0xc4ceb9fe1a85ec53L);
-		// flip bits if negative
+		long tagOffset = hashIndex(tag * 0xc4ceb9fe1a85ec53L);
+		/*
+		 * XOR only stays in range for power of two tables. (offset - index)
+		 * mod numBuckets works for any table size and is its own inverse, so
+		 * the alternate of the alternate is always the original bucket. Both
+		 * are already in range so the mod is a single add.
+		 */
+		long altIndex = tagOffset - bucketIndex;
 		if (altIndex < 0)
-			altIndex = ~altIndex;
-		// now pull into valid range
-		return hashIndex(altIndex);
+			altIndex += numBuckets;
+		return altIndex;
 	}
 
-	long hashIndex(long altIndex) {
+	/**
+	 * Maps 64 random bits to a bucket index with Lemire's fastrange, the high
+	 * half of the 128 bit product with the bucket count. Works for any table
+	 * size with no division. Only the high bits of the input matter, so
+	 * callers pass index bits left aligned.
+	 * 
+	 * @see <a href="https://github.com/lemire/fastrange">fastrange</a>
+	 */
+	long hashIndex(long randomBits) {
 		/*
 		 * we always need to return a bucket index within table range if we try
 		 * to range it later during read/write things will go terribly wrong
 		 * since the index becomes circular
 		 */
-		return altIndex % numBuckets;
+		return multiplyHighUnsigned(randomBits, numBuckets);
+	}
+
+	/**
+	 * High 64 bits of the unsigned 128 bit product of two longs. Java 8 has no
+	 * intrinsic for this, so it's done in 32 bit halves.
+	 */
+	static long multiplyHighUnsigned(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xFFFFFFFFL;
+		long y1 = y >>> 32;
+		long p01 = x0 * y1;
+		// can't overflow, (2^32-1)^2 + 2 * (2^32-1) == 2^64-1
+		long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+		return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
 	}
 
 	@Override
@@ -0,0 +1,198 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * A Cuckoo filter for primitive {@code int} keys. Works the same as
+ * {@code CuckooFilter<Integer>} but keys aren't boxed or passed through a
+ * funnel and hasher. Each key is hashed with a single seeded 64 bit mixer, so
+ * operations allocate nothing.
+ * <p>
+ * The table, locking, and memory options are shared with {@link CuckooFilter},
+ * see it for details on capacity, duplicates, deletes, and thread safety.
+ * Since keys are hashed to 64 bits, the table size and tag length together
+ * can't need more than 64 bits of hash, just like a {@code CuckooFilter} using
+ * a 64 bit hash function. Filter creation fails for larger configurations.
+ * <p>
+ * This filter is serializable.
+ *
+ * @author Mark Gunlogson
+ */
+public final class IntCuckooFilter extends PrimitiveCuckooFilter<IntCuckooFilter> {
+	private static final long serialVersionUID = 4419806231577016281L;
+
+	IntCuckooFilter(CuckooFilter<?> filter) {
+		super(filter);
+	}
+
+	@Override
+	IntCuckooFilter wrap(CuckooFilter<?> filter) {
+		return new IntCuckooFilter(filter);
+	}
+
+	/**
+	 * Builds a {@code IntCuckooFilter}. Options work the same as in
+	 * {@link CuckooFilter.Builder}, except that there's no choice of hash
+	 * function.
+	 *
+	 * @author Mark Gunlogson
+	 *
+	 */
+	public static class Builder extends PrimitiveCuckooFilter.Builder<Builder, IntCuckooFilter> {
+
+		/**
+		 * Creates a Builder interface for {@link IntCuckooFilter} with the
+		 * expected number of insertions.
+		 *
+		 * @param maxKeys
+		 *            the number of expected insertions to the constructed
+		 *            filter; must be positive
+		 */
+		public Builder(long maxKeys) {
+			super(new CuckooFilter.Builder<>(Funnels.integerFunnel(), maxKeys));
+		}
+
+		@Override
+		Builder self() {
+			return this;
+		}
+
+		@Override
+		IntCuckooFilter wrap(CuckooFilter<?> filter) {
+			return new IntCuckooFilter(filter);
+		}
+	}
+
+	/**
+	 * Opens a filter stored in a memory mapped file by
+	 * {@code Builder#buildMapped(Path)}, see
+	 * {@link CuckooFilter#open(Path, com.google.common.hash.Funnel)}. Files
+	 * written by a {@code CuckooFilter<Integer>} open fine but won't find any of
+	 * their keys since they were hashed differently.
+	 *
+	 * @param file
+	 *            the filter file
+	 * @return the filter
+	 * @throws IOException
+	 *             if the file can't be opened or isn't a valid filter file
+	 */
+	public static IntCuckooFilter open(Path file) throws IOException {
+		return new IntCuckooFilter(CuckooFilter.open(file, Funnels.integerFunnel()));
+	}
+
+	/**
+	 * See {@link CuckooFilter#put(Object)}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} if the item was inserted, {@code false} if
+	 *         insertion failed.
+	 */
+	public boolean put(int item) {
+		return filter.putHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#putIfAbsent(Object)}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} if the item might already be in the filter,
+	 *         {@code false} if it wasn't and has been inserted.
+	 * @throws IllegalStateException
+	 *             if the item wasn't there and the filter is full
+	 */
+	public boolean putIfAbsent(int item) {
+		return filter.putIfAbsentHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#putAll(java.util.Collection)}.
+	 *
+	 * @param items
+	 *            items to insert into the filter
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item was
+	 *         inserted successfully
+	 */
+	public BitSet putAll(int[] items) {
+		return filter.putAllHash(hashAll(items));
+	}
+
+	/**
+	 * See {@link CuckooFilter#mightContain(Object)}.
+	 *
+	 * @param item
+	 *            to check
+	 * @return true if the item might be in the filter
+	 */
+	public boolean mightContain(int item) {
+		return filter.mightContainHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#approximateCount(Object)}.
+	 *
+	 * @param item
+	 *            item to check
+	 * @return the number of times the item was probably added to the filter
+	 */
+	public int approximateCount(int item) {
+		return filter.approximateCountHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#mightContainAll(java.util.Collection)}.
+	 *
+	 * @param items
+	 *            items to check
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item might be
+	 *         in the filter
+	 */
+	public BitSet mightContainAll(int[] items) {
+		return filter.mightContainAllHash(hashAll(items));
+	}
+
+	/**
+	 * See {@link CuckooFilter#delete(Object)}.
+	 *
+	 * @param item
+	 *            the item to delete
+	 * @return {@code true} if the item was deleted, {@code false} if it
+	 *         wasn't found.
+	 */
+	public boolean delete(int item) {
+		return filter.deleteHash(hash(item));
+	}
+
+	private long[] hashAll(int[] items) {
+		checkNotNull(items);
+		long[] hashes = new long[items.length];
+		for (int i = 0; i < items.length; i++) {
+			hashes[i] = hash(items[i]);
+		}
+		return hashes;
+	}
+
+}
@@ -18,415 +18,190 @@
  */
 package com.github.mgunlogson.cuckoofilter4j;
 
-import java.io.Serializable;
 import java.util.Arrays;
 
 /**
- * BitSet of fixed length (numBits), backed by accessible ({@link #getBits})
- * long[], accessed with a long index. Use it only if you intend to store more
- * than 2.1B bits, otherwise you should use {@code FixedBitSet}.
+ * BitSet of fixed length (numBits), accessed with a long index. The bits are
+ * stored in fixed size long[] pages rather than one array, so the set isn't
+ * limited to 2^31 words and never needs a single giant allocation. Pages are
+ * kept small enough that G1 doesn't treat them as humongous objects.
  * 
  */
-final class LongBitSet implements Serializable {
+final class LongBitSet extends BitStorage {
 
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 4332907629892263426L;
-	private final long[] bits; // Array of longs holding the bits
-	private final long numBits; // The number of bits in use
-	private final int numWords; // The exact number of longs needed to hold
-								// numBits (<= bits.length)
+	private static final long serialVersionUID = -3209117431216340417L;
+	// 2^15 words (256KB) per page, under half of G1's smallest region size
+	static final int PAGE_SHIFT = 15;
+	private static final long WORD_IN_PAGE_MASK = (1L << PAGE_SHIFT) - 1;
 
-	/**
-	 * If the given {@link LongBitSet} is large enough to hold
-	 * {@code numBits+1}, returns the given bits, otherwise returns a new
-	 * {@link LongBitSet} which can hold the requested number of bits.
-	 * <p>
-	 * <b>NOTE:</b> the returned bitset reuses the underlying {@code long[]} of
-	 * the given {@code bits} if possible. Also, calling {@link #length()} on
-	 * the returned bits may return a value greater than {@code numBits}.
-	 */
-	static LongBitSet ensureCapacity(LongBitSet bits, long numBits) {
-		if (numBits < bits.numBits) {
-			return bits;
-		} else {
-			// Depends on the ghost bits being clear!
-			// (Otherwise, they may become visible in the new instance)
-			int numWords = bits2words(numBits);
-			long[] arr = bits.getBits();
-			if (numWords >= arr.length) {
-				arr = ArrayUtil.grow(arr, numWords + 1);
-			}
-			return new LongBitSet(arr, (long) arr.length << 6);
-		}
-	}
+	private final long[][] pages; // Pages of longs holding the bits
+	private final long numBits; // The number of bits in use
+	private final long numWords; // The exact number of longs needed to hold
+									// numBits
 
 	/** returns the number of 64 bit words it would take to hold numBits */
-	static int bits2words(long numBits) {
-		return (int) ((numBits - 1) >> 6) + 1; // I.e.: get the word-offset of
-												// the last bit and add one
-												// (make sure to use >> so 0
-												// returns 0!)
+	static long bits2words(long numBits) {
+		return ((numBits - 1) >> 6) + 1; // I.e.: get the word-offset of
+											// the last bit and add one
+											// (make sure to use >> so 0
+											// returns 0!)
 	}
 
 	/**
-	 * Creates a new LongBitSet. The internally allocated long array will be
-	 * exactly the size needed to accommodate the numBits specified.
+	 * Creates a new LongBitSet. The last page is trimmed so exactly the
+	 * number of words needed to accommodate numBits are allocated.
 	 * 
 	 * @param numBits
 	 *            the number of bits needed
 	 */
 	LongBitSet(long numBits) {
 		this.numBits = numBits;
-		bits = new long[bits2words(numBits)];
-		numWords = bits.length;
-	}
-
-	/**
-	 * Creates a new LongBitSet using the provided long[] array as backing
-	 * store. The storedBits array must be large enough to accommodate the
-	 * numBits specified, but may be larger. In that case the 'extra' or 'ghost'
-	 * bits must be clear (or they may provoke spurious side-effects)
-	 * 
-	 * @param storedBits
-	 *            the array to use as backing store
-	 * @param numBits
-	 *            the number of bits actually needed
-	 */
-	LongBitSet(long[] storedBits, long numBits) {
 		this.numWords = bits2words(numBits);
-		if (numWords > storedBits.length) {
-			throw new IllegalArgumentException("The given long array is too small  to hold " + numBits + " bits");
+		this.pages = new long[(int) ((numWords - 1) >> PAGE_SHIFT) + 1][];
+		for (int i = 0; i < pages.length; i++) {
+			long remaining = numWords - ((long) i << PAGE_SHIFT);
+			pages[i] = new long[(int) Math.min(remaining, 1L << PAGE_SHIFT)];
 		}
-		this.numBits = numBits;
-		this.bits = storedBits;
-
-		assert verifyGhostBitsClear();
 	}
 
-	/**
-	 * Checks if the bits past numBits are clear. Some methods rely on this
-	 * implicit assumption: search for "Depends on the ghost bits being clear!"
-	 * 
-	 * @return true if the bits past numBits are clear.
-	 */
-	private boolean verifyGhostBitsClear() {
-		for (int i = numWords; i < bits.length; i++) {
-			if (bits[i] != 0)
-				return false;
-		}
-
-		if ((numBits & 0x3f) == 0)
-			return true;
-
-		long mask = -1L << numBits;
-
-		return (bits[numWords - 1] & mask) == 0;
+	private LongBitSet(long[][] pages, long numBits) {
+		this.pages = pages;
+		this.numBits = numBits;
+		this.numWords = bits2words(numBits);
 	}
 
 	/** Returns the number of bits stored in this bitset. */
+	@Override
 	long length() {
 		return numBits;
 	}
 
-	/** Expert. */
-	long[] getBits() {
-		return bits;
+	private long getWord(long wordNum) {
+		return pages[(int) (wordNum >>> PAGE_SHIFT)][(int) (wordNum & WORD_IN_PAGE_MASK)];
+	}
+
+	private void setWord(long wordNum, long word) {
+		pages[(int) (wordNum >>> PAGE_SHIFT)][(int) (wordNum & WORD_IN_PAGE_MASK)] = word;
 	}
 
 	boolean get(long index) {
 		assert index >= 0 && index < numBits : "index=" + index + ", numBits=" + numBits;
-		int i = (int) (index >> 6); // div 64
-		// signed shift will keep a negative index and force an
-		// array-index-out-of-bounds-exception, removing the need for an
-		// explicit check.
 		long bitmask = 1L << index;
-		return (bits[i] & bitmask) != 0;
+		return (getWord(index >> 6) & bitmask) != 0;
 	}
 
 	void set(long index) {
 		assert index >= 0 && index < numBits : "index=" + index + " numBits=" + numBits;
-		int wordNum = (int) (index >> 6); // div 64
+		long wordNum = index >> 6; // div 64
 		long bitmask = 1L << index;
-		bits[wordNum] |= bitmask;
+		setWord(wordNum, getWord(wordNum) | bitmask);
 	}
 
 	boolean getAndSet(long index) {
 		assert index >= 0 && index < numBits : "index=" + index + ", numBits=" + numBits;
-		int wordNum = (int) (index >> 6); // div 64
+		long wordNum = index >> 6; // div 64
 		long bitmask = 1L << index;
-		boolean val = (bits[wordNum] & bitmask) != 0;
-		bits[wordNum] |= bitmask;
-		return val;
+		long word = getWord(wordNum);
+		setWord(wordNum, word | bitmask);
+		return (word & bitmask) != 0;
 	}
 
 	void clear(long index) {
 		assert index >= 0 && index < numBits : "index=" + index + ", numBits=" + numBits;
-		int wordNum = (int) (index >> 6);
+		long wordNum = index >> 6;
 		long bitmask = 1L << index;
-		bits[wordNum] &= ~bitmask;
+		setWord(wordNum, getWord(wordNum) & ~bitmask);
 	}
 
 	boolean getAndClear(long index) {
 		assert index >= 0 && index < numBits : "index=" + index + ", numBits=" + numBits;
-		int wordNum = (int) (index >> 6); // div 64
+		long wordNum = index >> 6; // div 64
 		long bitmask = 1L << index;
-		boolean val = (bits[wordNum] & bitmask) != 0;
-		bits[wordNum] &= ~bitmask;
-		return val;
-	}
-
-	/**
-	 * Returns the index of the first set bit starting at the index specified.
-	 * -1 is returned if there are no more set bits.
-	 */
-	long nextSetBit(long index) {
-		// Depends on the ghost bits being clear!
-		assert index >= 0 && index < numBits : "index=" + index + ", numBits=" + numBits;
-		int i = (int) (index >> 6);
-		long word = bits[i] >> index; // skip all the bits to the right of index
-
-		if (word != 0) {
-			return index + Long.numberOfTrailingZeros(word);
-		}
-
-		while (++i < numWords) {
-			word = bits[i];
-			if (word != 0) {
-				return (i << 6) + Long.numberOfTrailingZeros(word);
-			}
-		}
-
-		return -1;
-	}
-
-	/**
-	 * Returns the index of the last set bit before or on the index specified.
-	 * -1 is returned if there are no more set bits.
-	 */
-	long prevSetBit(long index) {
-		assert index >= 0 && index < numBits : "index=" + index + " numBits=" + numBits;
-		int i = (int) (index >> 6);
-		final int subIndex = (int) (index & 0x3f); // index within the word
-		long word = (bits[i] << (63 - subIndex)); // skip all the bits to the
-													// left of index
-
-		if (word != 0) {
-			return (i << 6) + subIndex - Long.numberOfLeadingZeros(word); // See
-																			// LUCENE-3197
-		}
-
-		while (--i >= 0) {
-			word = bits[i];
-			if (word != 0) {
-				return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
-			}
-		}
-
-		return -1;
-	}
-
-	/** this = this OR other */
-	void or(LongBitSet other) {
-		assert other.numWords <= numWords : "numWords=" + numWords + ", other.numWords=" + other.numWords;
-		int pos = Math.min(numWords, other.numWords);
-		while (--pos >= 0) {
-			bits[pos] |= other.bits[pos];
-		}
-	}
-
-	/** this = this XOR other */
-	void xor(LongBitSet other) {
-		assert other.numWords <= numWords : "numWords=" + numWords + ", other.numWords=" + other.numWords;
-		int pos = Math.min(numWords, other.numWords);
-		while (--pos >= 0) {
-			bits[pos] ^= other.bits[pos];
-		}
-	}
-
-	/** returns true if the sets have any elements in common */
-	boolean intersects(LongBitSet other) {
-		// Depends on the ghost bits being clear!
-		int pos = Math.min(numWords, other.numWords);
-		while (--pos >= 0) {
-			if ((bits[pos] & other.bits[pos]) != 0)
-				return true;
-		}
-		return false;
-	}
-
-	/** this = this AND other */
-	void and(LongBitSet other) {
-		int pos = Math.min(numWords, other.numWords);
-		while (--pos >= 0) {
-			bits[pos] &= other.bits[pos];
-		}
-		if (numWords > other.numWords) {
-			Arrays.fill(bits, other.numWords, numWords, 0L);
-		}
-	}
-
-	/** this = this AND NOT other */
-	void andNot(LongBitSet other) {
-		int pos = Math.min(numWords, other.numWords);
-		while (--pos >= 0) {
-			bits[pos] &= ~other.bits[pos];
-		}
+		long word = getWord(wordNum);
+		setWord(wordNum, word & ~bitmask);
+		return (word & bitmask) != 0;
 	}
 
 	/**
-	 * Scans the backing store to check if all bits are clear. The method is
-	 * deliberately not called "isEmpty" to emphasize it is not low cost (as
-	 * isEmpty usually is).
+	 * Reads {@code numBits} consecutive bits starting at {@code startIndex}
+	 * and returns them in the low bits of a long. At most two words are read,
+	 * so a range that straddles a word boundary is still only two array
+	 * accesses.
 	 * 
-	 * @return true if all bits are clear.
-	 */
-	boolean scanIsEmpty() {
-		// This 'slow' implementation is still faster than any external one
-		// could be
-		// (e.g.: (bitSet.length() == 0 || bitSet.nextSetBit(0) == -1))
-		// especially for small BitSets
-		// Depends on the ghost bits being clear!
-		final int count = numWords;
-
-		for (int i = 0; i < count; i++) {
-			if (bits[i] != 0)
-				return false;
-		}
-
-		return true;
-	}
-
-	/**
-	 * Flips a range of bits
-	 *
 	 * @param startIndex
-	 *            lower index
-	 * @param endIndex
-	 *            one-past the last bit to flip
+	 *            index of the first bit to read
+	 * @param numBits
+	 *            number of bits to read, 1-64 inclusive
 	 */
-	void flip(long startIndex, long endIndex) {
-		assert startIndex >= 0 && startIndex < numBits;
-		assert endIndex >= 0 && endIndex <= numBits;
-		if (endIndex <= startIndex) {
-			return;
-		}
-
-		int startWord = (int) (startIndex >> 6);
-		int endWord = (int) ((endIndex - 1) >> 6);
-
-		/***
-		 * Grrr, java shifting uses only the lower 6 bits of the count so
-		 * -1L>>>64 == -1 for that reason, make sure not to use endmask if the
-		 * bits to flip will be zero in the last word (redefine endWord to be
-		 * the last changed...) long startmask = -1L << (startIndex & 0x3f); //
-		 * example: 11111...111000 long endmask = -1L >>> (64-(endIndex &
-		 * 0x3f)); // example: 00111...111111
-		 ***/
-
-		long startmask = -1L << startIndex;
-		long endmask = -1L >>> -endIndex; // 64-(endIndex&0x3f) is the same as
-											// -endIndex since only the lowest 6
-											// bits are used
-
-		if (startWord == endWord) {
-			bits[startWord] ^= (startmask & endmask);
-			return;
-		}
-
-		bits[startWord] ^= startmask;
-
-		for (int i = startWord + 1; i < endWord; i++) {
-			bits[i] = ~bits[i];
-		}
-
-		bits[endWord] ^= endmask;
-	}
-
-	/** Flip the bit at the provided index. */
-	void flip(long index) {
-		assert index >= 0 && index < numBits : "index=" + index + " numBits=" + numBits;
-		int wordNum = (int) (index >> 6); // div 64
-		long bitmask = 1L << index; // mod 64 is implicit
-		bits[wordNum] ^= bitmask;
+	@Override
+	long getBitRange(long startIndex, int numBits) {
+		assert numBits > 0 && numBits <= 64 : "numBits=" + numBits;
+		assert startIndex >= 0 && startIndex + numBits <= this.numBits : "startIndex=" + startIndex + ", numBits="
+				+ this.numBits;
+		long wordNum = startIndex >> 6; // div 64
+		int shift = (int) (startIndex & 0x3f);
+		// -1L >>> -numBits is the same as -1L >>> (64 - numBits) since only
+		// the lowest 6 bits of the shift are used
+		long mask = -1L >>> -numBits;
+		long value = getWord(wordNum) >>> shift;
+		if (shift + numBits > 64) {
+			// range spills over into the next word, which may be on the next
+			// page
+			value |= getWord(wordNum + 1) << -shift;
+		}
+		return value & mask;
 	}
 
 	/**
-	 * Sets a range of bits
-	 *
+	 * Overwrites {@code numBits} consecutive bits starting at
+	 * {@code startIndex} with the low bits of {@code value}. Bits of
+	 * {@code value} above {@code numBits} are ignored.
+	 * 
 	 * @param startIndex
-	 *            lower index
-	 * @param endIndex
-	 *            one-past the last bit to set
+	 *            index of the first bit to write
+	 * @param numBits
+	 *            number of bits to write, 1-64 inclusive
+	 * @param value
+	 *            the bits to write
 	 */
-	void set(long startIndex, long endIndex) {
-		assert startIndex >= 0 && startIndex < numBits : "startIndex=" + startIndex + ", numBits=" + numBits;
-		assert endIndex >= 0 && endIndex <= numBits : "endIndex=" + endIndex + ", numBits=" + numBits;
-		if (endIndex <= startIndex) {
-			return;
-		}
-
-		int startWord = (int) (startIndex >> 6);
-		int endWord = (int) ((endIndex - 1) >> 6);
-
-		long startmask = -1L << startIndex;
-		long endmask = -1L >>> -endIndex; // 64-(endIndex&0x3f) is the same as
-											// -endIndex since only the lowest 6
-											// bits are used
-
-		if (startWord == endWord) {
-			bits[startWord] |= (startmask & endmask);
-			return;
+	@Override
+	void setBitRange(long startIndex, int numBits, long value) {
+		assert numBits > 0 && numBits <= 64 : "numBits=" + numBits;
+		assert startIndex >= 0 && startIndex + numBits <= this.numBits : "startIndex=" + startIndex + ", numBits="
+				+ this.numBits;
+		long wordNum = startIndex >> 6; // div 64
+		int shift = (int) (startIndex & 0x3f);
+		long mask = -1L >>> -numBits;
+		value &= mask;
+		setWord(wordNum, (getWord(wordNum) & ~(mask << shift)) | (value << shift));
+		if (shift + numBits > 64) {
+			// range spills over into the next word
+			int spilled = -shift & 0x3f;
+			setWord(wordNum + 1, (getWord(wordNum + 1) & ~(mask >>> spilled)) | (value >>> spilled));
 		}
-
-		bits[startWord] |= startmask;
-		Arrays.fill(bits, startWord + 1, endWord, -1L);
-		bits[endWord] |= endmask;
 	}
 
 	/**
-	 * Clears a range of bits.
-	 *
-	 * @param startIndex
-	 *            lower index
-	 * @param endIndex
-	 *            one-past the last bit to clear
+	 * Same as {@link #setBitRange(long, int, long)} but returns the bits that
+	 * were overwritten.
 	 */
-	void clear(long startIndex, long endIndex) {
-		assert startIndex >= 0 && startIndex < numBits : "startIndex=" + startIndex + ", numBits=" + numBits;
-		assert endIndex >= 0 && endIndex <= numBits : "endIndex=" + endIndex + ", numBits=" + numBits;
-		if (endIndex <= startIndex) {
-			return;
-		}
-
-		int startWord = (int) (startIndex >> 6);
-		int endWord = (int) ((endIndex - 1) >> 6);
-
-		long startmask = -1L << startIndex;
-		long endmask = -1L >>> -endIndex; // 64-(endIndex&0x3f) is the same as
-											// -endIndex since only the lowest 6
-											// bits are used
-
-		// invert masks since we are clearing
-		startmask = ~startmask;
-		endmask = ~endmask;
-
-		if (startWord == endWord) {
-			bits[startWord] &= (startmask | endmask);
-			return;
-		}
-
-		bits[startWord] &= startmask;
-		Arrays.fill(bits, startWord + 1, endWord, 0L);
-		bits[endWord] &= endmask;
+	@Override
+	long getAndSetBitRange(long startIndex, int numBits, long value) {
+		long old = getBitRange(startIndex, numBits);
+		setBitRange(startIndex, numBits, value);
+		return old;
 	}
 
 	@Override
 	public LongBitSet clone() {
-		long[] bits = new long[this.bits.length];
-		System.arraycopy(this.bits, 0, bits, 0, numWords);
-		return new LongBitSet(bits, numBits);
+		long[][] pages = new long[this.pages.length][];
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = this.pages[i].clone();
+		}
+		return new LongBitSet(pages, numBits);
 	}
 
 	/** returns true if both sets have the same bits set */
@@ -443,19 +218,19 @@ final class LongBitSet implements Serializable {
 			return false;
 		}
 		// Depends on the ghost bits being clear!
-		return Arrays.equals(bits, other.bits);
+		return Arrays.deepEquals(pages, other.pages);
 	}
 
 	@Override
 	public int hashCode() {
 		// Depends on the ghost bits being clear!
 		long h = 0;
-		for (int i = numWords; --i >= 0;) {
-			h ^= bits[i];
+		for (long i = numWords; --i >= 0;) {
+			h ^= getWord(i);
 			h = (h << 1) | (h >>> 63); // rotate left
 		}
 		// fold leftmost bits into right and add a constant to prevent
 		// empty sets from returning 0, which is too common.
 		return (int) ((h >> 32) ^ h) + 0x98761234;
 	}
-}
\ No newline at end of file
+}
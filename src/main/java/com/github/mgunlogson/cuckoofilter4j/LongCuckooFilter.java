@@ -0,0 +1,198 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import com.google.common.hash.Funnels;
+
+/**
+ * A Cuckoo filter for primitive {@code long} keys, such as 64 bit ids. Works
+ * the same as {@code CuckooFilter<Long>} but keys aren't boxed or passed
+ * through a funnel and hasher. Each key is hashed with a single seeded 64 bit
+ * mixer, so operations allocate nothing.
+ * <p>
+ * The table, locking, and memory options are shared with {@link CuckooFilter},
+ * see it for details on capacity, duplicates, deletes, and thread safety.
+ * Since keys are hashed to 64 bits, the table size and tag length together
+ * can't need more than 64 bits of hash, just like a {@code CuckooFilter} using
+ * a 64 bit hash function. Filter creation fails for larger configurations.
+ * <p>
+ * This filter is serializable.
+ *
+ * @author Mark Gunlogson
+ */
+public final class LongCuckooFilter extends PrimitiveCuckooFilter<LongCuckooFilter> {
+	private static final long serialVersionUID = -7126049361528329374L;
+
+	LongCuckooFilter(CuckooFilter<?> filter) {
+		super(filter);
+	}
+
+	@Override
+	LongCuckooFilter wrap(CuckooFilter<?> filter) {
+		return new LongCuckooFilter(filter);
+	}
+
+	/**
+	 * Builds a {@code LongCuckooFilter}. Options work the same as in
+	 * {@link CuckooFilter.Builder}, except that there's no choice of hash
+	 * function.
+	 *
+	 * @author Mark Gunlogson
+	 *
+	 */
+	public static class Builder extends PrimitiveCuckooFilter.Builder<Builder, LongCuckooFilter> {
+
+		/**
+		 * Creates a Builder interface for {@link LongCuckooFilter} with the
+		 * expected number of insertions.
+		 *
+		 * @param maxKeys
+		 *            the number of expected insertions to the constructed
+		 *            filter; must be positive
+		 */
+		public Builder(long maxKeys) {
+			super(new CuckooFilter.Builder<>(Funnels.longFunnel(), maxKeys));
+		}
+
+		@Override
+		Builder self() {
+			return this;
+		}
+
+		@Override
+		LongCuckooFilter wrap(CuckooFilter<?> filter) {
+			return new LongCuckooFilter(filter);
+		}
+	}
+
+	/**
+	 * Opens a filter stored in a memory mapped file by
+	 * {@code Builder#buildMapped(Path)}, see
+	 * {@link CuckooFilter#open(Path, com.google.common.hash.Funnel)}. Files
+	 * written by a {@code CuckooFilter<Long>} open fine but won't find any of
+	 * their keys since they were hashed differently.
+	 *
+	 * @param file
+	 *            the filter file
+	 * @return the filter
+	 * @throws IOException
+	 *             if the file can't be opened or isn't a valid filter file
+	 */
+	public static LongCuckooFilter open(Path file) throws IOException {
+		return new LongCuckooFilter(CuckooFilter.open(file, Funnels.longFunnel()));
+	}
+
+	/**
+	 * See {@link CuckooFilter#put(Object)}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} if the item was inserted, {@code false} if
+	 *         insertion failed.
+	 */
+	public boolean put(long item) {
+		return filter.putHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#putIfAbsent(Object)}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} if the item might already be in the filter,
+	 *         {@code false} if it wasn't and has been inserted.
+	 * @throws IllegalStateException
+	 *             if the item wasn't there and the filter is full
+	 */
+	public boolean putIfAbsent(long item) {
+		return filter.putIfAbsentHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#putAll(java.util.Collection)}.
+	 *
+	 * @param items
+	 *            items to insert into the filter
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item was
+	 *         inserted successfully
+	 */
+	public BitSet putAll(long[] items) {
+		return filter.putAllHash(hashAll(items));
+	}
+
+	/**
+	 * See {@link CuckooFilter#mightContain(Object)}.
+	 *
+	 * @param item
+	 *            to check
+	 * @return true if the item might be in the filter
+	 */
+	public boolean mightContain(long item) {
+		return filter.mightContainHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#approximateCount(Object)}.
+	 *
+	 * @param item
+	 *            item to check
+	 * @return the number of times the item was probably added to the filter
+	 */
+	public int approximateCount(long item) {
+		return filter.approximateCountHash(hash(item));
+	}
+
+	/**
+	 * See {@link CuckooFilter#mightContainAll(java.util.Collection)}.
+	 *
+	 * @param items
+	 *            items to check
+	 * @return a bitmap with bit {@code i} set if the {@code i}th item might be
+	 *         in the filter
+	 */
+	public BitSet mightContainAll(long[] items) {
+		return filter.mightContainAllHash(hashAll(items));
+	}
+
+	/**
+	 * See {@link CuckooFilter#delete(Object)}.
+	 *
+	 * @param item
+	 *            the item to delete
+	 * @return {@code true} if the item was deleted, {@code false} if it
+	 *         wasn't found.
+	 */
+	public boolean delete(long item) {
+		return filter.deleteHash(hash(item));
+	}
+
+	private long[] hashAll(long[] items) {
+		checkNotNull(items);
+		long[] hashes = new long[items.length];
+		for (int i = 0; i < items.length; i++) {
+			hashes[i] = hash(items[i]);
+		}
+		return hashes;
+	}
+
+}
@@ -0,0 +1,277 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nullable;
+
+import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
+import com.github.mgunlogson.cuckoofilter4j.Utils.Victim;
+
+/**
+ * A file holding a filter's table in memory mapped segments, so the filter can
+ * be opened without reading the table and shares the OS page cache with any
+ * other process that maps the same file. The file starts with a fixed size
+ * header holding everything needed to rebuild the hasher and table, followed
+ * by the table bits in the same little endian layout as {@code DirectBitSet}.
+ * <p>
+ * The count and victims are only written to the header on {@code #force()}, the
+ * table itself is written through the mapping as it changes.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class MappedFilterFile implements BitStorage.Allocator, Closeable {
+	// "CUCKOO4J"
+	private static final long MAGIC = 0x4a344f4f4b435543L;
+	private static final int VERSION = 1;
+	// a whole page so the table starts page aligned
+	static final int HEADER_SIZE = 4096;
+
+	static final int LAYOUT_PACKED = 0;
+	static final int LAYOUT_SEMI_SORTED = 1;
+
+	// header field offsets
+	private static final int MAGIC_POS = 0;
+	private static final int VERSION_POS = 8;
+	private static final int LAYOUT_POS = 12;
+	private static final int ALGORITHM_POS = 16;
+	private static final int TAG_BITS_POS = 20;
+	private static final int NUM_BUCKETS_POS = 24;
+	private static final int SEED_POS = 32;
+	private static final int SIP_SEED_POS = 40;
+	private static final int CONCURRENCY_POS = 48;
+	// number of stashed victims, the first is stored at FIRST_VICTIM_POS
+	private static final int VICTIM_COUNT_POS = 52;
+	private static final int COUNT_POS = 56;
+	private static final int FIRST_VICTIM_POS = 64;
+	private static final int BUCKET_SIZE_POS = 88;
+	private static final int SINGLE_WRITER_POS = 92;
+	// the rest of the victim stash, i1, i2, and tag for each
+	private static final int MORE_VICTIMS_POS = 128;
+	private static final int VICTIM_BYTES = 24;
+
+	private final FileChannel channel;
+	// opened rather than created, the table must already be in the file
+	private final boolean existing;
+	private final MappedByteBuffer header;
+	@Nullable
+	private MappedByteBuffer[] tableSegments;
+
+	private MappedFilterFile(FileChannel channel, boolean existing) throws IOException {
+		this.channel = channel;
+		this.existing = existing;
+		this.header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Creates a new file, failing if it already exists. The header isn't valid
+	 * until {@code #writeHeader} is called.
+	 */
+	static MappedFilterFile create(Path file) throws IOException {
+		return new MappedFilterFile(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE), false);
+	}
+
+	/**
+	 * Opens an existing filter file and checks the header.
+	 */
+	static MappedFilterFile open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("Not a Cuckoo filter file, too short: " + file);
+			MappedFilterFile mapped = new MappedFilterFile(channel, true);
+			if (mapped.header.getLong(MAGIC_POS) != MAGIC)
+				throw new IOException("Not a Cuckoo filter file: " + file);
+			int version = mapped.header.getInt(VERSION_POS);
+			if (version != VERSION)
+				throw new IOException("Unsupported Cuckoo filter file version " + version + ": " + file);
+			return mapped;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps the table region of the file, growing new files as needed. Called
+	 * once by the table factory.
+	 */
+	@Override
+	public BitStorage allocate(long numBits) {
+		checkState(tableSegments == null, "table already mapped");
+		try {
+			long numBytes = DirectBitSet.bits2bytes(numBits);
+			// mapping past the end would silently grow a truncated file
+			if (existing && channel.size() < HEADER_SIZE + numBytes)
+				throw new IOException("Cuckoo filter file is truncated");
+			long segmentSize = 1L << DirectBitSet.SEGMENT_SHIFT;
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((numBytes - 1) / segmentSize) + 1];
+			ByteBuffer[] ordered = new ByteBuffer[segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				long offset = i * segmentSize;
+				segments[i] = channel.map(MapMode.READ_WRITE, HEADER_SIZE + offset,
+						Math.min(numBytes - offset, segmentSize));
+				ordered[i] = segments[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			tableSegments = segments;
+			return new DirectBitSet(ordered, numBits);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the filter configuration. The magic number goes last so a file
+	 * that was never completely set up won't open.
+	 */
+	void writeHeader(int layout, IndexTagCalc<?> hasher, int bucketSize, int expectedConcurrency,
+			boolean singleWriter) {
+		SerializableSaltedHasher<?> salted = hasher.getHasher();
+		header.putInt(VERSION_POS, VERSION);
+		header.putInt(LAYOUT_POS, layout);
+		header.putInt(ALGORITHM_POS, salted.getAlgorithm().getValue());
+		header.putInt(TAG_BITS_POS, hasher.getTagBits());
+		header.putLong(NUM_BUCKETS_POS, hasher.getNumBuckets());
+		header.putLong(SEED_POS, salted.getSeedNSalt());
+		header.putLong(SIP_SEED_POS, salted.getAddlSipSeed());
+		header.putInt(BUCKET_SIZE_POS, bucketSize);
+		header.putInt(CONCURRENCY_POS, expectedConcurrency);
+		header.putInt(SINGLE_WRITER_POS, singleWriter ? 1 : 0);
+		header.putLong(MAGIC_POS, MAGIC);
+	}
+
+	/**
+	 * Writes the item count and victims. These change with every insert so
+	 * they're only stored when the filter is flushed.
+	 */
+	void writeState(long count, VictimStash victims) {
+		header.putLong(COUNT_POS, count);
+		header.putInt(VICTIM_COUNT_POS, victims.size());
+		for (int i = 0; i < victims.size(); i++) {
+			Victim victim = victims.get(i);
+			header.putLong(victimPos(i), victim.getI1());
+			header.putLong(victimPos(i) + 8, victim.getI2());
+			header.putLong(victimPos(i) + 16, victim.getTag());
+		}
+	}
+
+	/**
+	 * Files from before the stash held a single victim, which is still stored
+	 * in its old place.
+	 */
+	private static int victimPos(int i) {
+		if (i == 0)
+			return FIRST_VICTIM_POS;
+		return MORE_VICTIMS_POS + (i - 1) * VICTIM_BYTES;
+	}
+
+	int getLayout() {
+		return header.getInt(LAYOUT_POS);
+	}
+
+	Algorithm getAlgorithm() throws IOException {
+		int id = header.getInt(ALGORITHM_POS);
+		for (Algorithm alg : Algorithm.values()) {
+			if (alg.getValue() == id)
+				return alg;
+		}
+		throw new IOException("Unknown hash algorithm id " + id + " in Cuckoo filter file");
+	}
+
+	int getTagBits() {
+		return header.getInt(TAG_BITS_POS);
+	}
+
+	long getNumBuckets() {
+		return header.getLong(NUM_BUCKETS_POS);
+	}
+
+	long getSeedNSalt() {
+		return header.getLong(SEED_POS);
+	}
+
+	long getAddlSipSeed() {
+		return header.getLong(SIP_SEED_POS);
+	}
+
+	int getBucketSize() {
+		return header.getInt(BUCKET_SIZE_POS);
+	}
+
+	int getExpectedConcurrency() {
+		return header.getInt(CONCURRENCY_POS);
+	}
+
+	boolean isSingleWriter() {
+		return header.getInt(SINGLE_WRITER_POS) != 0;
+	}
+
+	long getCount() {
+		return header.getLong(COUNT_POS);
+	}
+
+	VictimStash getVictims() throws IOException {
+		int size = header.getInt(VICTIM_COUNT_POS);
+		if (size < 0 || size > VictimStash.CAPACITY)
+			throw new IOException("Invalid victim count " + size + " in Cuckoo filter file");
+		VictimStash victims = new VictimStash();
+		for (int i = 0; i < size; i++) {
+			victims.add(header.getLong(victimPos(i)), header.getLong(victimPos(i) + 8),
+					header.getLong(victimPos(i) + 16));
+		}
+		return victims;
+	}
+
+	/**
+	 * Forces the table and header out to the storage device (msync).
+	 */
+	void force() {
+		if (tableSegments != null) {
+			for (MappedByteBuffer segment : tableSegments) {
+				segment.force();
+			}
+		}
+		header.force();
+	}
+
+	/**
+	 * Unmaps the header and closes the file. The table segments belong to the
+	 * table's {@code DirectBitSet} and are unmapped when it's freed.
+	 */
+	@Override
+	public void close() throws IOException {
+		tableSegments = null;
+		DirectBitSet.Cleaner.clean(header);
+		channel.close();
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Generic table that packs tags of any size back to back in a
+ * {@code BitStorage}, on or off heap. Tags are read and written with one or two word
+ * operations, and whole buckets are matched at once when they fit in a long.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class PackedFilterTable extends FilterTable {
+	private static final long serialVersionUID = -6407462624391925469L;
+	/*
+	 * NOTE: Google's Guava library uses a custom BitSet implementation that
+	 * looks to be adapted from the Lucene project. Guava project notes show
+	 * this seems to be done for faster serialization and support for
+	 * longs(giant filters). We just use the Lucene LongBitSet directly to make
+	 * updates easier.
+	 */
+	private final BitStorage memBlock;
+
+	private final int bitsPerBucket;
+	// null if buckets don't fit in a long
+	@Nullable
+	private final SlotMatcher matcher;
+
+	PackedFilterTable(BitStorage memBlock, int bitsPerTag, long numBuckets, int bucketSize) {
+		super(bitsPerTag, numBuckets, bucketSize);
+		this.memBlock = memBlock;
+		this.bitsPerBucket = bucketSize * bitsPerTag;
+		this.matcher = SlotMatcher.canMatch(bitsPerTag, bucketSize) ? new SlotMatcher(bitsPerTag, bucketSize) : null;
+	}
+
+	@Override
+	boolean insertToBucket(long bucketIndex, long tag) {
+		if (matcher == null)
+			return super.insertToBucket(bucketIndex, tag);
+		long emptySlots = matchSlots(bucketIndex, 0);
+		if (emptySlots == 0)
+			return false;
+		writeTagNoClear(bucketIndex, matcher.firstSlot(emptySlots), tag);
+		return true;
+	}
+
+	@Override
+	boolean findTag(long i1, long i2, long tag) {
+		if (matcher == null)
+			return super.findTag(i1, i2, tag);
+		return matchSlots(i1, tag) != 0 || matchSlots(i2, tag) != 0;
+	}
+
+	@Override
+	long getStorageSize() {
+		// NOTE: checked source in current Lucene LongBitSet class for thread
+		// safety, make sure it stays this way if you update the class.
+		return memBlock.length();
+	}
+
+	@Override
+	boolean deleteFromBucket(long i1, long tag) {
+		if (matcher == null)
+			return super.deleteFromBucket(i1, tag);
+		long matches = matchSlots(i1, tag);
+		if (matches == 0)
+			return false;
+		deleteTag(i1, matcher.firstSlot(matches));
+		return true;
+	}
+
+	@Override
+	long readTag(long bucketIndex, int posInBucket) {
+		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
+		return memBlock.getBitRange(tagStartIdx, bitsPerTag);
+	}
+
+	@Override
+	void writeTag(long bucketIndex, int posInBucket, long tag) {
+		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
+		memBlock.setBitRange(tagStartIdx, bitsPerTag, tag);
+	}
+
+	@Override
+	long readTagAndSet(long bucketIndex, int posInBucket, long newTag) {
+		long tagStartIdx = getTagOffset(bucketIndex, posInBucket);
+		return memBlock.getAndSetBitRange(tagStartIdx, bitsPerTag, newTag);
+	}
+
+	@Override
+	int countTag(long i1, long i2, long tag) {
+		if (matcher == null)
+			return super.countTag(i1, i2, tag);
+		return Long.bitCount(matchSlots(i1, tag)) + Long.bitCount(matchSlots(i2, tag));
+	}
+
+	@Override
+	int countEmpty(long bucketIndex) {
+		if (matcher == null)
+			return super.countEmpty(bucketIndex);
+		return Long.bitCount(matchSlots(bucketIndex, 0));
+	}
+
+	/**
+	 * Reads a whole bucket with a single
+	 * {@code BitStorage#getBitRange(long, int)} call and matches all slots.
+	 */
+	private long matchSlots(long bucketIndex, long tag) {
+		return matcher.match(memBlock.getBitRange(bucketIndex * bitsPerBucket, bitsPerBucket), tag);
+	}
+
+	/**
+	 *  Finds the bit offset in the bitset for a tag
+	 *
+	 * @param bucketIndex  the bucket index
+	 * @param posInBucket  position in bucket
+	 * @return
+	 */
+	private long getTagOffset(long bucketIndex, int posInBucket) {
+		return (bucketIndex * bitsPerBucket) + (posInBucket * bitsPerTag);
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof PackedFilterTable) {
+			PackedFilterTable that = (PackedFilterTable) object;
+			return this.bitsPerTag == that.bitsPerTag && this.memBlock.equals(that.memBlock)
+					&& this.numBuckets == that.numBuckets && this.bucketSize == that.bucketSize;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(bitsPerTag, memBlock, numBuckets, bucketSize);
+	}
+
+	@Override
+	void free() {
+		memBlock.free();
+	}
+
+	@Override
+	PackedFilterTable copy() {
+		return new PackedFilterTable(memBlock.clone(), bitsPerTag, numBuckets, bucketSize);
+	}
+
+}
@@ -0,0 +1,263 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+
+import javax.annotation.Nullable;
+
+import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
+
+/**
+ * Everything {@link LongCuckooFilter} and {@link IntCuckooFilter} share: the
+ * builder, and the methods that don't take a key and just pass through to the
+ * wrapped {@link CuckooFilter}. Subclasses only add the typed key methods,
+ * which hash keys with {@link #hash(long)} and call the filter's pre-hashed
+ * methods.
+ *
+ * @author Mark Gunlogson
+ *
+ * @param <F>
+ *            the filter class extending this one
+ */
+abstract class PrimitiveCuckooFilter<F extends PrimitiveCuckooFilter<F>> implements Serializable, Closeable {
+	private static final long serialVersionUID = 3372318446227913187L;
+
+	final CuckooFilter<?> filter;
+
+	PrimitiveCuckooFilter(CuckooFilter<?> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Wraps another filter in the same subclass, for {@link #copy()}.
+	 */
+	abstract F wrap(CuckooFilter<?> filter);
+
+	/**
+	 * Builds primitive filters. Options work the same as in
+	 * {@link CuckooFilter.Builder}, except that there's no choice of hash
+	 * function.
+	 *
+	 * @author Mark Gunlogson
+	 *
+	 * @param <B>
+	 *            the builder class extending this one
+	 * @param <F>
+	 *            the filter it builds
+	 */
+	abstract static class Builder<B extends Builder<B, F>, F> {
+		private final CuckooFilter.Builder<?> builder;
+
+		Builder(CuckooFilter.Builder<?> builder) {
+			// funnel is never used, the algorithm only sets the hash size
+			this.builder = builder.withHashAlgorithm(Algorithm.xxHash64);
+		}
+
+		abstract B self();
+
+		abstract F wrap(CuckooFilter<?> filter);
+
+		/**
+		 * See {@link CuckooFilter.Builder#withFalsePositiveRate(double)}.
+		 *
+		 * @param fpp
+		 *            false positive rate from 0-1 exclusive.
+		 * @return The builder interface
+		 */
+		public B withFalsePositiveRate(double fpp) {
+			builder.withFalsePositiveRate(fpp);
+			return self();
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withExpectedConcurrency(int)}.
+		 *
+		 * @param expectedConcurrency
+		 *            expected number of threads accessing the filter
+		 *            concurrently, a power of 2.
+		 * @return The builder interface
+		 */
+		public B withExpectedConcurrency(int expectedConcurrency) {
+			builder.withExpectedConcurrency(expectedConcurrency);
+			return self();
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withBucketSize(int)}.
+		 *
+		 * @param bucketSize
+		 *            number of tags per bucket, 2, 4, or 8
+		 * @return The builder interface
+		 */
+		public B withBucketSize(int bucketSize) {
+			builder.withBucketSize(bucketSize);
+			return self();
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withSemiSortedBuckets(boolean)}.
+		 *
+		 * @param semiSorted
+		 *            true to store buckets semi-sorted
+		 * @return The builder interface
+		 */
+		public B withSemiSortedBuckets(boolean semiSorted) {
+			builder.withSemiSortedBuckets(semiSorted);
+			return self();
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withOffHeapStorage(boolean)}.
+		 *
+		 * @param offHeap
+		 *            true to store the table off-heap
+		 * @return The builder interface
+		 */
+		public B withOffHeapStorage(boolean offHeap) {
+			builder.withOffHeapStorage(offHeap);
+			return self();
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withSingleWriter(boolean)}.
+		 *
+		 * @param singleWriter
+		 *            true to serialize writes and make lookups lock free
+		 * @return The builder interface
+		 */
+		public B withSingleWriter(boolean singleWriter) {
+			builder.withSingleWriter(singleWriter);
+			return self();
+		}
+
+		/**
+		 * Builds and returns the filter. Invalid configurations will fail on
+		 * this call.
+		 *
+		 * @return a Cuckoo filter for primitive keys
+		 */
+		public F build() {
+			return wrap(builder.build());
+		}
+
+		/**
+		 * Builds a filter stored in a new memory mapped file, see
+		 * {@link CuckooFilter.Builder#buildMapped(Path)}. Reopen it with the
+		 * filter class's {@code open(Path)}.
+		 *
+		 * @param file
+		 *            the file to create, must not exist yet
+		 * @return a Cuckoo filter for primitive keys
+		 * @throws IOException
+		 *             if the file exists or can't be created
+		 */
+		public F buildMapped(Path file) throws IOException {
+			return wrap(builder.buildMapped(file));
+		}
+	}
+
+	/**
+	 * Hashes a key for the filter's pre-hashed methods. Int keys are widened,
+	 * so an int and the long with the same value hash the same.
+	 */
+	final long hash(long item) {
+		return filter.hasher.hashLong(item);
+	}
+
+	/**
+	 * See {@link CuckooFilter#getCount()}.
+	 *
+	 * @return number of items in filter
+	 */
+	public long getCount() {
+		return filter.getCount();
+	}
+
+	/**
+	 * See {@link CuckooFilter#getLoadFactor()}.
+	 *
+	 * @return load fraction of total space used, 0-1 inclusive
+	 */
+	public double getLoadFactor() {
+		return filter.getLoadFactor();
+	}
+
+	/**
+	 * See {@link CuckooFilter#getActualCapacity()}.
+	 *
+	 * @return number of keys filter can theoretically hold at 100% fill
+	 */
+	public long getActualCapacity() {
+		return filter.getActualCapacity();
+	}
+
+	/**
+	 * See {@link CuckooFilter#getStorageSize()}.
+	 *
+	 * @return space used by table in bits
+	 */
+	public long getStorageSize() {
+		return filter.getStorageSize();
+	}
+
+	/**
+	 * See {@link CuckooFilter#copy()}.
+	 *
+	 * @return a copy of the filter
+	 */
+	public F copy() {
+		return wrap(filter.copy());
+	}
+
+	/**
+	 * See {@link CuckooFilter#flush()}.
+	 */
+	public void flush() {
+		filter.flush();
+	}
+
+	/**
+	 * See {@link CuckooFilter#close()}.
+	 */
+	@Override
+	public void close() {
+		filter.close();
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		// a long and an int filter are never equal, even with the same table
+		if (object != null && object.getClass() == getClass()) {
+			PrimitiveCuckooFilter<?> that = (PrimitiveCuckooFilter<?>) object;
+			return this.filter.equals(that.filter);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return filter.hashCode();
+	}
+
+}
@@ -0,0 +1,423 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Funnel;
+
+/**
+ * A Cuckoo filter that grows instead of failing inserts once it holds more
+ * items than it was built for. It's a chain of {@link CuckooFilter} stages,
+ * each {@code growthFactor} times larger than the one before. Inserts go to
+ * the newest stage, and a new stage is added when the newest reaches its
+ * expected number of items. Lookups, counts, and deletes check every stage.
+ * <p>
+ * Every stage adds its own false positives, so each new stage's rate is
+ * {@code tighteningRatio} times the previous one's. Stage {@code i} gets
+ * {@code fpp * (1 - tighteningRatio) * tighteningRatio^i}, which adds up to
+ * less than {@code fpp} however many stages there are. Tighter stages need
+ * longer tags, so each stage costs a little more memory per item than the one
+ * before.
+ * <p>
+ * Items are hashed once with a 128 bit XXH3 hash, and every stage takes its
+ * bucket index and tag from that same hash. A lookup costs one hash plus a
+ * probe of two buckets per stage, so it's best to size the filter close to
+ * the real number of items and let growth handle surprises.
+ * <p>
+ * This filter is thread safe and serializable, with the same conditions as
+ * {@link CuckooFilter}. Stages are stored on the Java heap.
+ *
+ * @author Mark Gunlogson
+ *
+ * @param <T>
+ *            the type of items that the {@code ScalableCuckooFilter} accepts
+ */
+public final class ScalableCuckooFilter<T> implements Serializable {
+	private static final long serialVersionUID = 4216733406231805173L;
+	private static final double DEFAULT_FP = 0.01;
+	private static final int DEFAULT_GROWTH_FACTOR = 2;
+	private static final double DEFAULT_TIGHTENING_RATIO = 0.5;
+	private static final int DEFAULT_CONCURRENCY = 16;
+
+	private final SerializableSaltedHasher<T> hasher;
+	private final Funnel<? super T> funnel;
+	private final long maxKeys;
+	private final double fpp;
+	private final int growthFactor;
+	private final double tighteningRatio;
+	private final int expectedConcurrency;
+	private final int bucketSize;
+	// replaced, never changed, when a stage is added. Oldest stage first
+	private volatile ImmutableList<CuckooFilter<T>> stages;
+
+	private ScalableCuckooFilter(Builder<T> builder, SerializableSaltedHasher<T> hasher) {
+		this.hasher = hasher;
+		this.funnel = builder.funnel;
+		this.maxKeys = builder.maxKeys;
+		this.fpp = builder.fpp;
+		this.growthFactor = builder.growthFactor;
+		this.tighteningRatio = builder.tighteningRatio;
+		this.expectedConcurrency = builder.expectedConcurrency;
+		this.bucketSize = builder.bucketSize;
+	}
+
+	/***
+	 * Builds a {@code ScalableCuckooFilter}. To create one, construct this
+	 * then call {@code #build()}.
+	 *
+	 * @author Mark Gunlogson
+	 *
+	 * @param <T>
+	 *            the type of item {@code Funnel will use}
+	 */
+	public static class Builder<T> {
+		// required arguments
+		private final Funnel<? super T> funnel;
+		private final long maxKeys;
+		// optional arguments
+		private double fpp = DEFAULT_FP;
+		private int growthFactor = DEFAULT_GROWTH_FACTOR;
+		private double tighteningRatio = DEFAULT_TIGHTENING_RATIO;
+		private int expectedConcurrency = DEFAULT_CONCURRENCY;
+		private int bucketSize = CuckooFilter.DEFAULT_BUCKET_SIZE;
+
+		/**
+		 * Creates a Builder interface for {@link ScalableCuckooFilter} with
+		 * the number of insertions the first stage is built for. The default
+		 * overall false positive rate is 1%, each stage is twice as large as
+		 * the one before, and the false positive rate is halved per stage.
+		 *
+		 * @param funnel
+		 *            the funnel of T's that the constructed filter will use
+		 * @param maxKeys
+		 *            the number of expected insertions for the first stage;
+		 *            must be positive
+		 */
+		public Builder(Funnel<? super T> funnel, long maxKeys) {
+			checkArgument(maxKeys > 1, "maxKeys (%s) must be > 1, increase maxKeys", maxKeys);
+			checkNotNull(funnel);
+			this.funnel = funnel;
+			this.maxKeys = maxKeys;
+		}
+
+		/**
+		 * Sets the false positive rate of the whole filter, however many
+		 * stages it grows to. See
+		 * {@link CuckooFilter.Builder#withFalsePositiveRate(double)}.
+		 *
+		 * @param fpp
+		 *            false positive rate from 0-1 exclusive.
+		 * @return The builder interface
+		 */
+		public Builder<T> withFalsePositiveRate(double fpp) {
+			checkArgument(fpp > 0, "fpp (%s) must be > 0, increase fpp", fpp);
+			checkArgument(fpp < .25, "fpp (%s) must be < 0.25, decrease fpp", fpp);
+			this.fpp = fpp;
+			return this;
+		}
+
+		/**
+		 * Sets how many times larger each new stage is than the one before.
+		 * Larger factors mean fewer stages to probe on lookups but more unused
+		 * memory in the newest stage.
+		 *
+		 * @param growthFactor
+		 *            size of a stage relative to the previous one, at least 2
+		 * @return The builder interface
+		 */
+		public Builder<T> withGrowthFactor(int growthFactor) {
+			checkArgument(growthFactor >= 2, "growthFactor (%s) must be >= 2", growthFactor);
+			this.growthFactor = growthFactor;
+			return this;
+		}
+
+		/**
+		 * Sets how much lower each new stage's false positive rate is than the
+		 * previous stage's. Lower ratios give the first stage a bigger share
+		 * of the overall rate and later stages longer tags.
+		 *
+		 * @param tighteningRatio
+		 *            false positive rate of a stage relative to the previous
+		 *            one, from 0-1 exclusive
+		 * @return The builder interface
+		 */
+		public Builder<T> withTighteningRatio(double tighteningRatio) {
+			checkArgument(tighteningRatio > 0 && tighteningRatio < 1, "tighteningRatio (%s) must be > 0 and < 1",
+					tighteningRatio);
+			this.tighteningRatio = tighteningRatio;
+			return this;
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withExpectedConcurrency(int)}.
+		 *
+		 * @param expectedConcurrency
+		 *            expected number of threads accessing the filter
+		 *            concurrently, a power of 2.
+		 * @return The builder interface
+		 */
+		public Builder<T> withExpectedConcurrency(int expectedConcurrency) {
+			checkArgument(expectedConcurrency > 0, "expectedConcurrency (%s) must be > 0.", expectedConcurrency);
+			checkArgument((expectedConcurrency & (expectedConcurrency - 1)) == 0,
+					"expectedConcurrency (%s) must be a power of two.", expectedConcurrency);
+			this.expectedConcurrency = expectedConcurrency;
+			return this;
+		}
+
+		/**
+		 * See {@link CuckooFilter.Builder#withBucketSize(int)}.
+		 *
+		 * @param bucketSize
+		 *            number of tags per bucket, 2, 4, or 8
+		 * @return The builder interface
+		 */
+		public Builder<T> withBucketSize(int bucketSize) {
+			checkArgument(Utils.isValidBucketSize(bucketSize), "bucketSize (%s) must be 2, 4, or 8", bucketSize);
+			this.bucketSize = bucketSize;
+			return this;
+		}
+
+		/**
+		 * Builds and returns a {@code ScalableCuckooFilter} with its first
+		 * stage. Invalid configurations will fail on this call.
+		 *
+		 * @return a scalable Cuckoo filter
+		 */
+		public ScalableCuckooFilter<T> build() {
+			ScalableCuckooFilter<T> filter = new ScalableCuckooFilter<>(this,
+					SerializableSaltedHasher.<T> create(Algorithm.XXH3_128, funnel));
+			filter.stages = ImmutableList.of(filter.newStage(0));
+			return filter;
+		}
+	}
+
+	/**
+	 * Number of items stage {@code stage} is built for, or zero if that
+	 * doesn't fit in a long. The filter stops growing before such a stage.
+	 */
+	@VisibleForTesting
+	long stageKeys(int stage) {
+		long keys = maxKeys;
+		for (int i = 0; i < stage; i++) {
+			if (keys > Long.MAX_VALUE / growthFactor)
+				return 0;
+			keys *= growthFactor;
+		}
+		return keys;
+	}
+
+	/**
+	 * False positive rate of stage {@code stage}.
+	 */
+	@VisibleForTesting
+	double stageFpp(int stage) {
+		return fpp * (1 - tighteningRatio) * Math.pow(tighteningRatio, stage);
+	}
+
+	private CuckooFilter<T> newStage(int stage) {
+		// the stage's own hash function is never used, items come pre-hashed
+		return new CuckooFilter.Builder<T>(funnel, stageKeys(stage)).withFalsePositiveRate(stageFpp(stage))
+				.withExpectedConcurrency(expectedConcurrency).withBucketSize(bucketSize)
+				.withHashAlgorithm(Algorithm.XXH3_128).build();
+	}
+
+	/**
+	 * Adds a stage unless another thread already replaced {@code expected}.
+	 */
+	private synchronized void grow(ImmutableList<CuckooFilter<T>> expected) {
+		if (stages != expected)
+			return;
+		stages = ImmutableList.<CuckooFilter<T>> builder().addAll(expected).add(newStage(expected.size())).build();
+	}
+
+	/**
+	 * Puts an element into the newest stage, adding a stage first if the
+	 * newest one is full. Ensures that subsequent invocations of
+	 * {@link #mightContain(Object)} with the same element will always return
+	 * {@code true}.
+	 *
+	 * @param item
+	 *            item to insert into the filter
+	 * @return {@code true} unless the newest stage is full and the next one
+	 *         would be too big to size, the filter grows rather than failing
+	 *         an insert until then.
+	 */
+	public boolean put(T item) {
+		long hashLow = hasher.hashObjAsLong(item);
+		long hashHigh = hasher.lastHashHighAsLong();
+		while (true) {
+			ImmutableList<CuckooFilter<T>> current = stages;
+			int newest = current.size() - 1;
+			CuckooFilter<T> stage = current.get(newest);
+			if (stage.getCount() < stageKeys(newest) && stage.putHash(hashLow, hashHigh))
+				return true;
+			if (stageKeys(newest + 1) == 0)
+				return false;
+			grow(current);
+		}
+	}
+
+	/**
+	 * Checks if the filter might contain the item. See
+	 * {@link CuckooFilter#mightContain(Object)}.
+	 *
+	 * @param item
+	 *            to check
+	 * @return true if the item might be in the filter
+	 */
+	public boolean mightContain(T item) {
+		long hashLow = hasher.hashObjAsLong(item);
+		long hashHigh = hasher.lastHashHighAsLong();
+		ImmutableList<CuckooFilter<T>> current = stages;
+		// newest first, it has the most items
+		for (int i = current.size() - 1; i >= 0; i--) {
+			if (current.get(i).mightContainHash(hashLow, hashHigh))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Counts the copies of the item in all stages. See
+	 * {@link CuckooFilter#approximateCount(Object)}.
+	 *
+	 * @param item
+	 *            item to check
+	 * @return number of times the item is probably in the filter
+	 */
+	public int approximateCount(T item) {
+		long hashLow = hasher.hashObjAsLong(item);
+		long hashHigh = hasher.lastHashHighAsLong();
+		int count = 0;
+		for (CuckooFilter<T> stage : stages) {
+			count += stage.approximateCountHash(hashLow, hashHigh);
+		}
+		return count;
+	}
+
+	/**
+	 * Deletes one copy of the item from the newest stage that has it. See
+	 * {@link CuckooFilter#delete(Object)} for the usual warnings about
+	 * deleting items that weren't inserted. Those apply to inserted items too
+	 * here: if the item is a false positive in a stage newer than the one it
+	 * went into, the delete removes another item's tag from that stage. The
+	 * chance is below the filter's false positive rate, and newer stages are
+	 * checked first since their rates are the lowest. Only the newest stage
+	 * takes inserts, so room freed in older stages isn't reused.
+	 *
+	 * @param item
+	 *            item to delete
+	 * @return true if the item was probably in the filter and was deleted
+	 */
+	public boolean delete(T item) {
+		long hashLow = hasher.hashObjAsLong(item);
+		long hashHigh = hasher.lastHashHighAsLong();
+		ImmutableList<CuckooFilter<T>> current = stages;
+		for (int i = current.size() - 1; i >= 0; i--) {
+			if (current.get(i).deleteHash(hashLow, hashHigh))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of items in all stages.
+	 *
+	 * @return number of items in filter
+	 */
+	public long getCount() {
+		long count = 0;
+		for (CuckooFilter<T> stage : stages) {
+			count += stage.getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of stages, one until the filter first grows.
+	 *
+	 * @return number of stages
+	 */
+	public int getStageCount() {
+		return stages.size();
+	}
+
+	/**
+	 * Gets the size of the underlying tables of all stages, in bits.
+	 *
+	 * @return space used by the tables in bits
+	 */
+	public long getStorageSize() {
+		long size = 0;
+		for (CuckooFilter<T> stage : stages) {
+			size += stage.getStorageSize();
+		}
+		return size;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof ScalableCuckooFilter) {
+			ScalableCuckooFilter<?> that = (ScalableCuckooFilter<?>) object;
+			return this.hasher.equals(that.hasher) && this.maxKeys == that.maxKeys && this.fpp == that.fpp
+					&& this.growthFactor == that.growthFactor && this.tighteningRatio == that.tighteningRatio
+					&& this.expectedConcurrency == that.expectedConcurrency && this.bucketSize == that.bucketSize
+					&& this.stages.equals(that.stages);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(hasher, maxKeys, fpp, growthFactor, tighteningRatio, expectedConcurrency, bucketSize,
+				stages);
+	}
+
+	/**
+	 * Creates a new {@code ScalableCuckooFilter} that's a copy of this
+	 * instance. The new instance is equal to this instance but shares no
+	 * mutable state. See {@link CuckooFilter#copy()}.
+	 *
+	 * @return a copy of the filter
+	 */
+	public ScalableCuckooFilter<T> copy() {
+		Builder<T> builder = new Builder<T>(funnel, maxKeys).withFalsePositiveRate(fpp).withGrowthFactor(growthFactor)
+				.withTighteningRatio(tighteningRatio).withExpectedConcurrency(expectedConcurrency)
+				.withBucketSize(bucketSize);
+		ScalableCuckooFilter<T> copy = new ScalableCuckooFilter<>(builder, hasher.copy());
+		ImmutableList.Builder<CuckooFilter<T>> stageCopies = ImmutableList.builder();
+		for (CuckooFilter<T> stage : stages) {
+			stageCopies.add(stage.copy());
+		}
+		copy.stages = stageCopies.build();
+		return copy;
+	}
+
+}
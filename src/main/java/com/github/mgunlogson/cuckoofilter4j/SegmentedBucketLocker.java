@@ -34,29 +34,69 @@ import com.google.common.annotations.VisibleForTesting;
  */
 final class SegmentedBucketLocker {
 	private final StampedLock[] lockAry;
+	private final int segmentMask;
 	// must be a power of 2 so no modulo bias
 	private final int concurrentSegments;
 
-	SegmentedBucketLocker(int expectedConcurrency) {
+	SegmentedBucketLocker(int expectedConcurrency, long numBuckets) {
 		checkArgument(expectedConcurrency > 0, "expectedConcurrency (%s) must be > 0.", expectedConcurrency);
 		checkArgument((expectedConcurrency & (expectedConcurrency - 1)) == 0,
 				"expectedConcurrency (%s) must be a power of two.", expectedConcurrency);
-		// most operations lock two buckets, so for X threads we should have
-		// roughly 2X segments.
-		this.concurrentSegments = expectedConcurrency * 2;
+		checkArgument(numBuckets > 0, "numBuckets (%s) must be > 0.", numBuckets);
+		this.concurrentSegments = segmentsNeeded(expectedConcurrency, numBuckets);
+		this.segmentMask = concurrentSegments - 1;
 		this.lockAry = new StampedLock[concurrentSegments];
 		for (int i = 0; i < lockAry.length; i++) {
-			lockAry[i] = new StampedLock();
+			lockAry[i] = new PaddedStampedLock();
 		}
 
 	}
 
+	/**
+	 * Most operations lock two buckets, so with 2X segments for X threads two
+	 * threads often share one. 4X halves the odds of that, and each padded
+	 * lock is only around a hundred bytes. More segments than buckets would
+	 * never be used.
+	 */
+	@VisibleForTesting
+	static int segmentsNeeded(int expectedConcurrency, long numBuckets) {
+		long segments = Math.min(expectedConcurrency * 4L, numBuckets);
+		// power of two so a mask picks the segment
+		return (int) Long.highestOneBit(Math.min(segments, 1 << 30));
+	}
+
+	/**
+	 * A StampedLock padded so neighbouring locks don't share a cache line. The
+	 * locks are allocated back to back, without padding threads locking
+	 * neighbouring segments would still fight over the same line.
+	 * <p>
+	 * Padding only goes after StampedLock's fields since a subclass can't put
+	 * fields before them. That's enough here: consecutive locks are the same
+	 * size, so their state words are exactly one object apart, and the header,
+	 * state word and padding alone make that more than 64 bytes. The only
+	 * thing in front of the first lock is the lock array, which is never
+	 * written after construction. CPUs that prefetch lines in pairs would
+	 * need twice the padding.
+	 */
+	@SuppressWarnings("unused")
+	static final class PaddedStampedLock extends StampedLock {
+		private static final long serialVersionUID = 6052165357474466357L;
+		// subclass fields are laid out after StampedLock's own state
+		private long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	@VisibleForTesting
+	int getSegmentCount() {
+		return concurrentSegments;
+	}
+
 	/**
 	 *   returns the segment that bucket index belongs to
 	 */
 	@VisibleForTesting
 	private int getBucketLock(long bucketIndex) {
-		return (int) (bucketIndex % concurrentSegments);
+		// power of two segments so no division needed
+		return (int) bucketIndex & segmentMask;
 	}
 /**
  * Locks segments corresponding to bucket indexes in specific order to prevent deadlocks
@@ -125,6 +165,22 @@ final class SegmentedBucketLocker {
 		lockAry[bucket1LockIdx].tryUnlockRead();
 		lockAry[bucket2LockIdx].tryUnlockRead();
 	}
+	/**
+	 * Starts an optimistic read of the segment a bucket index belongs to. The
+	 * stamp is zero if the segment is write locked, which never validates.
+	 */
+	long tryOptimisticReadBucket(long i1) {
+		return lockAry[getBucketLock(i1)].tryOptimisticRead();
+	}
+
+	/**
+	 * Checks that neither bucket's segment was written since the optimistic
+	 * stamps were taken, so whatever was read from both buckets is consistent.
+	 */
+	boolean validateBucketsRead(long i1, long stamp1, long i2, long stamp2) {
+		return lockAry[getBucketLock(i1)].validate(stamp1) && lockAry[getBucketLock(i2)].validate(stamp2);
+	}
+
 	/**
 	 * Locks all segments in specific order to prevent deadlocks
 	 */
@@ -141,6 +197,74 @@ final class SegmentedBucketLocker {
 			lock.tryUnlockRead();
 		}
 	}
+	/**
+	 * Locks all segments for writing in specific order to prevent deadlocks
+	 */
+	void lockAllBucketsWrite() {
+		for (StampedLock lock : lockAry) {
+			lock.writeLock();
+		}
+	}
+	/**
+	 * Unlocks all segments locked for writing
+	 */
+	void unlockAllBucketsWrite() {
+		for (StampedLock lock : lockAry) {
+			lock.tryUnlockWrite();
+		}
+	}
+
+	/**
+	 * Orders a batch of bucket index pairs so that pairs locking the same
+	 * segments are next to each other, letting a batch take each group's
+	 * locks once. Counting sort by the higher segment and then the lower, so
+	 * it's linear in the batch size.
+	 * 
+	 * @return positions of the pairs in the batch, grouped by segments
+	 */
+	int[] groupBySegments(long[] i1s, long[] i2s, int size) {
+		int[] lows = new int[size];
+		int[] highs = new int[size];
+		for (int i = 0; i < size; i++) {
+			int lock1 = getBucketLock(i1s[i]);
+			int lock2 = getBucketLock(i2s[i]);
+			lows[i] = Math.min(lock1, lock2);
+			highs[i] = Math.max(lock1, lock2);
+		}
+		int[] byHigh = sortBySegment(null, highs, size);
+		return sortBySegment(byHigh, lows, size);
+	}
+
+	/**
+	 * Stable counting sort of positions by their segment. Null positions
+	 * means the batch in order.
+	 */
+	private int[] sortBySegment(int[] positions, int[] segments, int size) {
+		int[] starts = new int[concurrentSegments + 1];
+		for (int i = 0; i < size; i++) {
+			starts[segments[i] + 1]++;
+		}
+		for (int i = 1; i < starts.length; i++) {
+			starts[i] += starts[i - 1];
+		}
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; i++) {
+			int pos = positions == null ? i : positions[i];
+			sorted[starts[segments[pos]]++] = pos;
+		}
+		return sorted;
+	}
+
+	/**
+	 * Checks if two pairs of bucket indexes lock the same segments.
+	 */
+	boolean isSameSegments(long a1, long a2, long b1, long b2) {
+		int lockA1 = getBucketLock(a1);
+		int lockA2 = getBucketLock(a2);
+		int lockB1 = getBucketLock(b1);
+		int lockB2 = getBucketLock(b2);
+		return (lockA1 == lockB1 && lockA2 == lockB2) || (lockA1 == lockB2 && lockA2 == lockB1);
+	}
 
 	void lockSingleBucketWrite(long i1) {
 		int bucketLockIdx = getBucketLock(i1);
@@ -162,4 +286,4 @@ final class SegmentedBucketLocker {
 		lockAry[bucketLockIdx].tryUnlockRead();
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
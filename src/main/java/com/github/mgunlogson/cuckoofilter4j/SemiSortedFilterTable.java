@@ -0,0 +1,295 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+import com.google.common.math.LongMath;
+
+/**
+ * Compressed table using the semi-sorting trick from the Cuckoo filter paper.
+ * Slot order inside a bucket doesn't matter, so the tags of each bucket are
+ * kept sorted by their low 4 bits. There are only 3876 sorted combinations of
+ * four 4 bit values, which fit in a 12 bit code instead of 16 bits. The rest
+ * of each tag is stored as-is after the code. This saves one bit per tag
+ * without changing tag size, so the false positive rate stays the same.
+ *
+ * <p>
+ * Buckets are decoded into a long with one 16 bit lane per slot so the usual
+ * {@code SlotMatcher} can be used on them, which limits tags to 16 bits.
+ * Positions within a bucket are <i>not</i> stable since every write re-sorts
+ * the bucket.
+ *
+ * @see <a href="https://www.cs.cmu.edu/~dga/papers/cuckoo-conext2014.pdf">
+ *      paper on Cuckoo filter properties, section 5.2.</a>
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class SemiSortedFilterTable extends FilterTable {
+	private static final long serialVersionUID = -8409917006713106525L;
+	// the code only covers four sorted values
+	static final int BUCKET_SIZE = 4;
+	private static final int MAX_TAG_BITS = 16;
+	private static final int LANE_BITS = 16;
+	private static final long LANE_MASK = 0xFFFFL;
+	// bits kept in the sorted "direction" part of each tag
+	private static final int DIR_BITS = 4;
+	private static final int DIR_MASK = (1 << DIR_BITS) - 1;
+	private static final int CODE_BITS = 12;
+	private static final long CODE_MASK = (1L << CODE_BITS) - 1;
+	/*
+	 * DECODE maps a code to the four sorted 4 bit values packed in a short,
+	 * slot 0 in the lowest bits. ENCODE is the reverse and is only valid for
+	 * sorted inputs.
+	 */
+	private static final short[] DECODE = new short[3876];
+	private static final short[] ENCODE = new short[1 << 16];
+
+	static {
+		int code = 0;
+		for (int a = 0; a <= DIR_MASK; a++)
+			for (int b = a; b <= DIR_MASK; b++)
+				for (int c = b; c <= DIR_MASK; c++)
+					for (int d = c; d <= DIR_MASK; d++) {
+						int packed = a | (b << 4) | (c << 8) | (d << 12);
+						DECODE[code] = (short) packed;
+						ENCODE[packed] = (short) code;
+						code++;
+					}
+		assert code == DECODE.length;
+	}
+
+	private final BitStorage memBlock;
+	private final int bitsPerBucket;
+	// bits of each tag stored outside of the code
+	private final int highBits;
+	private final long highMask;
+	private final SlotMatcher matcher;
+
+	private SemiSortedFilterTable(BitStorage memBlock, int bitsPerTag, long numBuckets) {
+		super(bitsPerTag, numBuckets, BUCKET_SIZE);
+		this.memBlock = memBlock;
+		this.highBits = bitsPerTag - DIR_BITS;
+		this.highMask = (1L << highBits) - 1;
+		this.bitsPerBucket = CODE_BITS + BUCKET_SIZE * highBits;
+		this.matcher = new SlotMatcher(LANE_BITS, BUCKET_SIZE);
+	}
+
+	/**
+	 * Creates a semi-sorted table on the heap.
+	 */
+	static SemiSortedFilterTable create(int bitsPerTag, long numBuckets) {
+		return create(bitsPerTag, numBuckets, BitStorage.HEAP);
+	}
+
+	/**
+	 * Creates a semi-sorted table.
+	 *
+	 * @param bitsPerTag
+	 *            number of bits needed for each tag, 5-16 inclusive
+	 * @param numBuckets
+	 *            number of buckets in filter
+	 * @param allocator
+	 *            allocates the storage for the buckets
+	 */
+	static SemiSortedFilterTable create(int bitsPerTag, long numBuckets, BitStorage.Allocator allocator) {
+		checkNotNull(allocator);
+		checkArgument(supports(bitsPerTag), "tagBits (%s) must be between %s and %s for a semi-sorted table",
+				bitsPerTag, DIR_BITS + 1, MAX_TAG_BITS);
+		checkArgument(numBuckets > 1, "numBuckets (%s) must be > 1", numBuckets);
+		long bitsPerBucket = CODE_BITS + BUCKET_SIZE * (bitsPerTag - DIR_BITS);
+		BitStorage memBlock = allocator.allocate(LongMath.checkedMultiply(bitsPerBucket, numBuckets));
+		return new SemiSortedFilterTable(memBlock, bitsPerTag, numBuckets);
+	}
+
+	/**
+	 * Checks if a tag size can be stored semi-sorted.
+	 */
+	static boolean supports(int bitsPerTag) {
+		return bitsPerTag > DIR_BITS && bitsPerTag <= MAX_TAG_BITS;
+	}
+
+	/**
+	 * Reads a bucket and unpacks it to one tag per 16 bit lane.
+	 */
+	private long readBucket(long bucketIndex) {
+		long encoded = memBlock.getBitRange(bucketIndex * bitsPerBucket, bitsPerBucket);
+		int code = (int) (encoded & CODE_MASK);
+		/*
+		 * Only a read that tears across a concurrent write can see a code
+		 * past the last one, since a bucket can straddle two words. Optimistic
+		 * lookups validate their stamp after reading and redo the read under
+		 * the lock, so the bucket just reads as empty here.
+		 */
+		if (code >= DECODE.length)
+			return 0;
+		long dirs = DECODE[code];
+		long highs = encoded >>> CODE_BITS;
+		long bucket = 0;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			long dir = (dirs >>> (i * DIR_BITS)) & DIR_MASK;
+			long high = (highs >>> (i * highBits)) & highMask;
+			bucket |= (dir | (high << DIR_BITS)) << (i * LANE_BITS);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Sorts an unpacked bucket and writes it back compressed.
+	 */
+	private void writeBucket(long bucketIndex, long bucket) {
+		long t0 = bucket & LANE_MASK;
+		long t1 = (bucket >>> LANE_BITS) & LANE_MASK;
+		long t2 = (bucket >>> (2 * LANE_BITS)) & LANE_MASK;
+		long t3 = bucket >>> (3 * LANE_BITS);
+		// sorting network for 4 values, ordered by the direction bits only
+		long tmp;
+		if ((t0 & DIR_MASK) > (t1 & DIR_MASK)) {
+			tmp = t0;
+			t0 = t1;
+			t1 = tmp;
+		}
+		if ((t2 & DIR_MASK) > (t3 & DIR_MASK)) {
+			tmp = t2;
+			t2 = t3;
+			t3 = tmp;
+		}
+		if ((t0 & DIR_MASK) > (t2 & DIR_MASK)) {
+			tmp = t0;
+			t0 = t2;
+			t2 = tmp;
+		}
+		if ((t1 & DIR_MASK) > (t3 & DIR_MASK)) {
+			tmp = t1;
+			t1 = t3;
+			t3 = tmp;
+		}
+		if ((t1 & DIR_MASK) > (t2 & DIR_MASK)) {
+			tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		int dirs = (int) ((t0 & DIR_MASK) | (t1 & DIR_MASK) << 4 | (t2 & DIR_MASK) << 8 | (t3 & DIR_MASK) << 12);
+		long highs = (t0 >>> DIR_BITS) | (t1 >>> DIR_BITS) << highBits | (t2 >>> DIR_BITS) << (2 * highBits)
+				| (t3 >>> DIR_BITS) << (3 * highBits);
+		long encoded = ENCODE[dirs] | (highs << CODE_BITS);
+		memBlock.setBitRange(bucketIndex * bitsPerBucket, bitsPerBucket, encoded);
+	}
+
+	@Override
+	long readTag(long bucketIndex, int posInBucket) {
+		return (readBucket(bucketIndex) >>> (posInBucket * LANE_BITS)) & LANE_MASK;
+	}
+
+	@Override
+	void writeTag(long bucketIndex, int posInBucket, long tag) {
+		int shift = posInBucket * LANE_BITS;
+		long bucket = readBucket(bucketIndex) & ~(LANE_MASK << shift);
+		writeBucket(bucketIndex, bucket | ((tag & LANE_MASK) << shift));
+	}
+
+	@Override
+	long readTagAndSet(long bucketIndex, int posInBucket, long newTag) {
+		int shift = posInBucket * LANE_BITS;
+		long bucket = readBucket(bucketIndex);
+		writeBucket(bucketIndex, (bucket & ~(LANE_MASK << shift)) | ((newTag & LANE_MASK) << shift));
+		return (bucket >>> shift) & LANE_MASK;
+	}
+
+	@Override
+	boolean insertToBucket(long bucketIndex, long tag) {
+		long bucket = readBucket(bucketIndex);
+		long emptySlots = matcher.match(bucket, 0);
+		if (emptySlots == 0)
+			return false;
+		int shift = matcher.firstSlot(emptySlots) * LANE_BITS;
+		writeBucket(bucketIndex, bucket | ((tag & LANE_MASK) << shift));
+		return true;
+	}
+
+	@Override
+	boolean findTag(long i1, long i2, long tag) {
+		return (matcher.match(readBucket(i1), tag) | matcher.match(readBucket(i2), tag)) != 0;
+	}
+
+	@Override
+	boolean deleteFromBucket(long i1, long tag) {
+		long bucket = readBucket(i1);
+		long matches = matcher.match(bucket, tag);
+		if (matches == 0)
+			return false;
+		int shift = matcher.firstSlot(matches) * LANE_BITS;
+		writeBucket(i1, bucket & ~(LANE_MASK << shift));
+		return true;
+	}
+
+	@Override
+	int countTag(long i1, long i2, long tag) {
+		return Long.bitCount(matcher.match(readBucket(i1), tag)) + Long.bitCount(matcher.match(readBucket(i2), tag));
+	}
+
+	@Override
+	int countEmpty(long bucketIndex) {
+		return Long.bitCount(matcher.match(readBucket(bucketIndex), 0));
+	}
+
+	@Override
+	long getStorageSize() {
+		return memBlock.length();
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof SemiSortedFilterTable) {
+			SemiSortedFilterTable that = (SemiSortedFilterTable) object;
+			return this.bitsPerTag == that.bitsPerTag && this.memBlock.equals(that.memBlock)
+					&& this.numBuckets == that.numBuckets;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(bitsPerTag, memBlock, numBuckets);
+	}
+
+	@Override
+	void free() {
+		memBlock.free();
+	}
+
+	@Override
+	boolean rewritesBuckets() {
+		// every write re-encodes the whole bucket
+		return true;
+	}
+
+	@Override
+	SemiSortedFilterTable copy() {
+		return new SemiSortedFilterTable(memBlock.clone(), bitsPerTag, numBuckets);
+	}
+
+}
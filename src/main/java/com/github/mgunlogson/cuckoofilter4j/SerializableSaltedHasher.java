@@ -33,6 +33,10 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.ResettableHashFunction;
+import com.google.common.hash.ResettableHasher;
+import com.google.common.hash.WyHashFunction;
+import com.google.common.hash.XXH3HashFunction;
 import com.google.common.hash.xxHashFunction;
 
 /**
@@ -55,6 +59,10 @@ final class SerializableSaltedHasher<T> implements Serializable {
 	private final long addlSipSeed;
 	private final Algorithm alg;
 	private transient HashFunction hasher;
+	// reusable per thread hashers, only for our own hash functions since
+	// Guava's hashers can't be reset
+	@Nullable
+	private transient ThreadLocal<ResettableHasher> reusableHasher;
 	private final Funnel<? super T> funnel;
 
 	SerializableSaltedHasher(long seedNSalt, long addlSipSeed, Funnel<? super T> funnel, Algorithm alg) {
@@ -65,11 +73,17 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		this.seedNSalt = seedNSalt;
 		this.addlSipSeed = addlSipSeed;
 		hasher = configureHash(alg, seedNSalt, addlSipSeed);
+		reusableHasher = configureReusableHash(hasher);
 	}
 
+	/**
+	 * Creates a hasher using the fastest algorithm with enough bits. That's
+	 * XXH3 for the short keys filters usually hold, wyhash only pulls ahead
+	 * past 32 bytes or so.
+	 */
 	static <T> SerializableSaltedHasher<T> create(int hashBitsNeeded, Funnel<? super T> funnel) {
-		if (hashBitsNeeded > 64) return create(Algorithm.Murmur3_128, funnel);
-		return create(Algorithm.xxHash64, funnel);
+		if (hashBitsNeeded > 64) return create(Algorithm.XXH3_128, funnel);
+		return create(Algorithm.XXH3_64, funnel);
 	}
 
 	static <T> SerializableSaltedHasher<T> create(Algorithm alg, Funnel<? super T> funnel) {
@@ -86,12 +100,31 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		ois.defaultReadObject();
 		// not serializable so we rebuild here
 		hasher = configureHash(alg, seedNSalt, addlSipSeed);
+		reusableHasher = configureReusableHash(hasher);
+	}
+
+	@Nullable
+	private static ThreadLocal<ResettableHasher> configureReusableHash(final HashFunction hasher) {
+		if (!(hasher instanceof ResettableHashFunction))
+			return null;
+		return new ThreadLocal<ResettableHasher>() {
+			@Override
+			protected ResettableHasher initialValue() {
+				return ((ResettableHashFunction) hasher).newHasher();
+			}
+		};
 	}
 
 	private static HashFunction configureHash(Algorithm alg, long seedNSalt, long addlSipSeed) {
 		switch (alg) {
 		case xxHash64:
 			return new xxHashFunction(seedNSalt);
+		case XXH3_64:
+			return new XXH3HashFunction(seedNSalt, 64);
+		case XXH3_128:
+			return new XXH3HashFunction(seedNSalt, 128);
+		case wyHash:
+			return new WyHashFunction(seedNSalt);
 		case Murmur3_128:
 			return Hashing.murmur3_128((int) seedNSalt);
 		case Murmur3_32:
@@ -112,6 +145,20 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		return hashInst.hash();
 	}
 
+	/**
+	 * Same as {@code #hashObj(Object)} but returns the hash as a long, padded
+	 * with zeros for 32 bit hashes. Doesn't allocate anything for xxHash,
+	 * XXH3, and wyhash since the hasher is reused.
+	 */
+	long hashObjAsLong(T object) {
+		if (reusableHasher == null)
+			return hashObj(object).padToLong();
+		ResettableHasher hashInst = reusableHasher.get().reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		return hashInst.hashAsLong();
+	}
+
 	/**
 	 * hashes the object with an additional salt. For purpose of the cuckoo
 	 * filter, this is used when the hash generated for an item is all zeros.
@@ -126,9 +173,52 @@ final class SerializableSaltedHasher<T> implements Serializable {
 		return hashInst.hash();
 	}
 
+	/**
+	 * Same as {@code #hashObjWithSalt(Object, int)} but returns the hash as a
+	 * long like {@code #hashObjAsLong(Object)}.
+	 */
+	long hashObjWithSaltAsLong(T object, int moreSalt) {
+		if (reusableHasher == null)
+			return hashObjWithSalt(object, moreSalt).padToLong();
+		ResettableHasher hashInst = reusableHasher.get().reset();
+		hashInst.putObject(object, funnel);
+		hashInst.putLong(seedNSalt);
+		hashInst.putInt(moreSalt);
+		return hashInst.hashAsLong();
+	}
+
+	/**
+	 * Whether {@code #hashObjAsLong(Object)} keeps the second 64 bits of a 128
+	 * bit hash for {@code #lastHashHighAsLong()}, so wide hashes can be read
+	 * without copying out the hash bytes.
+	 */
+	boolean hasWideLongHash() {
+		return reusableHasher != null && hasher.bits() >= 128;
+	}
+
+	/**
+	 * The second 64 bits of the last hash from {@code #hashObjAsLong(Object)}
+	 * on this thread, see {@code #hasWideLongHash()}.
+	 */
+	long lastHashHighAsLong() {
+		return reusableHasher.get().lastHashHighAsLong();
+	}
+
 	int codeBitSize() {
 		return hasher.bits();
 	}
+
+	Algorithm getAlgorithm() {
+		return alg;
+	}
+
+	long getSeedNSalt() {
+		return seedNSalt;
+	}
+
+	long getAddlSipSeed() {
+		return addlSipSeed;
+	}
 	
 	@Override
 	public boolean equals(@Nullable Object object) {
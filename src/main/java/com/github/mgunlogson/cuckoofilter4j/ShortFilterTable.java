@@ -0,0 +1,76 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Table for 16 bit tags, each in its own {@code short}.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class ShortFilterTable extends ArrayFilterTable {
+	private static final long serialVersionUID = -7763095574735120512L;
+	private final short[] slots;
+
+	ShortFilterTable(long numBuckets, int bucketSize) {
+		this(new short[(int) (numBuckets * bucketSize)], numBuckets, bucketSize);
+	}
+
+	private ShortFilterTable(short[] slots, long numBuckets, int bucketSize) {
+		super(16, numBuckets, bucketSize);
+		this.slots = slots;
+	}
+
+	@Override
+	long getSlot(int slotIndex) {
+		return slots[slotIndex] & 0xFFFFL;
+	}
+
+	@Override
+	void setSlot(int slotIndex, long tag) {
+		slots[slotIndex] = (short) tag;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof ShortFilterTable) {
+			ShortFilterTable that = (ShortFilterTable) object;
+			return this.numBuckets == that.numBuckets && this.bucketSize == that.bucketSize
+					&& Arrays.equals(this.slots, that.slots);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(bitsPerTag, Arrays.hashCode(slots), numBuckets, bucketSize);
+	}
+
+	@Override
+	ShortFilterTable copy() {
+		return new ShortFilterTable(slots.clone(), numBuckets, bucketSize);
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+
+/**
+ * Compares a tag against every slot of a bucket held in a long at once (SWAR).
+ * The classic "has zero byte" trick is applied with slot sized lanes after
+ * XORing the bucket with the tag, in the exact form so no borrows can leak
+ * between slots. Only usable when a whole bucket fits in a long, see
+ * {@code #canMatch(int, int)}.
+ *
+ * @author Mark Gunlogson
+ *
+ */
+final class SlotMatcher implements Serializable {
+	private static final long serialVersionUID = -3151216745402395391L;
+	private final int bitsPerTag;
+	private final int bucketSize;
+	// lowest bit of each slot set, multiplying a tag by this copies it into
+	// every slot
+	private final long slotLowBits;
+	// highest bit of each slot set
+	private final long slotHighBits;
+	// every bit of each slot set except the highest
+	private final long slotLowerMask;
+
+	SlotMatcher(int bitsPerTag, int bucketSize) {
+		checkArgument(canMatch(bitsPerTag, bucketSize), "tagBits (%s) too big to match whole buckets of %s",
+				bitsPerTag, bucketSize);
+		this.bitsPerTag = bitsPerTag;
+		this.bucketSize = bucketSize;
+		long lowBits = 0;
+		for (int i = 0; i < bucketSize; i++) {
+			lowBits |= 1L << (i * bitsPerTag);
+		}
+		this.slotLowBits = lowBits;
+		this.slotHighBits = lowBits << (bitsPerTag - 1);
+		this.slotLowerMask = slotHighBits - lowBits;
+	}
+
+	static boolean canMatch(int bitsPerTag, int bucketSize) {
+		return bucketSize * bitsPerTag <= Long.SIZE;
+	}
+
+	/**
+	 * @param bucket
+	 *            all slots of a bucket, slot 0 in the lowest bits
+	 * @param tag
+	 *            tag to look for, zero finds empty slots
+	 * @return the highest bit of each matching slot set, zero if no slots
+	 *         match
+	 */
+	long match(long bucket, long tag) {
+		// matching slots become zero
+		long diff = bucket ^ (tag * slotLowBits);
+		// high bit of each slot is set if any lower bit in the slot is set.
+		// Can't carry out of the slot since both sides are less than half of
+		// the slot's range
+		long lowerSet = (diff & slotLowerMask) + slotLowerMask;
+		return ~(lowerSet | diff | slotLowerMask) & slotHighBits;
+	}
+
+	/**
+	 * Position in bucket of the first slot flagged in a
+	 * {@code #match(long, long)} result.
+	 */
+	int firstSlot(long matches) {
+		return Long.numberOfTrailingZeros(matches) / bitsPerTag;
+	}
+}
@@ -40,7 +40,7 @@ public final class Utils {
 	 */
 	public enum Algorithm {
 		/**
-		 * Murmer3 - 32 bit version, This is the default.
+		 * Murmer3 - 32 bit version. Was the default before XXH3.
 		 */
 		Murmur3_32(0),
 		/**
@@ -59,7 +59,22 @@ public final class Utils {
 		/**
 		 * xxHash 64bit.
 		 */
-		xxHash64(4);
+		xxHash64(4),
+		/**
+		 * XXH3 64bit, the newer xxHash. Much faster than xxHash64 for short
+		 * keys, the default for filters that need up to 64 bits of hash.
+		 */
+		XXH3_64(5),
+		/**
+		 * XXH3 128bit. Nearly as fast as the 64 bit version, the default
+		 * for filters that need more than 64 bits of hash.
+		 */
+		XXH3_128(6),
+		/**
+		 * wyhash 64bit. Faster than XXH3 for keys longer than about 32
+		 * bytes.
+		 */
+		wyHash(7);
 		private final int id;
 
 		Algorithm(int id) {
@@ -137,20 +152,66 @@ public final class Utils {
 			return new Victim(i1, i2, tag);
 		}
 	}
+	/**
+	 * Checks if a bucket size is supported, 2, 4, or 8 tags per bucket.
+	 */
+	static boolean isValidBucketSize(int bucketSize) {
+		return bucketSize == 2 || bucketSize == 4 || bucketSize == 8;
+	}
+
+	/**
+	 * Gets the load factor a table can be expected to reach before the first
+	 * insert failure. Bigger buckets give the cuckoo more places to put
+	 * things.
+	 * 
+	 * @param bucketSize
+	 *            number of tags in each bucket, 2, 4, or 8
+	 * @return the expected maximum load factor
+	 */
+	static double getLoadFactor(int bucketSize) {
+		/*
+		 * measured values from Cuckoo Filter: Practically Better Than Bloom,
+		 * Bin Fan, David G. Andersen, Michael Kaminsky , Michael D.
+		 * Mitzenmacher, section 5.1
+		 */
+		switch (bucketSize) {
+		case 2:
+			return 0.84;
+		case 4:
+			return 0.955;
+		case 8:
+			return 0.98;
+		default:
+			throw new IllegalArgumentException("Unsupported bucket size " + bucketSize);
+		}
+	}
+
 	/**
 	 * Calculates how many bits are needed to reach a given false positive rate.
 	 * 
 	 * @param fpProb
 	 *            the false positive probability.
+	 * @param bucketSize
+	 *            number of tags in each bucket, 2, 4, or 8
 	 * @return the length of the tag needed (in bits) to reach the false
 	 *         positive rate.
 	 */
-	static int getBitsPerItemForFpRate(double fpProb,double loadFactor) {
+	static int getBitsPerItemForFpRate(double fpProb, int bucketSize) {
 		/*
-		 * equation from Cuckoo Filter: Practically Better Than Bloom Bin Fan,
-		 * David G. Andersen, Michael Kaminsky , Michael D. Mitzenmacher
+		 * bound from Cuckoo Filter: Practically Better Than Bloom, Bin Fan,
+		 * David G. Andersen, Michael Kaminsky , Michael D. Mitzenmacher,
+		 * section 4. A lookup compares the tag against the 2*bucketSize slots
+		 * of both buckets, each filled with probability equal to the load
+		 * factor, so the false positive rate is about 2*b*a/2^tagBits.
+		 * 
+		 * This used to be log2(1/fpp + 3)/a, a misreading of the paper's bits
+		 * per item, (log2(1/fpp) + 3)/a, used as the tag length. It gave 8 bit
+		 * tags at 1% that only held the rate while power of two tables were
+		 * left half empty. Filled to its load factor an 8 bit table gives
+		 * about 2.4%, so a 1% filter now gets 10 bit tags.
 		 */
-		return DoubleMath.roundToInt(DoubleMath.log2((1 / fpProb) + 3) / loadFactor, RoundingMode.UP);
+		double comparedTags = 2 * bucketSize * getLoadFactor(bucketSize);
+		return DoubleMath.roundToInt(DoubleMath.log2(comparedTags / fpProb), RoundingMode.UP);
 	}
 
 	/**
@@ -164,17 +225,12 @@ public final class Utils {
 	 */
 	static long getBucketsNeeded(long maxKeys,double loadFactor,int bucketSize) {
 		/*
-		 * force a power-of-two bucket count so hash functions for bucket index
-		 * can hashBits%numBuckets and get randomly distributed index. See wiki
-		 * "Modulo Bias". Only time we can get perfectly distributed index is
-		 * when numBuckets is a power of 2.
+		 * bucket indexes are mapped with fastrange, which has no modulo bias,
+		 * so any bucket count works and the table can track maxKeys closely.
+		 * Tables need at least 2 buckets.
 		 */
 		long bucketsNeeded = DoubleMath.roundToLong((1.0 / loadFactor) * maxKeys / bucketSize, RoundingMode.UP);
-		// get next biggest power of 2
-		long bitPos = Long.highestOneBit(bucketsNeeded);
-		if (bucketsNeeded > bitPos)
-			bitPos = bitPos << 1;
-		return bitPos;
+		return Math.max(bucketsNeeded, 2);
 	}
 	
 	
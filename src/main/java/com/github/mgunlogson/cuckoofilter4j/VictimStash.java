@@ -0,0 +1,167 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+
+import javax.annotation.Nullable;
+
+import com.github.mgunlogson.cuckoofilter4j.Utils.Victim;
+
+/**
+ * A small fixed size stash for tags that couldn't be placed in the table. A
+ * single victim slot makes the filter refuse inserts as soon as one tag is
+ * homeless, a few slots keep a nearly full filter accepting inserts while
+ * deletes make room to move the stashed tags back into the table.
+ * <p>
+ * Not thread safe by itself, the filter guards it with the victim lock. The
+ * entries are allocated up front and the size never exceeds the capacity, so
+ * an optimistic read racing a writer can't fail, it just reads stale entries
+ * and has to be validated.
+ * 
+ * @author Mark Gunlogson
+ *
+ */
+final class VictimStash implements Serializable {
+	private static final long serialVersionUID = 3419785542311237823L;
+	/**
+	 * Number of stashed tags. Every lookup that misses the table scans the
+	 * stash, so it should stay small.
+	 */
+	static final int CAPACITY = 8;
+
+	private final Victim[] victims;
+	private int size;
+
+	VictimStash() {
+		victims = new Victim[CAPACITY];
+		for (int i = 0; i < victims.length; i++) {
+			victims[i] = new Victim();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean isFull() {
+		return size == CAPACITY;
+	}
+
+	Victim get(int pos) {
+		return victims[pos];
+	}
+
+	/**
+	 * Stashes a tag.
+	 * 
+	 * @return the position of the new entry
+	 */
+	int add(long i1, long i2, long tag) {
+		checkArgument(size < CAPACITY, "Victim stash is full");
+		Victim victim = victims[size];
+		victim.setI1(i1);
+		victim.setI2(i2);
+		victim.setTag(tag);
+		return size++;
+	}
+
+	/**
+	 * Removes an entry by moving the last one into its place, so only entries
+	 * at or after {@code pos} change position.
+	 */
+	void remove(int pos) {
+		Victim last = victims[--size];
+		if (pos != size) {
+			Victim victim = victims[pos];
+			victim.setI1(last.getI1());
+			victim.setI2(last.getI2());
+			victim.setTag(last.getTag());
+		}
+	}
+
+	/**
+	 * Finds a stashed tag belonging to either of its buckets.
+	 * 
+	 * @return position of the entry or -1 if the tag isn't stashed
+	 */
+	int find(long index, long tag) {
+		for (int i = 0; i < size; i++) {
+			if (matches(victims[i], index, tag))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts stashed copies of a tag, duplicates can be stashed several
+	 * times.
+	 */
+	int count(long index, long tag) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (matches(victims[i], index, tag))
+				count++;
+		}
+		return count;
+	}
+
+	private static boolean matches(Victim victim, long index, long tag) {
+		return victim.getTag() == tag && (index == victim.getI1() || index == victim.getI2());
+	}
+
+	VictimStash copy() {
+		VictimStash copy = new VictimStash();
+		for (int i = 0; i < size; i++) {
+			copy.add(victims[i].getI1(), victims[i].getI2(), victims[i].getTag());
+		}
+		return copy;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = size;
+		for (int i = 0; i < size; i++) {
+			hash = 31 * hash + victims[i].hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean equals(@Nullable Object object) {
+		if (object == this) {
+			return true;
+		}
+		if (object instanceof VictimStash) {
+			VictimStash that = (VictimStash) object;
+			if (this.size != that.size)
+				return false;
+			for (int i = 0; i < size; i++) {
+				if (!this.victims[i].equals(that.victims[i]))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+}
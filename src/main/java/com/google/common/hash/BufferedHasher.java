@@ -0,0 +1,62 @@
+package com.google.common.hash;
+
+import java.util.Arrays;
+
+/**
+ * Collects the input in a growable buffer that's kept across resets, for hash
+ * functions that are much faster over the whole input at once than streamed.
+ * Ints and longs are written little endian like other Guava hashers.
+ */
+abstract class BufferedHasher extends ResettableHasher {
+
+	private static final int INITIAL_SIZE = 32;
+
+	byte[] buf = new byte[INITIAL_SIZE];
+	int count = 0;
+
+	@Override
+	public BufferedHasher reset() {
+		count = 0;
+		return this;
+	}
+
+	private void ensureCapacity(int more) {
+		if (count + more > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + more));
+	}
+
+	@Override
+	protected void update(byte b) {
+		ensureCapacity(1);
+		buf[count++] = b;
+	}
+
+	@Override
+	protected void update(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public Hasher putInt(int value) {
+		ensureCapacity(4);
+		buf[count] = (byte) value;
+		buf[count + 1] = (byte) (value >>> 8);
+		buf[count + 2] = (byte) (value >>> 16);
+		buf[count + 3] = (byte) (value >>> 24);
+		count += 4;
+		return this;
+	}
+
+	@Override
+	public Hasher putLong(long value) {
+		ensureCapacity(8);
+		for (int i = 0; i < 8; i++) {
+			buf[count + i] = (byte) (value >>> (i * 8));
+		}
+		count += 8;
+		return this;
+	}
+
+}
@@ -0,0 +1,11 @@
+package com.google.common.hash;
+
+/**
+ * A hash function whose hashers can be reset and reused.
+ */
+public interface ResettableHashFunction extends HashFunction {
+
+	@Override
+	ResettableHasher newHasher();
+
+}
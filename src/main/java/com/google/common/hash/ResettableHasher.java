@@ -0,0 +1,32 @@
+package com.google.common.hash;
+
+/**
+ * A hasher that can be reset and used again, with the hash readable as a
+ * primitive, so hashing in a loop allocates nothing once its buffer has grown
+ * to fit the input.
+ */
+public abstract class ResettableHasher extends AbstractByteHasher {
+
+	/**
+	 * Clears the input so the hasher can be used again.
+	 */
+	public abstract ResettableHasher reset();
+
+	/**
+	 * Same as {@code hash().asLong()} without allocating a HashCode.
+	 */
+	public abstract long hashAsLong();
+
+	/**
+	 * For hashes longer than 64 bits, the second 64 bits of the hash last
+	 * computed by {@code #hashAsLong()}, without hashing again. The two are
+	 * the first 16 bytes of {@code hash()} read as little endian longs.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the hash is only 64 bits
+	 */
+	public long lastHashHighAsLong() {
+		throw new UnsupportedOperationException("hash is only 64 bits");
+	}
+
+}
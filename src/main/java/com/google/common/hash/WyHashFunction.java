@@ -0,0 +1,140 @@
+package com.google.common.hash;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.hash.XXH3HashFunction.multiplyHighUnsigned;
+import static com.google.common.hash.xxHashFunction.readIntLE;
+import static com.google.common.hash.xxHashFunction.readLongLE;
+
+import java.io.Serializable;
+
+/**
+ * wyhash (final version 4), a 64 bit hash built on 64x64 to 128 bit multiplies.
+ * Short inputs take only a couple of multiplies, which makes it one of the
+ * fastest hashes for small keys. Output is the same as the reference
+ * {@code wyhash()} with the default secret.
+ *
+ * @see <a href="https://github.com/wangyi-fudan/wyhash">wyhash</a>
+ */
+public final class WyHashFunction extends AbstractStreamingHashFunction
+		implements ResettableHashFunction, Serializable {
+
+	private static final long serialVersionUID = -1398263371407522563L;
+
+	// _wyp, the default secret
+	private static final long P0 = 0xa0761d6478bd642fL;
+	private static final long P1 = 0xe7037ed1a0b428dbL;
+	private static final long P2 = 0x8ebc6af09c88c6e3L;
+	private static final long P3 = 0x589965cc75374cc3L;
+
+	private final long seed;
+
+	public WyHashFunction(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public WyHasher newHasher() {
+		return new WyHasher(seed);
+	}
+
+	@Override
+	public int bits() {
+		return 64;
+	}
+
+	/**
+	 * A reusable wyhash hasher, the input is buffered and hashed in one go.
+	 */
+	public static final class WyHasher extends BufferedHasher {
+
+		private final long seed;
+
+		WyHasher(long seed) {
+			this.seed = seed;
+		}
+
+		@Override
+		public WyHasher reset() {
+			super.reset();
+			return this;
+		}
+
+		@Override
+		public HashCode hash() {
+			return HashCode.fromLong(hashAsLong());
+		}
+
+		@Override
+		public long hashAsLong() {
+			return hashBytes(buf, 0, count, seed);
+		}
+	}
+
+	/**
+	 * Calculates wyhash of part of a byte array.
+	 *
+	 * @param buf to calculate hash from
+	 * @param off offset to start calculation from
+	 * @param len length of data to calculate hash
+	 * @param seed  hash seed
+	 * @return wyhash.
+	 */
+	public static long hashBytes(byte[] buf, int off, int len, long seed) {
+		checkPositionIndexes(off, off + len, buf.length);
+		seed ^= mix(seed ^ P0, P1);
+		long a;
+		long b;
+		if (len <= 16) {
+			if (len >= 4) {
+				// two overlapping pairs of ints cover 4-16 bytes
+				int shift = (len >>> 3) << 2;
+				a = ((readIntLE(buf, off) & 0xFFFFFFFFL) << 32) | (readIntLE(buf, off + shift) & 0xFFFFFFFFL);
+				b = ((readIntLE(buf, off + len - 4) & 0xFFFFFFFFL) << 32)
+						| (readIntLE(buf, off + len - 4 - shift) & 0xFFFFFFFFL);
+			} else if (len > 0) {
+				a = ((buf[off] & 0xFFL) << 16) | ((buf[off + (len >>> 1)] & 0xFFL) << 8) | (buf[off + len - 1] & 0xFFL);
+				b = 0;
+			} else {
+				a = 0;
+				b = 0;
+			}
+		} else {
+			int p = off;
+			int i = len;
+			if (i >= 48) {
+				long see1 = seed;
+				long see2 = seed;
+				do {
+					seed = mix(readLongLE(buf, p) ^ P1, readLongLE(buf, p + 8) ^ seed);
+					see1 = mix(readLongLE(buf, p + 16) ^ P2, readLongLE(buf, p + 24) ^ see1);
+					see2 = mix(readLongLE(buf, p + 32) ^ P3, readLongLE(buf, p + 40) ^ see2);
+					p += 48;
+					i -= 48;
+				} while (i >= 48);
+				seed ^= see1 ^ see2;
+			}
+			while (i > 16) {
+				seed = mix(readLongLE(buf, p) ^ P1, readLongLE(buf, p + 8) ^ seed);
+				i -= 16;
+				p += 16;
+			}
+			// the last 16 bytes, overlapping what was already mixed
+			a = readLongLE(buf, p + i - 16);
+			b = readLongLE(buf, p + i - 8);
+		}
+		a ^= P1;
+		b ^= seed;
+		// _wymum
+		long low = a * b;
+		long high = multiplyHighUnsigned(a, b);
+		return mix(low ^ P0 ^ len, high ^ P1);
+	}
+
+	/**
+	 * _wymix, folds the 128 bit product of two longs to 64 bits.
+	 */
+	private static long mix(long a, long b) {
+		return (a * b) ^ multiplyHighUnsigned(a, b);
+	}
+
+}
@@ -0,0 +1,501 @@
+package com.google.common.hash;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.hash.xxHashFunction.readIntLE;
+import static com.google.common.hash.xxHashFunction.readLongLE;
+
+import java.io.Serializable;
+
+/**
+ * XXH3 from xxHash 0.8, in 64 and 128 bit versions. Much faster than xxHash64
+ * on short inputs since the input isn't streamed through four accumulators,
+ * and the 128 bit version costs little more than the 64 bit one. Output is the
+ * same as the reference {@code XXH3_64bits_withSeed} and
+ * {@code XXH3_128bits_withSeed}.
+ * <p>
+ * 128 bit hash codes hold the low half of the hash first, so
+ * {@code HashCode#asLong()} is the low half.
+ *
+ * @see <a href="https://github.com/Cyan4973/xxHash">xxHash</a>
+ */
+public final class XXH3HashFunction extends AbstractStreamingHashFunction
+		implements ResettableHashFunction, Serializable {
+
+	private static final long serialVersionUID = 6286375347296736458L;
+
+	private static final long PRIME32_1 = 0x9E3779B1L;
+	private static final long PRIME32_2 = 0x85EBCA77L;
+	private static final long PRIME32_3 = 0xC2B2AE3DL;
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+	private static final long PRIME_MX1 = 0x165667919E3779F9L;
+	private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+	private static final int SECRET_SIZE = 192;
+	private static final int STRIPE_LEN = 64;
+	private static final int STRIPES_PER_BLOCK = (SECRET_SIZE - STRIPE_LEN) / 8;
+	private static final int MIDSIZE_MAX = 240;
+
+	// kSecret from the reference implementation
+	private static final byte[] DEFAULT_SECRET = toBytes(new int[] {
+			0xb8, 0xfe, 0x6c, 0x39, 0x23, 0xa4, 0x4b, 0xbe, 0x7c, 0x01, 0x81, 0x2c, 0xf7, 0x21, 0xad, 0x1c,
+			0xde, 0xd4, 0x6d, 0xe9, 0x83, 0x90, 0x97, 0xdb, 0x72, 0x40, 0xa4, 0xa4, 0xb7, 0xb3, 0x67, 0x1f,
+			0xcb, 0x79, 0xe6, 0x4e, 0xcc, 0xc0, 0xe5, 0x78, 0x82, 0x5a, 0xd0, 0x7d, 0xcc, 0xff, 0x72, 0x21,
+			0xb8, 0x08, 0x46, 0x74, 0xf7, 0x43, 0x24, 0x8e, 0xe0, 0x35, 0x90, 0xe6, 0x81, 0x3a, 0x26, 0x4c,
+			0x3c, 0x28, 0x52, 0xbb, 0x91, 0xc3, 0x00, 0xcb, 0x88, 0xd0, 0x65, 0x8b, 0x1b, 0x53, 0x2e, 0xa3,
+			0x71, 0x64, 0x48, 0x97, 0xa2, 0x0d, 0xf9, 0x4e, 0x38, 0x19, 0xef, 0x46, 0xa9, 0xde, 0xac, 0xd8,
+			0xa8, 0xfa, 0x76, 0x3f, 0xe3, 0x9c, 0x34, 0x3f, 0xf9, 0xdc, 0xbb, 0xc7, 0xc7, 0x0b, 0x4f, 0x1d,
+			0x8a, 0x51, 0xe0, 0x4b, 0xcd, 0xb4, 0x59, 0x31, 0xc8, 0x9f, 0x7e, 0xc9, 0xd9, 0x78, 0x73, 0x64,
+			0xea, 0xc5, 0xac, 0x83, 0x34, 0xd3, 0xeb, 0xc3, 0xc5, 0x81, 0xa0, 0xff, 0xfa, 0x13, 0x63, 0xeb,
+			0x17, 0x0d, 0xdd, 0x51, 0xb7, 0xf0, 0xda, 0x49, 0xd3, 0x16, 0x55, 0x26, 0x29, 0xd4, 0x68, 0x9e,
+			0x2b, 0x16, 0xbe, 0x58, 0x7d, 0x47, 0xa1, 0xfc, 0x8f, 0xf8, 0xb8, 0xd1, 0x7a, 0xd0, 0x31, 0xce,
+			0x45, 0xcb, 0x3a, 0x8f, 0x95, 0x16, 0x04, 0x28, 0xaf, 0xd7, 0xfb, 0xca, 0xbb, 0x4b, 0x40, 0x7e, });
+
+	// the secret as a long starting at every byte offset, it's read unaligned
+	private static final long[] SECRET = secretLongs(DEFAULT_SECRET);
+
+	// secret words used by inputs of 16 bytes or less
+	private static final long FLIP_1TO3 = (readIntLE(DEFAULT_SECRET, 0) ^ readIntLE(DEFAULT_SECRET, 4)) & 0xFFFFFFFFL;
+	private static final long FLIP_1TO3_HIGH = (readIntLE(DEFAULT_SECRET, 8) ^ readIntLE(DEFAULT_SECRET, 12))
+			& 0xFFFFFFFFL;
+
+	private final long seed;
+	private final int bits;
+	// secret for inputs over 240 bytes, derived from the seed
+	private final long[] longSecret;
+
+	/**
+	 * @param seed
+	 *            hash seed
+	 * @param bits
+	 *            hash length, 64 or 128
+	 */
+	public XXH3HashFunction(long seed, int bits) {
+		checkArgument(bits == 64 || bits == 128, "XXH3 hashes are 64 or 128 bits, not %s", bits);
+		this.seed = seed;
+		this.bits = bits;
+		this.longSecret = seed == 0 ? SECRET : secretLongs(customSecret(seed));
+	}
+
+	@Override
+	public XXH3Hasher newHasher() {
+		return new XXH3Hasher(this);
+	}
+
+	@Override
+	public int bits() {
+		return bits;
+	}
+
+	private static byte[] toBytes(int[] values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	private static long[] secretLongs(byte[] secret) {
+		long[] longs = new long[secret.length - 7];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = readLongLE(secret, i);
+		}
+		return longs;
+	}
+
+	// XXH3_initCustomSecret
+	private static byte[] customSecret(long seed) {
+		byte[] secret = new byte[SECRET_SIZE];
+		for (int i = 0; i < SECRET_SIZE; i += 16) {
+			writeLongLE(secret, i, readLongLE(DEFAULT_SECRET, i) + seed);
+			writeLongLE(secret, i + 8, readLongLE(DEFAULT_SECRET, i + 8) - seed);
+		}
+		return secret;
+	}
+
+	private static void writeLongLE(byte[] buf, int i, long value) {
+		for (int b = 0; b < 8; b++) {
+			buf[i + b] = (byte) (value >>> (b * 8));
+		}
+	}
+
+	/**
+	 * A reusable XXH3 hasher. The input is buffered and hashed in one go.
+	 * {@code #hashAsLong()} keeps both halves of a 128 bit hash in the hasher
+	 * instead of allocating a HashCode.
+	 */
+	public static final class XXH3Hasher extends BufferedHasher {
+
+		private final long seed;
+		private final boolean is128;
+		private final long[] longSecret;
+		// 128 bit results
+		private long low;
+		private long high;
+		// accumulators for inputs over 240 bytes
+		private long acc0, acc1, acc2, acc3, acc4, acc5, acc6, acc7;
+
+		XXH3Hasher(XXH3HashFunction function) {
+			this.seed = function.seed;
+			this.is128 = function.bits == 128;
+			this.longSecret = function.longSecret;
+		}
+
+		@Override
+		public XXH3Hasher reset() {
+			super.reset();
+			return this;
+		}
+
+		@Override
+		public HashCode hash() {
+			if (!is128)
+				return HashCode.fromLong(hash64(buf, 0, count));
+			hash128(buf, 0, count);
+			byte[] bytes = new byte[16];
+			writeLongLE(bytes, 0, low);
+			writeLongLE(bytes, 8, high);
+			return HashCode.fromBytesNoCopy(bytes);
+		}
+
+		/**
+		 * The hash for 64 bit functions, the low half of the hash for 128 bit
+		 * ones. The high half is kept for {@code #lastHashHighAsLong()}.
+		 */
+		@Override
+		public long hashAsLong() {
+			if (!is128)
+				return hash64(buf, 0, count);
+			hash128(buf, 0, count);
+			return low;
+		}
+
+		@Override
+		public long lastHashHighAsLong() {
+			if (!is128)
+				return super.lastHashHighAsLong();
+			return high;
+		}
+
+		private long hash64(byte[] in, int off, int len) {
+			if (len <= 16)
+				return len0To16(in, off, len);
+			if (len <= 128)
+				return len17To128(in, off, len);
+			if (len <= MIDSIZE_MAX)
+				return len129To240(in, off, len);
+			accumulateLong(in, off, len);
+			return mergeAccumulators(11, len * PRIME64_1);
+		}
+
+		private long len0To16(byte[] in, int off, int len) {
+			if (len > 8) {
+				long flipLow = (SECRET[24] ^ SECRET[32]) + seed;
+				long flipHigh = (SECRET[40] ^ SECRET[48]) - seed;
+				long inputLow = readLongLE(in, off) ^ flipLow;
+				long inputHigh = readLongLE(in, off + len - 8) ^ flipHigh;
+				long acc = len + Long.reverseBytes(inputLow) + inputHigh + multiplyFold(inputLow, inputHigh);
+				return avalanche(acc);
+			}
+			if (len >= 4) {
+				long s = seed ^ ((long) Integer.reverseBytes((int) seed) << 32);
+				long input1 = readIntLE(in, off) & 0xFFFFFFFFL;
+				long input2 = readIntLE(in, off + len - 4) & 0xFFFFFFFFL;
+				long flip = (SECRET[8] ^ SECRET[16]) - s;
+				return rrmxmx((input2 + (input1 << 32)) ^ flip, len);
+			}
+			if (len > 0)
+				return xxh64Avalanche(combine1To3(in, off, len) ^ (FLIP_1TO3 + seed));
+			return xxh64Avalanche(seed ^ SECRET[56] ^ SECRET[64]);
+		}
+
+		private long len17To128(byte[] in, int off, int len) {
+			long acc = len * PRIME64_1;
+			if (len > 32) {
+				if (len > 64) {
+					if (len > 96) {
+						acc += mix16(in, off + 48, 96);
+						acc += mix16(in, off + len - 64, 112);
+					}
+					acc += mix16(in, off + 32, 64);
+					acc += mix16(in, off + len - 48, 80);
+				}
+				acc += mix16(in, off + 16, 32);
+				acc += mix16(in, off + len - 32, 48);
+			}
+			acc += mix16(in, off, 0);
+			acc += mix16(in, off + len - 16, 16);
+			return avalanche(acc);
+		}
+
+		private long len129To240(byte[] in, int off, int len) {
+			long acc = len * PRIME64_1;
+			int rounds = len / 16;
+			for (int i = 0; i < 8; i++) {
+				acc += mix16(in, off + 16 * i, 16 * i);
+			}
+			acc = avalanche(acc);
+			for (int i = 8; i < rounds; i++) {
+				acc += mix16(in, off + 16 * i, 16 * (i - 8) + 3);
+			}
+			acc += mix16(in, off + len - 16, 136 - 17);
+			return avalanche(acc);
+		}
+
+		/**
+		 * Computes both halves of the 128 bit hash into {@code #low} and
+		 * {@code #high}.
+		 */
+		private void hash128(byte[] in, int off, int len) {
+			if (len <= 16)
+				len0To16Wide(in, off, len);
+			else if (len <= 128)
+				len17To128Wide(in, off, len);
+			else if (len <= MIDSIZE_MAX)
+				len129To240Wide(in, off, len);
+			else {
+				accumulateLong(in, off, len);
+				low = mergeAccumulators(11, len * PRIME64_1);
+				high = mergeAccumulators(SECRET_SIZE - STRIPE_LEN - 11, ~(len * PRIME64_2));
+			}
+		}
+
+		private void len0To16Wide(byte[] in, int off, int len) {
+			if (len > 8) {
+				long flipLow = (SECRET[32] ^ SECRET[40]) - seed;
+				long flipHigh = (SECRET[48] ^ SECRET[56]) + seed;
+				long inputLow = readLongLE(in, off);
+				long inputHigh = readLongLE(in, off + len - 8);
+				long m = inputLow ^ inputHigh ^ flipLow;
+				long mLow = m * PRIME64_1;
+				long mHigh = multiplyHighUnsigned(m, PRIME64_1);
+				mLow += (long) (len - 1) << 54;
+				inputHigh ^= flipHigh;
+				mHigh += inputHigh + (inputHigh & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+				mLow ^= Long.reverseBytes(mHigh);
+				long hLow = mLow * PRIME64_2;
+				long hHigh = multiplyHighUnsigned(mLow, PRIME64_2) + mHigh * PRIME64_2;
+				low = avalanche(hLow);
+				high = avalanche(hHigh);
+			} else if (len >= 4) {
+				long s = seed ^ ((long) Integer.reverseBytes((int) seed) << 32);
+				long inputLow = readIntLE(in, off) & 0xFFFFFFFFL;
+				long inputHigh = readIntLE(in, off + len - 4) & 0xFFFFFFFFL;
+				long flip = (SECRET[16] ^ SECRET[24]) + s;
+				long keyed = (inputLow + (inputHigh << 32)) ^ flip;
+				long multiplier = PRIME64_1 + ((long) len << 2);
+				long mLow = keyed * multiplier;
+				long mHigh = multiplyHighUnsigned(keyed, multiplier);
+				mHigh += mLow << 1;
+				mLow ^= mHigh >>> 3;
+				mLow ^= mLow >>> 35;
+				mLow *= PRIME_MX2;
+				mLow ^= mLow >>> 28;
+				low = mLow;
+				high = avalanche(mHigh);
+			} else if (len > 0) {
+				long combinedLow = combine1To3(in, off, len);
+				long combinedHigh = Integer.rotateLeft(Integer.reverseBytes((int) combinedLow), 13) & 0xFFFFFFFFL;
+				low = xxh64Avalanche(combinedLow ^ (FLIP_1TO3 + seed));
+				high = xxh64Avalanche(combinedHigh ^ (FLIP_1TO3_HIGH - seed));
+			} else {
+				low = xxh64Avalanche(seed ^ SECRET[64] ^ SECRET[72]);
+				high = xxh64Avalanche(seed ^ SECRET[80] ^ SECRET[88]);
+			}
+		}
+
+		private void len17To128Wide(byte[] in, int off, int len) {
+			low = len * PRIME64_1;
+			high = 0;
+			if (len > 32) {
+				if (len > 64) {
+					if (len > 96) {
+						mix32(in, off + 48, off + len - 64, 96, seed);
+					}
+					mix32(in, off + 32, off + len - 48, 64, seed);
+				}
+				mix32(in, off + 16, off + len - 32, 32, seed);
+			}
+			mix32(in, off, off + len - 16, 0, seed);
+			finish128(len);
+		}
+
+		private void len129To240Wide(byte[] in, int off, int len) {
+			low = len * PRIME64_1;
+			high = 0;
+			int rounds = len / 32;
+			for (int i = 0; i < 4; i++) {
+				mix32(in, off + 32 * i, off + 32 * i + 16, 32 * i, seed);
+			}
+			low = avalanche(low);
+			high = avalanche(high);
+			for (int i = 4; i < rounds; i++) {
+				mix32(in, off + 32 * i, off + 32 * i + 16, 32 * (i - 4) + 3, seed);
+			}
+			mix32(in, off + len - 16, off + len - 32, 136 - 17 - 16, -seed);
+			finish128(len);
+		}
+
+		private void finish128(int len) {
+			long hLow = low + high;
+			long hHigh = low * PRIME64_1 + high * PRIME64_4 + (len - seed) * PRIME64_2;
+			low = avalanche(hLow);
+			high = -avalanche(hHigh);
+		}
+
+		private long mix16(byte[] in, int off, int secretOff) {
+			return mix16(in, off, secretOff, seed);
+		}
+
+		private static long mix16(byte[] in, int off, int secretOff, long seed) {
+			long inputLow = readLongLE(in, off);
+			long inputHigh = readLongLE(in, off + 8);
+			return multiplyFold(inputLow ^ (SECRET[secretOff] + seed), inputHigh ^ (SECRET[secretOff + 8] - seed));
+		}
+
+		private void mix32(byte[] in, int off1, int off2, int secretOff, long seed) {
+			low += mix16(in, off1, secretOff, seed);
+			low ^= readLongLE(in, off2) + readLongLE(in, off2 + 8);
+			high += mix16(in, off2, secretOff + 16, seed);
+			high ^= readLongLE(in, off1) + readLongLE(in, off1 + 8);
+		}
+
+		/**
+		 * Runs the stripe loop for inputs over 240 bytes, leaving the result
+		 * in the accumulator fields. A block of stripes walks the secret 8
+		 * bytes at a time, then the accumulators are scrambled. The last
+		 * stripe always ends at the end of the input, overlapping the one
+		 * before it.
+		 */
+		private void accumulateLong(byte[] in, int off, int len) {
+			long[] secret = longSecret;
+			long a0 = PRIME32_3, a1 = PRIME64_1, a2 = PRIME64_2, a3 = PRIME64_3;
+			long a4 = PRIME64_4, a5 = PRIME32_2, a6 = PRIME64_5, a7 = PRIME32_1;
+			int stripes = (len - 1) / STRIPE_LEN;
+			for (int n = 0; n <= stripes; n++) {
+				int p;
+				int s;
+				if (n < stripes) {
+					p = off + n * STRIPE_LEN;
+					s = (n % STRIPES_PER_BLOCK) * 8;
+				} else {
+					p = off + len - STRIPE_LEN;
+					s = SECRET_SIZE - STRIPE_LEN - 7;
+				}
+				long d0 = readLongLE(in, p), d1 = readLongLE(in, p + 8);
+				long d2 = readLongLE(in, p + 16), d3 = readLongLE(in, p + 24);
+				long d4 = readLongLE(in, p + 32), d5 = readLongLE(in, p + 40);
+				long d6 = readLongLE(in, p + 48), d7 = readLongLE(in, p + 56);
+				// each lane adds its data to the neighbor lane and the
+				// product of the keyed halves to itself
+				a1 += d0;
+				a0 += multiplyHalves(d0 ^ secret[s]);
+				a0 += d1;
+				a1 += multiplyHalves(d1 ^ secret[s + 8]);
+				a3 += d2;
+				a2 += multiplyHalves(d2 ^ secret[s + 16]);
+				a2 += d3;
+				a3 += multiplyHalves(d3 ^ secret[s + 24]);
+				a5 += d4;
+				a4 += multiplyHalves(d4 ^ secret[s + 32]);
+				a4 += d5;
+				a5 += multiplyHalves(d5 ^ secret[s + 40]);
+				a7 += d6;
+				a6 += multiplyHalves(d6 ^ secret[s + 48]);
+				a6 += d7;
+				a7 += multiplyHalves(d7 ^ secret[s + 56]);
+				if (n < stripes && (n + 1) % STRIPES_PER_BLOCK == 0) {
+					int k = SECRET_SIZE - STRIPE_LEN;
+					a0 = scramble(a0, secret[k]);
+					a1 = scramble(a1, secret[k + 8]);
+					a2 = scramble(a2, secret[k + 16]);
+					a3 = scramble(a3, secret[k + 24]);
+					a4 = scramble(a4, secret[k + 32]);
+					a5 = scramble(a5, secret[k + 40]);
+					a6 = scramble(a6, secret[k + 48]);
+					a7 = scramble(a7, secret[k + 56]);
+				}
+			}
+			acc0 = a0;
+			acc1 = a1;
+			acc2 = a2;
+			acc3 = a3;
+			acc4 = a4;
+			acc5 = a5;
+			acc6 = a6;
+			acc7 = a7;
+		}
+
+		private long mergeAccumulators(int secretOff, long start) {
+			long[] secret = longSecret;
+			long result = start;
+			result += multiplyFold(acc0 ^ secret[secretOff], acc1 ^ secret[secretOff + 8]);
+			result += multiplyFold(acc2 ^ secret[secretOff + 16], acc3 ^ secret[secretOff + 24]);
+			result += multiplyFold(acc4 ^ secret[secretOff + 32], acc5 ^ secret[secretOff + 40]);
+			result += multiplyFold(acc6 ^ secret[secretOff + 48], acc7 ^ secret[secretOff + 56]);
+			return avalanche(result);
+		}
+	}
+
+	private static long combine1To3(byte[] in, int off, int len) {
+		int c1 = in[off] & 0xFF;
+		int c2 = in[off + (len >> 1)] & 0xFF;
+		int c3 = in[off + len - 1] & 0xFF;
+		return ((c1 << 16) | (c2 << 24) | c3 | (len << 8)) & 0xFFFFFFFFL;
+	}
+
+	private static long multiplyHalves(long dataKey) {
+		return (dataKey & 0xFFFFFFFFL) * (dataKey >>> 32);
+	}
+
+	private static long scramble(long acc, long key) {
+		acc ^= acc >>> 47;
+		acc ^= key;
+		return acc * PRIME32_1;
+	}
+
+	private static long multiplyFold(long x, long y) {
+		return (x * y) ^ multiplyHighUnsigned(x, y);
+	}
+
+	private static long avalanche(long h) {
+		h ^= h >>> 37;
+		h *= PRIME_MX1;
+		return h ^ (h >>> 32);
+	}
+
+	private static long xxh64Avalanche(long h) {
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		return h ^ (h >>> 32);
+	}
+
+	private static long rrmxmx(long h, int len) {
+		h ^= Long.rotateLeft(h, 49) ^ Long.rotateLeft(h, 24);
+		h *= PRIME_MX2;
+		h ^= (h >>> 35) + len;
+		h *= PRIME_MX2;
+		return h ^ (h >>> 28);
+	}
+
+	/**
+	 * High 64 bits of the unsigned 128 bit product of two longs. Java 8 has no
+	 * intrinsic for this, so it's done in 32 bit halves.
+	 */
+	static long multiplyHighUnsigned(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xFFFFFFFFL;
+		long y1 = y >>> 32;
+		long p01 = x0 * y1;
+		// can't overflow, (2^32-1)^2 + 2 * (2^32-1) == 2^64-1
+		long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+		return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+	}
+
+}
@@ -1,10 +1,21 @@
 package com.google.common.hash;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
-public class xxHashFunction extends AbstractStreamingHashFunction implements Serializable {
+public class xxHashFunction extends AbstractStreamingHashFunction implements ResettableHashFunction, Serializable {
 
 	private static final long serialVersionUID = -3736964476904747967L;
+	private static final long PRIME64_1 = -7046029288634856825L; 
+	private static final long PRIME64_2 = -4417276706812531889L; 
+	private static final long PRIME64_3 = 1609587929392839161L;
+	private static final long PRIME64_4 = -8796714831421723037L; 
+	private static final long PRIME64_5 = 2870177450012600261L;
 	private final long seed;
 	
 	public xxHashFunction(long newSeed){
@@ -12,7 +23,7 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 	}
 
 	@Override
-	public Hasher newHasher() {
+	public xxHasher newHasher() {
 		return new xxHasher(seed);
 	}
 
@@ -21,37 +32,57 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 		return 64;
 	}
 	
-	static final class xxHasher extends AbstractByteHasher {
+	/**
+	 * Unlike other Guava hashers this one can be reset and reused, and the
+	 * hash read as a primitive, so hashing in a loop allocates nothing once
+	 * the buffer has grown to fit the input.
+	 */
+	public static final class xxHasher extends ResettableHasher {
 		
-		private static final long PRIME64_1 = -7046029288634856825L; 
-		private static final long PRIME64_2 = -4417276706812531889L; 
-		private static final long PRIME64_3 = 1609587929392839161L;
-		private static final long PRIME64_4 = -8796714831421723037L; 
-		private static final long PRIME64_5 = 2870177450012600261L;
 		private final long seed;
 		
+		private static final int INITIAL_LIMIT = 16;
+		
 		private byte[] ba;
 		private int baIndex=0;
+		// the buffer is only grown, never shrunk, on reuse. The hash depends
+		// on where expand() leaves baIndex, so growth is tracked separately
+		// to keep the output identical to a fresh hasher.
+		private int limit = INITIAL_LIMIT;
 		
 		xxHasher(long newSeed) {
 			seed = newSeed;
-			ba = new byte[16];
+			ba = new byte[INITIAL_LIMIT];
 		}
 
 		@Override
 		public HashCode hash() {
-			return HashCode.fromLong(hash(ba,0,baIndex,seed));
+			return HashCode.fromLong(hashAsLong());
+		}
+
+		@Override
+		public long hashAsLong() {
+			return hashBytes(ba,0,baIndex,seed);
+		}
+
+		@Override
+		public xxHasher reset() {
+			// skipped bytes must read as zero like they do in a new buffer
+			Arrays.fill(ba, 0, baIndex, (byte) 0);
+			baIndex = 0;
+			limit = INITIAL_LIMIT;
+			return this;
 		}
 
 		@Override
 		protected void update(byte b) {
-			if(baIndex == ba.length) expand();
+			if(baIndex == limit) expand();
 			ba[baIndex++] = b;
 		}
 		
 	  @Override
 	  public Hasher putInt(int value) {
-		if(baIndex+3 >=ba.length) expand();
+		if(baIndex+3 >=limit) expand();
 	    ba[baIndex+3] = (byte)(value >>> 24);
 	    ba[baIndex+2] = (byte)(value >>> 16);
 	    ba[baIndex+1] = (byte)(value >>> 8);
@@ -62,7 +93,7 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 
 	  @Override
 	  public Hasher putLong(long value) {
-		if(baIndex+7 >=ba.length) expand();
+		if(baIndex+7 >=limit) expand();
 	  	ba[baIndex+7] =  (byte)(value >>> 56);
 	  	ba[baIndex+6] =  (byte)(value >>> 48);
 	  	ba[baIndex+5] =  (byte)(value >>> 40);
@@ -76,122 +107,245 @@ public class xxHashFunction extends AbstractStreamingHashFunction implements Ser
 	  }
 	  
 	  private void expand() {
-		  	byte[] newBa = new byte[ba.length*2];
-			for(int i=ba.length-1; i>=0; i--) newBa[i] = ba[i];
-			baIndex = ba.length;
-			ba = newBa;
+		  	if (limit == ba.length) ba = Arrays.copyOf(ba, ba.length*2);
+			baIndex = limit;
+			limit *= 2;
 	  }
-		
-		private static long readLongLE(byte[] buf, int i) {
-	        return (buf[i] & 0xFFL) | ((buf[i+1] & 0xFFL) << 8) | ((buf[i+2] & 0xFFL) << 16) | ((buf[i+3] & 0xFFL) << 24)
-	                | ((buf[i+4] & 0xFFL) << 32) | ((buf[i+5] & 0xFFL) << 40) | ((buf[i+6] & 0xFFL) << 48) | ((buf[i+7] & 0xFFL) << 56);
-	    }
-		
-		private static int readIntLE(byte[] buf, int i) {
-		        return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
+	}
+
+	/**
+	 * <p>
+	 * Calculates XXHash64 from given {@code byte[]} buffer.
+	 * </p><p>
+	 * This code comes from <a href="https://github.com/jpountz/lz4-java">LZ4-Java</a> created
+	 * by Adrien Grand.
+	 * </p>
+	 *
+	 * @param buf to calculate hash from
+	 * @param off offset to start calculation from
+	 * @param len length of data to calculate hash
+	 * @param seed  hash seed
+	 * @return XXHash.
+	 */
+	public static long hashBytes(byte[] buf, int off, int len, long seed) {
+		checkPositionIndexes(off, off + len, buf.length);
+		final int end = off + len;
+		long h64;
+
+		if (len >= 32) {
+			final int limit = end - 32;
+			long v1 = seed + PRIME64_1 + PRIME64_2;
+			long v2 = seed + PRIME64_2;
+			long v3 = seed + 0;
+			long v4 = seed - PRIME64_1;
+			do {
+				v1 = round(v1, readLongLE(buf, off));
+				v2 = round(v2, readLongLE(buf, off + 8));
+				v3 = round(v3, readLongLE(buf, off + 16));
+				v4 = round(v4, readLongLE(buf, off + 24));
+				off += 32;
+			} while (off <= limit);
+			h64 = mergeAccumulators(v1, v2, v3, v4);
+		} else {
+			h64 = seed + PRIME64_5;
 		}
-	    
-		
-		 /**
-	     * <p>
-	     * Calculates XXHash64 from given {@code byte[]} buffer.
-	     * </p><p>
-	     * This code comes from <a href="https://github.com/jpountz/lz4-java">LZ4-Java</a> created
-	     * by Adrien Grand.
-	     * </p>
-	     *
-	     * @param buf to calculate hash from
-	     * @param off offset to start calculation from
-	     * @param len length of data to calculate hash
-	     * @param seed  hash seed
-	     * @return XXHash.
-	     */
-	    private static long hash(byte[] buf, int off, int len, long seed) {
-	        if (len < 0) {
-	            throw new IllegalArgumentException("lengths must be >= 0");
-	        }
-	        if(off<0 || off>=buf.length || off+len<0 || off+len>buf.length){
-	            throw new IndexOutOfBoundsException();
-	        }
-
-	        final int end = off + len;
-	        long h64;
-
-	        if (len >= 32) {
-	            final int limit = end - 32;
-	            long v1 = seed + PRIME64_1 + PRIME64_2;
-	            long v2 = seed + PRIME64_2;
-	            long v3 = seed + 0;
-	            long v4 = seed - PRIME64_1;
-	            do {
-	                v1 += readLongLE(buf, off) * PRIME64_2;
-	                v1 = Long.rotateLeft(v1, 31);
-	                v1 *= PRIME64_1;
-	                off += 8;
-
-	                v2 += readLongLE(buf, off) * PRIME64_2;
-	                v2 = Long.rotateLeft(v2, 31);
-	                v2 *= PRIME64_1;
-	                off += 8;
-
-	                v3 += readLongLE(buf, off) * PRIME64_2;
-	                v3 = Long.rotateLeft(v3, 31);
-	                v3 *= PRIME64_1;
-	                off += 8;
-
-	                v4 += readLongLE(buf, off) * PRIME64_2;
-	                v4 = Long.rotateLeft(v4, 31);
-	                v4 *= PRIME64_1;
-	                off += 8;
-	            } while (off <= limit);
-
-	            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
-
-	            v1 *= PRIME64_2; v1 = Long.rotateLeft(v1, 31); v1 *= PRIME64_1; h64 ^= v1;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v2 *= PRIME64_2; v2 = Long.rotateLeft(v2, 31); v2 *= PRIME64_1; h64 ^= v2;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v3 *= PRIME64_2; v3 = Long.rotateLeft(v3, 31); v3 *= PRIME64_1; h64 ^= v3;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-
-	            v4 *= PRIME64_2; v4 = Long.rotateLeft(v4, 31); v4 *= PRIME64_1; h64 ^= v4;
-	            h64 = h64 * PRIME64_1 + PRIME64_4;
-	        } else {
-	            h64 = seed + PRIME64_5;
-	        }
-
-	        h64 += len;
-
-	        while (off <= end - 8) {
-	            long k1 = readLongLE(buf, off);
-	            k1 *= PRIME64_2; k1 = Long.rotateLeft(k1, 31); k1 *= PRIME64_1; h64 ^= k1;
-	            h64 = Long.rotateLeft(h64, 27) * PRIME64_1 + PRIME64_4;
-	            off += 8;
-	        }
-
-	        if (off <= end - 4) {
-	            h64 ^= (readIntLE(buf, off) & 0xFFFFFFFFL) * PRIME64_1;
-	            h64 = Long.rotateLeft(h64, 23) * PRIME64_2 + PRIME64_3;
-	            off += 4;
-	        }
-
-	        while (off < end) {
-	            h64 ^= (buf[off] & 0xFF) * PRIME64_5;
-	            h64 = Long.rotateLeft(h64, 11) * PRIME64_1;
-	            ++off;
-	        }
-
-	        h64 ^= h64 >>> 33;
-	        h64 *= PRIME64_2;
-	        h64 ^= h64 >>> 29;
-	        h64 *= PRIME64_3;
-	        h64 ^= h64 >>> 32;
-
-	        return h64;
-	    }
-		
+
+		h64 += len;
+
+		while (off <= end - 8) {
+			h64 = mixLong(h64, readLongLE(buf, off));
+			off += 8;
+		}
+
+		if (off <= end - 4) {
+			h64 = mixInt(h64, readIntLE(buf, off));
+			off += 4;
+		}
+
+		while (off < end) {
+			h64 = mixByte(h64, buf[off]);
+			++off;
+		}
+
+		return avalanche(h64);
+	}
+
+	/**
+	 * Calculates XXHash64 of the bytes between a buffer's position and limit,
+	 * reading heap and direct buffers in place. The buffer's position and byte
+	 * order aren't changed, and the result is the same as hashing the bytes
+	 * copied into an array.
+	 *
+	 * @param buf to calculate hash from
+	 * @param seed  hash seed
+	 * @return XXHash.
+	 */
+	public static long hashBuffer(ByteBuffer buf, long seed) {
+		if (buf.hasArray())
+			return hashBytes(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), seed);
+		// the hash reads words little endian
+		boolean swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+		int off = buf.position();
+		final int end = buf.limit();
+		final int len = end - off;
+		long h64;
+
+		if (len >= 32) {
+			final int limit = end - 32;
+			long v1 = seed + PRIME64_1 + PRIME64_2;
+			long v2 = seed + PRIME64_2;
+			long v3 = seed + 0;
+			long v4 = seed - PRIME64_1;
+			do {
+				v1 = round(v1, readLongLE(buf, off, swap));
+				v2 = round(v2, readLongLE(buf, off + 8, swap));
+				v3 = round(v3, readLongLE(buf, off + 16, swap));
+				v4 = round(v4, readLongLE(buf, off + 24, swap));
+				off += 32;
+			} while (off <= limit);
+			h64 = mergeAccumulators(v1, v2, v3, v4);
+		} else {
+			h64 = seed + PRIME64_5;
+		}
+
+		h64 += len;
+
+		while (off <= end - 8) {
+			h64 = mixLong(h64, readLongLE(buf, off, swap));
+			off += 8;
+		}
+
+		if (off <= end - 4) {
+			int k = buf.getInt(off);
+			h64 = mixInt(h64, swap ? Integer.reverseBytes(k) : k);
+			off += 4;
+		}
+
+		while (off < end) {
+			h64 = mixByte(h64, buf.get(off));
+			++off;
+		}
+
+		return avalanche(h64);
+	}
+
+	/**
+	 * Calculates XXHash64 of a character sequence's UTF-16 code units, read
+	 * straight from the sequence. The result is the same as hashing the
+	 * sequence encoded as UTF-16LE, without encoding it.
+	 *
+	 * @param chars to calculate hash from
+	 * @param seed  hash seed
+	 * @return XXHash.
+	 */
+	public static long hashChars(CharSequence chars, long seed) {
+		checkNotNull(chars);
+		int off = 0;
+		final int end = chars.length();
+		// in bytes, two per char
+		final long len = 2L * end;
+		long h64;
+
+		if (end >= 16) {
+			final int limit = end - 16;
+			long v1 = seed + PRIME64_1 + PRIME64_2;
+			long v2 = seed + PRIME64_2;
+			long v3 = seed + 0;
+			long v4 = seed - PRIME64_1;
+			do {
+				v1 = round(v1, readLongLE(chars, off));
+				v2 = round(v2, readLongLE(chars, off + 4));
+				v3 = round(v3, readLongLE(chars, off + 8));
+				v4 = round(v4, readLongLE(chars, off + 12));
+				off += 16;
+			} while (off <= limit);
+			h64 = mergeAccumulators(v1, v2, v3, v4);
+		} else {
+			h64 = seed + PRIME64_5;
+		}
+
+		h64 += len;
+
+		while (off <= end - 4) {
+			h64 = mixLong(h64, readLongLE(chars, off));
+			off += 4;
+		}
+
+		if (off <= end - 2) {
+			h64 = mixInt(h64, chars.charAt(off) | (chars.charAt(off + 1) << 16));
+			off += 2;
+		}
+
+		if (off < end) {
+			char c = chars.charAt(off);
+			h64 = mixByte(h64, (byte) c);
+			h64 = mixByte(h64, (byte) (c >>> 8));
+		}
+
+		return avalanche(h64);
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME64_1;
+	}
+
+	private static long mergeRound(long h64, long acc) {
+		h64 ^= round(0, acc);
+		return h64 * PRIME64_1 + PRIME64_4;
+	}
+
+	private static long mergeAccumulators(long v1, long v2, long v3, long v4) {
+		long h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+		h64 = mergeRound(h64, v1);
+		h64 = mergeRound(h64, v2);
+		h64 = mergeRound(h64, v3);
+		return mergeRound(h64, v4);
+	}
+
+	private static long mixLong(long h64, long k1) {
+		h64 ^= round(0, k1);
+		return Long.rotateLeft(h64, 27) * PRIME64_1 + PRIME64_4;
+	}
+
+	private static long mixInt(long h64, int k) {
+		h64 ^= (k & 0xFFFFFFFFL) * PRIME64_1;
+		return Long.rotateLeft(h64, 23) * PRIME64_2 + PRIME64_3;
+	}
+
+	private static long mixByte(long h64, byte b) {
+		h64 ^= (b & 0xFF) * PRIME64_5;
+		return Long.rotateLeft(h64, 11) * PRIME64_1;
+	}
+
+	private static long avalanche(long h64) {
+		h64 ^= h64 >>> 33;
+		h64 *= PRIME64_2;
+		h64 ^= h64 >>> 29;
+		h64 *= PRIME64_3;
+		h64 ^= h64 >>> 32;
+		return h64;
+	}
+
+	static long readLongLE(byte[] buf, int i) {
+		return (buf[i] & 0xFFL) | ((buf[i+1] & 0xFFL) << 8) | ((buf[i+2] & 0xFFL) << 16) | ((buf[i+3] & 0xFFL) << 24)
+				| ((buf[i+4] & 0xFFL) << 32) | ((buf[i+5] & 0xFFL) << 40) | ((buf[i+6] & 0xFFL) << 48) | ((buf[i+7] & 0xFFL) << 56);
+	}
+
+	static int readIntLE(byte[] buf, int i) {
+		return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
+	}
+
+	private static long readLongLE(ByteBuffer buf, int i, boolean swap) {
+		long k = buf.getLong(i);
+		return swap ? Long.reverseBytes(k) : k;
+	}
+
+	// four chars, each little endian
+	private static long readLongLE(CharSequence chars, int i) {
+		return chars.charAt(i) | ((long) chars.charAt(i+1) << 16) | ((long) chars.charAt(i+2) << 32)
+				| ((long) chars.charAt(i+3) << 48);
 	}
 
 }
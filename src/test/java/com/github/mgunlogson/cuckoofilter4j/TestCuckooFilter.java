@@ -18,13 +18,29 @@ package com.github.mgunlogson.cuckoofilter4j;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
 import com.github.mgunlogson.cuckoofilter4j.BucketAndTag;
 import com.github.mgunlogson.cuckoofilter4j.CuckooFilter;
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
-import com.github.mgunlogson.cuckoofilter4j.Utils.Victim;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
 import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.google.common.testing.ClassSanityTester;
 import com.google.common.testing.EqualsTester;
 import com.google.common.testing.SerializableTester;
@@ -109,6 +125,433 @@ public class TestCuckooFilter {
 
 	}
 
+	/**
+	 * Builds a filter for 130000 items, puts 100000, checks they're all found
+	 * and the false positive rate is at most twice the requested one, then
+	 * deletes them all.
+	 * 
+	 * @return the filter, empty again
+	 */
+	private static CuckooFilter<Integer> checkPutContainDelete(CuckooFilter.Builder<Integer> builder, double fpp) {
+		CuckooFilter<Integer> filter = builder.withFalsePositiveRate(fpp).build();
+		int maxInsertedVal = 100000;
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.put(i));
+		}
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.mightContain(i));
+		}
+		int falsePositives = 0;
+		int totalAttempts = 100000;
+		for (int i = maxInsertedVal; i < totalAttempts + maxInsertedVal; i++) {
+			if (filter.mightContain(i))
+				falsePositives++;
+		}
+		assertTrue((double) falsePositives / totalAttempts + " false positive rate is above limit",
+				(double) falsePositives / totalAttempts < 2 * fpp);
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.delete(i));
+		}
+		assertEquals(0, filter.getCount());
+		return filter;
+	}
+
+	@Test
+	public void sanityAlignedTableLayouts() {
+		// false positive rates that give 8, 12, and 16 bit tags, the tag is
+		// log2(2 * 4 * 0.955 / fpp) rounded up
+		double[] fpps = { 0.03, 0.002, 0.0002 };
+		Class<?>[] layouts = { ByteFilterTable.class, Bucket48FilterTable.class, ShortFilterTable.class };
+		for (int j = 0; j < fpps.length; j++) {
+			CuckooFilter<Integer> filter = checkPutContainDelete(
+					new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000), fpps[j]);
+			assertEquals(layouts[j], filter.table.getClass());
+		}
+	}
+
+	@Test
+	public void sanitySemiSorted() {
+		CuckooFilter<Integer> plain = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		// same tag size so false positive rate should be unaffected
+		CuckooFilter<Integer> filter = checkPutContainDelete(
+				new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000).withSemiSortedBuckets(true), 0.01);
+		assertTrue(filter.getStorageSize() < plain.getStorageSize());
+	}
+
+	@Test
+	public void sanityBucketSizes() {
+		for (int bucketSize : new int[] { 2, 4, 8 }) {
+			// tag size grows with bucket size to hold the false positive rate
+			CuckooFilter<Integer> filter = checkPutContainDelete(
+					new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000).withBucketSize(bucketSize), 0.01);
+			assertEquals(bucketSize, filter.table.bucketSize);
+		}
+	}
+
+	@Test
+	public void sanityBucketSizeFillCapacity() {
+		int[] bucketSizes = { 2, 4, 8 };
+		double[] minLoadFactors = { 0.8, 0.93, 0.96 };
+		for (int i = 0; i < bucketSizes.length; i++) {
+			CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+					.withFalsePositiveRate(0.001).withBucketSize(bucketSizes[i]).build();
+			int item = 0;
+			while (filter.put(item))
+				item++;
+			assertTrue(bucketSizes[i] + ": load factor " + filter.getLoadFactor() + " on first failure",
+					filter.getLoadFactor() > minLoadFactors[i]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsBucketSize() {
+		new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000000).withBucketSize(6);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsSemiSortedBucketSize() {
+		new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000000).withBucketSize(8).withSemiSortedBuckets(true)
+				.build();
+	}
+
+	@Test
+	public void sanityOffHeap() {
+		CuckooFilter<Integer> filter = checkPutContainDelete(
+				new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000).withOffHeapStorage(true), 0.01);
+		// copies and deserialized filters get their own memory
+		int maxInsertedVal = 10000;
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.put(i));
+		}
+		CuckooFilter<Integer> copy = filter.copy();
+		assertEquals(filter, copy);
+		CuckooFilter<Integer> reserialized = SerializableTester.reserializeAndAssert(filter);
+		filter.close();
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(copy.delete(i));
+			assertTrue(reserialized.mightContain(i));
+		}
+		assertEquals(0, copy.getCount());
+		copy.close();
+		reserialized.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void useAfterClose() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000)
+				.withOffHeapStorage(true).build();
+		assertTrue(filter.put(1));
+		filter.close();
+		// closing again is fine, using it isn't
+		filter.close();
+		filter.mightContain(1);
+	}
+
+	@Test
+	public void sanityMappedFile() throws IOException {
+		Path dir = Files.createTempDirectory("cuckoo");
+		for (boolean semiSorted : new boolean[] { false, true }) {
+			Path file = dir.resolve("filter" + semiSorted);
+			CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+					.withFalsePositiveRate(0.01).withSemiSortedBuckets(semiSorted).buildMapped(file);
+			int maxInsertedVal = 100000;
+			for (int i = 0; i < maxInsertedVal; i++) {
+				assertTrue(filter.put(i));
+			}
+			filter.flush();
+			CuckooFilter<Integer> copy = filter.copy();
+			filter.close();
+			CuckooFilter<Integer> reopened = CuckooFilter.open(file, Funnels.integerFunnel());
+			assertEquals(copy, reopened);
+			assertEquals(maxInsertedVal, reopened.getCount());
+			for (int i = 0; i < maxInsertedVal; i++) {
+				assertTrue(reopened.mightContain(i));
+			}
+			for (int i = 0; i < maxInsertedVal / 2; i++) {
+				assertTrue(reopened.delete(i));
+			}
+			// close writes the count
+			reopened.close();
+			reopened = CuckooFilter.open(file, Funnels.integerFunnel());
+			assertEquals(maxInsertedVal / 2, reopened.getCount());
+			for (int i = maxInsertedVal / 2; i < maxInsertedVal; i++) {
+				assertTrue(reopened.mightContain(i));
+			}
+			reopened.close();
+			copy.close();
+			Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void sanitySingleWriter() throws IOException {
+		for (boolean semiSorted : new boolean[] { false, true }) {
+			checkPutContainDelete(new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000).withSingleWriter(true)
+					.withSemiSortedBuckets(semiSorted), 0.01);
+			CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+					.withSingleWriter(true).withSemiSortedBuckets(semiSorted).build();
+			int i = 0;
+			// fill up so tags get kicked around and into the victim
+			while (filter.put(i)) {
+				i++;
+			}
+			assertTrue(filter.victims.isFull());
+			BitSet found = filter.mightContainAll(new ArrayList<>(ContiguousSet.create(Range.closedOpen(0, i),
+					DiscreteDomain.integers())));
+			for (int j = 0; j < i; j++) {
+				assertTrue(filter.mightContain(j));
+				assertTrue(filter.approximateCount(j) > 0);
+				assertTrue(found.get(j));
+			}
+			assertEquals(i, filter.getCount());
+			assertTrue(SerializableTester.reserialize(filter).singleWriter);
+			assertTrue(filter.copy().singleWriter);
+			for (int j = 0; j < i; j++) {
+				assertTrue(filter.delete(j));
+			}
+			assertEquals(0, filter.getCount());
+		}
+		Path file = Files.createTempDirectory("cuckoo").resolve("filter");
+		CuckooFilter<Integer> mapped = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withSingleWriter(true).buildMapped(file);
+		mapped.close();
+		CuckooFilter<Integer> reopened = CuckooFilter.open(file, Funnels.integerFunnel());
+		assertTrue(reopened.singleWriter);
+		reopened.close();
+		Files.delete(file);
+	}
+
+	@Test
+	public void sanityPreHashed() {
+		// one hash per item probes filters of different sizes
+		HashFunction hashFunction = Hashing.murmur3_128();
+		CuckooFilter<Integer> small = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		CuckooFilter<Integer> large = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 1000000)
+				.withFalsePositiveRate(0.001).build();
+		int maxInsertedVal = 100000;
+		for (int i = 0; i < maxInsertedVal; i++) {
+			HashCode hash = hashFunction.hashInt(i);
+			assertTrue(small.putHash(hash.asLong()));
+			long high = hashFunction.hashInt(~i).asLong();
+			assertTrue(large.putHash(hash.asLong(), high));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < maxInsertedVal * 2; i++) {
+			HashCode hash = hashFunction.hashInt(i);
+			long high = hashFunction.hashInt(~i).asLong();
+			if (i < maxInsertedVal) {
+				assertTrue(small.mightContainHash(hash.asLong()));
+				assertTrue(large.mightContainHash(hash.asLong(), high));
+				assertTrue(large.approximateCountHash(hash.asLong(), high) >= 1);
+			} else if (small.mightContainHash(hash.asLong()))
+				falsePositives++;
+		}
+		assertTrue((double) falsePositives / maxInsertedVal + " false positive rate is above limit",
+				(double) falsePositives / maxInsertedVal < 0.02);
+		for (int i = 0; i < maxInsertedVal; i++) {
+			HashCode hash = hashFunction.hashInt(i);
+			assertTrue(small.deleteHash(hash.asLong()));
+			assertTrue(large.deleteHash(hash.asLong(), hashFunction.hashInt(~i).asLong()));
+		}
+		assertEquals(0, small.getCount());
+		assertEquals(0, large.getCount());
+		assertEquals(0, small.approximateCountHash(hashFunction.hashInt(0).asLong()));
+	}
+
+	@Test
+	public void sanityPutIfAbsent() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+				.withFalsePositiveRate(0.01).build();
+		// nearly full so both buckets are often full and tags get moved
+		int items = 0;
+		int inserted = 0;
+		while (filter.getLoadFactor() < 0.95) {
+			if (!filter.putIfAbsent(items))
+				inserted++;
+			items++;
+		}
+		// a false positive makes a new item look present
+		assertTrue(inserted + " of " + items + " inserted", inserted > items * 0.98);
+		assertEquals(inserted, filter.getCount());
+		for (int i = 0; i < items; i++) {
+			assertTrue(filter.putIfAbsent(i));
+			assertTrue(filter.mightContain(i));
+		}
+		assertEquals(inserted, filter.getCount());
+
+		// empty so there are no false positives
+		CuckooFilter<Integer> empty = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 1000).build();
+		// stashed tags count as present
+		BucketAndTag pos = empty.hasher.generate(42);
+		empty.victims.add(pos.index, empty.hasher.altIndex(pos.index, pos.tag), pos.tag);
+		assertTrue(empty.putIfAbsent(42));
+		assertEquals(0, empty.getCount());
+		// pre-hashed
+		assertFalse(empty.putIfAbsentHash(42L));
+		assertTrue(empty.putIfAbsentHash(42L));
+		assertFalse(empty.putIfAbsentHash(42L, 43L));
+		assertTrue(empty.putIfAbsentHash(42L, 43L));
+		assertTrue(empty.mightContainHash(42L, 43L));
+		assertEquals(2, empty.getCount());
+	}
+
+	@Test
+	public void putIfAbsentWhenFull() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000).build();
+		int items = 0;
+		while (filter.put(items)) {
+			items++;
+		}
+		long count = filter.getCount();
+		// items already in are still reported as present
+		for (int i = 0; i < items; i++) {
+			assertTrue(filter.putIfAbsent(i));
+		}
+		assertEquals(count, filter.getCount());
+		// a new item that doesn't fit is neither reported nor counted as
+		// inserted
+		int failures = 0;
+		for (int i = items; i < items + 1000; i++) {
+			try {
+				if (!filter.putIfAbsent(i)) {
+					count++;
+				}
+			} catch (IllegalStateException e) {
+				failures++;
+			}
+			assertEquals(count, filter.getCount());
+		}
+		assertTrue(failures > 0);
+	}
+
+	@Test
+	public void sanityPutAll() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		List<Integer> batch = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			batch.add(i);
+		}
+		BitSet inserted = filter.putAll(batch);
+		assertEquals(100000, inserted.cardinality());
+		assertEquals(100000, filter.getCount());
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain(i));
+		}
+		CuckooFilter<Integer> single = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		Integer[] array = batch.toArray(new Integer[0]);
+		assertEquals(100000, single.putAll(array).cardinality());
+		assertTrue(single.putAll(new Integer[0]).isEmpty());
+	}
+
+	@Test
+	public void sanityPutAllOverfill() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 10000).build();
+		long[] hashes = new long[20000];
+		Random rando = new Random(42);
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = rando.nextLong();
+		}
+		BitSet inserted = filter.putAllHash(hashes);
+		// fills up part way through, every reported insert is there
+		assertTrue(inserted.cardinality() < hashes.length);
+		assertEquals(inserted.cardinality(), filter.getCount());
+		for (int i = inserted.nextSetBit(0); i >= 0; i = inserted.nextSetBit(i + 1)) {
+			assertTrue(filter.mightContainHash(hashes[i]));
+		}
+		assertTrue(filter.getLoadFactor() > 0.9);
+	}
+
+	@Test
+	public void sanityMightContainAll() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		Integer[] probes = new Integer[200000];
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = i;
+			if (i < 100000)
+				assertTrue(filter.put(i));
+		}
+		BitSet found = filter.mightContainAll(probes);
+		for (int i = 0; i < probes.length; i++) {
+			assertEquals(filter.mightContain(probes[i]), found.get(i));
+		}
+		assertEquals(found, filter.mightContainAll(Arrays.asList(probes)));
+		assertTrue(filter.mightContainAll(new Integer[0]).isEmpty());
+	}
+
+	@Test
+	public void sanityMightContainAllFull() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 10000).build();
+		long[] hashes = new long[20000];
+		Random rando = new Random(7);
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = rando.nextLong();
+		}
+		BitSet inserted = filter.putAllHash(hashes);
+		// includes whatever ended up as the victim
+		BitSet found = filter.mightContainAllHash(hashes);
+		for (int i = 0; i < hashes.length; i++) {
+			assertEquals(filter.mightContainHash(hashes[i]), found.get(i));
+			if (inserted.get(i))
+				assertTrue(found.get(i));
+		}
+	}
+
+	@Test
+	public void sanityHashedKeys() {
+		CuckooFilter<byte[]> filter = new CuckooFilter.Builder<>(Funnels.byteArrayFunnel(), 130000)
+				.withFalsePositiveRate(0.01).build();
+		for (int i = 0; i < 100000; i++) {
+			String key = "key" + i;
+			assertTrue(filter.putHash(filter.hashChars(key)));
+		}
+		for (int i = 0; i < 100000; i++) {
+			// the same key as bytes in an array, a direct buffer, and a slice
+			byte[] bytes = ("xx" + "key" + i).getBytes(StandardCharsets.UTF_16LE);
+			assertTrue(filter.mightContainHash(filter.hashBytes(bytes, 4, bytes.length - 4)));
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+			direct.position(4);
+			assertTrue(filter.mightContainHash(filter.hashBytes(direct)));
+			assertTrue(filter.mightContainHash(filter.hashChars(new StringBuilder("key").append(i))));
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.deleteHash(filter.hashChars("key" + i)));
+		}
+		assertEquals(0, filter.getCount());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMappedFileExists() throws IOException {
+		Path file = Files.createTempFile("cuckoo", null);
+		try {
+			new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000).buildMapped(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenNotAFilter() throws IOException {
+		Path file = Files.createTempFile("cuckoo", null);
+		try {
+			Files.write(file, new byte[5000]);
+			CuckooFilter.open(file, Funnels.integerFunnel());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsSemiSortedTooLowFp() {
+		new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000000).withFalsePositiveRate(0.000001)
+				.withSemiSortedBuckets(true).build();
+	}
+
 	@Test
 	public void sanityApproimateCount() {
 		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
@@ -118,19 +561,21 @@ public class TestCuckooFilter {
 			assertTrue(filter.put(42));
 			assertTrue(filter.approximateCount(42) == i + 1);
 		}
-		// should fill victim
-		assertTrue(filter.put(42));
-		assertTrue(filter.approximateCount(42) == 9);
+		// should fill victim stash
+		int maxCount = 8 + VictimStash.CAPACITY;
+		for (int i = 8; i < maxCount; i++) {
+			assertTrue(filter.put(42));
+			assertTrue(filter.approximateCount(42) == i + 1);
+		}
 		// should fail
 		assertFalse(filter.put(42));
 		// count should be the same
-		assertTrue(filter.approximateCount(42) == 9);
-		// should delete victim and another pos
+		assertTrue(filter.approximateCount(42) == maxCount);
+		// should delete two, victims move back into the table
 		assertTrue(filter.delete(42) && filter.delete(42));
-		// should be 7 copies now
-		assertTrue(filter.approximateCount(42) == 7);
+		assertTrue(filter.approximateCount(42) == maxCount - 2);
 		// loop delete rest
-		for (int i = 7; i > 0; i--) {
+		for (int i = maxCount - 2; i > 0; i--) {
 			assertTrue(filter.delete(42));
 			assertTrue(filter.approximateCount(42) == i - 1);
 		}
@@ -190,8 +635,59 @@ public class TestCuckooFilter {
 				break;
 			}
 		}
-		assertTrue("Duplicate insert failed at " + failedAt + " Expected value is (2*BUCKET_SIZE)+victim cache = 9",
-				failedAt == 9);
+		assertTrue("Duplicate insert failed at " + failedAt + " Expected value is (2*BUCKET_SIZE)+victim stash = "
+				+ (2 * CuckooFilter.DEFAULT_BUCKET_SIZE + VictimStash.CAPACITY),
+				failedAt == 2 * CuckooFilter.DEFAULT_BUCKET_SIZE + VictimStash.CAPACITY);
+	}
+
+	@Test
+	public void sanityEvictionPath() {
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+				.withFalsePositiveRate(0.01).build();
+		int i = 0;
+		while (filter.getLoadFactor() < 0.9) {
+			assertTrue(filter.put(i++));
+		}
+		EvictionPath path = new EvictionPath();
+		int found = 0;
+		for (int j = i; j < i + 1000; j++) {
+			BucketAndTag pos = filter.hasher.generate(j);
+			long altIndex = filter.hasher.altIndex(pos.index, pos.tag);
+			if (path.search(filter.table, filter.hasher, pos.index, altIndex)) {
+				found++;
+				assertTrue(path.length() <= EvictionPath.MAX_LENGTH);
+				// the end has room and every move goes to the tag's other
+				// bucket
+				assertTrue(filter.table.insertToBucket(path.getBucket(path.getEnd()), 0));
+				for (int node = path.getEnd(); !path.isRoot(node); node = path.getParent(node)) {
+					long from = path.getBucket(path.getParent(node));
+					assertTrue(filter.table.findTag(from, from, path.getTag(node)));
+					assertEquals(path.getBucket(node), filter.hasher.altIndex(from, path.getTag(node)));
+				}
+			}
+		}
+		assertTrue(found + " paths found", found > 900);
+	}
+
+	@Test
+	public void sanityFillWithEvictionPaths() {
+		int[] bucketSizes = { 2, 4, 8 };
+		double[] loadFactors = { 0.75, 0.9, 0.9 };
+		for (int k = 0; k < bucketSizes.length; k++) {
+			CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+					.withBucketSize(bucketSizes[k]).build();
+			int i = 0;
+			// nearly full, the stash stays unused since short paths still
+			// exist
+			while (filter.getLoadFactor() < loadFactors[k]) {
+				assertTrue(filter.put(i++));
+			}
+			assertTrue(filter.victims.isEmpty());
+			for (int j = 0; j < i; j++) {
+				assertTrue(filter.mightContain(j));
+			}
+			assertEquals(i, filter.getCount());
+		}
 	}
 
 	@Test
@@ -242,6 +738,31 @@ public class TestCuckooFilter {
 
 	}
 
+	@Test
+	public void sanityTagSizes() {
+		assertEquals(10, Utils.getBitsPerItemForFpRate(0.01, 4));
+		assertEquals(9, Utils.getBitsPerItemForFpRate(0.01, 2));
+		assertEquals(11, Utils.getBitsPerItemForFpRate(0.01, 8));
+		// the requested rate holds with the table filled to its load factor
+		for (double fpp : new double[] { 0.03, 0.01, 0.001 }) {
+			CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000)
+					.withFalsePositiveRate(fpp).build();
+			int inserted = 0;
+			while (inserted < filter.getActualCapacity() * 0.95 && filter.put(inserted)) {
+				inserted++;
+			}
+			int falsePositives = 0;
+			int totalAttempts = 200000;
+			for (int i = inserted; i < inserted + totalAttempts; i++) {
+				if (filter.mightContain(i))
+					falsePositives++;
+			}
+			// a little room for sampling noise, 8 bit tags at 1% were at 2.4%
+			double rate = (double) falsePositives / totalAttempts;
+			assertTrue(fpp + ": " + rate + " false positive rate is above the requested rate", rate < fpp * 1.1);
+		}
+	}
+
 	@Test
 	public void sanityFalsePositiveRate() {
 		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
@@ -270,11 +791,13 @@ public class TestCuckooFilter {
 		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
 				.withFalsePositiveRate(0.01).withHashAlgorithm(Algorithm.Murmur3_32).build();
 
-		for (int i = 0; i < 9; i++) {
+		int copies = 2 * CuckooFilter.DEFAULT_BUCKET_SIZE + VictimStash.CAPACITY;
+		for (int i = 0; i < copies; i++) {
 			assertTrue(filter.put(42));
 		}
-		assertTrue(filter.getCount() == 9);
-		for (int i = 0; i < 9; i++) {
+		assertTrue(filter.getCount() == copies);
+		assertTrue(filter.victims.isFull());
+		for (int i = 0; i < copies; i++) {
 			assertTrue(filter.mightContain(42));
 			assertTrue(filter.delete(42));
 		}
@@ -290,12 +813,50 @@ public class TestCuckooFilter {
 	public void testVictimCacheTagComparison() {
 		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 130000)
 				.withFalsePositiveRate(0.01).withHashAlgorithm(Algorithm.Murmur3_32).build();
-		filter.hasVictim = true;
-		filter.victim = new Victim(1, 2, 42);
-		BucketAndTag test1 = new BucketAndTag(filter.victim.getI1(), 42);
-		BucketAndTag test2 = new BucketAndTag(filter.victim.getI2(), 42);
+		filter.victims.add(1, 2, 42);
+		filter.victims.add(5, 6, 43);
+		BucketAndTag test1 = new BucketAndTag(1, 42);
+		BucketAndTag test2 = new BucketAndTag(2, 42);
 		assertTrue(filter.checkIsVictim(test1));
 		assertTrue(filter.checkIsVictim(test2));
+		assertTrue(filter.checkIsVictim(new BucketAndTag(6, 43)));
+		assertFalse(filter.checkIsVictim(new BucketAndTag(5, 42)));
+		assertFalse(filter.checkIsVictim(new BucketAndTag(3, 43)));
+	}
+
+	@Test
+	public void sanityVictimStash() throws IOException {
+		Path file = Files.createTempDirectory("cuckoo").resolve("filter");
+		CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000).buildMapped(file);
+		int i = 0;
+		int firstVictimAt = -1;
+		while (filter.put(i)) {
+			if (firstVictimAt < 0 && !filter.victims.isEmpty())
+				firstVictimAt = i;
+			i++;
+		}
+		// inserts kept working after the first item was stashed
+		assertTrue(filter.victims.isFull());
+		assertTrue(i > firstVictimAt + VictimStash.CAPACITY - 1);
+		for (int j = 0; j < i; j++) {
+			assertTrue(filter.mightContain(j));
+		}
+		// stash survives reopening the file
+		filter.close();
+		filter = CuckooFilter.open(file, Funnels.integerFunnel());
+		assertTrue(filter.victims.isFull());
+		assertEquals(i, filter.getCount());
+		// deleting makes room, victims move back into the table
+		for (int j = 0; j < i / 10; j++) {
+			assertTrue(filter.delete(j));
+		}
+		assertTrue(filter.victims.size() < VictimStash.CAPACITY);
+		assertTrue(filter.put(i));
+		for (int j = i / 10; j <= i; j++) {
+			assertTrue(filter.mightContain(j));
+		}
+		filter.close();
+		Files.delete(file);
 	}
 
 	@Test
@@ -404,6 +965,10 @@ public class TestCuckooFilter {
 		CuckooFilter<Integer> filterCopy = filter.copy();
 		assertTrue(filterCopy.equals(filter));
 		assertNotSame(filter, filterCopy);
+		// the count isn't shared either
+		assertTrue(filterCopy.delete(0));
+		assertEquals(1000000, filter.getCount());
+		assertEquals(999999, filterCopy.getCount());
 	}
 
 	@Test
@@ -423,10 +988,15 @@ public class TestCuckooFilter {
 	}
 
 	@Test
-	public void autoTestNulls() {
+	public void autoTestNulls() throws IOException {
+		// open() is used as a factory, so give it a real filter file
+		Path file = Files.createTempDirectory("cuckoo").resolve("filter");
+		new CuckooFilter.Builder<>(Funnels.integerFunnel(), 2000).buildMapped(file).close();
 		// chose 15 for int so it passes checks
 		new ClassSanityTester().setDefault(int.class, 15).setDefault(long.class, 15L).setDefault(double.class, 0.001)
-				.testNulls(CuckooFilter.class);
+				.setDefault(Path.class, file).testNulls(CuckooFilter.class);
+		Files.delete(file);
+		Files.delete(file.getParent());
 	}
 
 	@Test
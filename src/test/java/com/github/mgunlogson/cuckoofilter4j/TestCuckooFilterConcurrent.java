@@ -1,7 +1,22 @@
 package com.github.mgunlogson.cuckoofilter4j;
 
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.junit.Test;
 
+import com.google.common.hash.Funnels;
+
 public class TestCuckooFilterConcurrent {
 	@Test
 	public void putMultiThread() {
@@ -15,11 +30,163 @@ public class TestCuckooFilterConcurrent {
 	}
 
 	@Test
-	public void mightContainMultiThread() {
+	public void mightContainMultiThread() throws Exception {
+		mightContainWhileWriting(new CuckooFilter.Builder<>(Funnels.integerFunnel(), 200000).withExpectedConcurrency(4));
+	}
+
+	@Test
+	public void mightContainSemiSortedMultiThread() throws Exception {
+		// semi-sorted writes rewrite the whole bucket, torn reads see any code
+		mightContainWhileWriting(new CuckooFilter.Builder<>(Funnels.integerFunnel(), 200000).withExpectedConcurrency(4)
+				.withSemiSortedBuckets(true));
+	}
+
+	private static void mightContainWhileWriting(CuckooFilter.Builder<Integer> builder) throws Exception {
 		// put a bunch of stuff in single-threaded
+		final CuckooFilter<Integer> filter = builder.build();
+		for (int i = 0; i < 50000; i++) {
+			assertTrue(filter.put(i));
+		}
+		// multi-thread cheack mightcontain while another thread keeps writing
+		// to the same segments, so optimistic reads get invalidated
+		ExecutorService pool = Executors.newFixedThreadPool(5);
+		try {
+			final AtomicBoolean done = new AtomicBoolean();
+			Future<?> writer = pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						for (int i = 100000; i < 110000; i++) {
+							filter.put(i);
+						}
+						for (int i = 100000; i < 110000; i++) {
+							filter.delete(i);
+						}
+					}
+				}
+			});
+			List<Future<?>> readers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				readers.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int round = 0; round < 10; round++) {
+							for (int i = 0; i < 50000; i++) {
+								assertTrue(filter.mightContain(i));
+								assertTrue(filter.approximateCount(i) > 0);
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+			done.set(true);
+			writer.get();
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(50000, filter.getCount());
+	}
 
-		// multi-thread cheack mightcontain
+	@Test
+	public void singleWriterMultiThread() throws Exception {
+		readWhileSingleWriterFills(new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000).withSingleWriter(true));
+	}
+
+	@Test
+	public void singleWriterSemiSortedMultiThread() throws Exception {
+		// every write re-encodes its bucket, not just the tag it changes
+		readWhileSingleWriterFills(new CuckooFilter.Builder<>(Funnels.integerFunnel(), 100000).withSingleWriter(true)
+				.withSemiSortedBuckets(true));
+	}
+
+	private static void readWhileSingleWriterFills(CuckooFilter.Builder<Integer> builder) throws Exception {
+		final CuckooFilter<Integer> filter = builder.build();
+		// readers only check what the writer has finished inserting
+		final AtomicInteger inserted = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(5);
+		try {
+			Future<?> writer = pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					// right up to capacity so kicks happen under the readers
+					for (int i = 0; filter.put(i); i++) {
+						inserted.set(i + 1);
+					}
+				}
+			});
+			List<Future<?>> readers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				readers.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						Random rando = new Random();
+						while (!writer.isDone() || rando.nextInt(100000) != 0) {
+							int upTo = inserted.get();
+							if (upTo > 0) {
+								assertTrue(filter.mightContain(rando.nextInt(upTo)));
+							}
+						}
+					}
+				}));
+			}
+			writer.get();
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(inserted.get(), filter.getCount());
+		for (int i = 0; i < inserted.get(); i++) {
+			assertTrue(filter.mightContain(i));
+		}
+	}
 
+	@Test
+	public void putIfAbsentMultiThread() throws Exception {
+		// nearly full so some inserts have to move tags or use the stash
+		final CuckooFilter<Integer> filter = new CuckooFilter.Builder<>(Funnels.integerFunnel(), 65536)
+				.withExpectedConcurrency(4).build();
+		final int items = (int) (filter.getActualCapacity() * 0.95);
+		final AtomicIntegerArray inserts = new AtomicIntegerArray(items);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int seed = t;
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						// every thread offers every item, in its own order
+						List<Integer> order = new ArrayList<>();
+						for (int i = 0; i < items; i++) {
+							order.add(i);
+						}
+						Collections.shuffle(order, new Random(seed));
+						for (int i : order) {
+							if (!filter.putIfAbsent(i))
+								inserts.incrementAndGet(i);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		int inserted = 0;
+		for (int i = 0; i < items; i++) {
+			// only one thread can see an item as new
+			assertTrue(inserts.get(i) <= 1);
+			inserted += inserts.get(i);
+			assertTrue(filter.mightContain(i));
+		}
+		assertEquals(inserted, filter.getCount());
 	}
 
 	@Test
@@ -18,7 +18,11 @@ package com.github.mgunlogson.cuckoofilter4j;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -128,7 +132,7 @@ public class TestFilterTable {
 		assertTrue(table.insertToBucket(5, testTag));
 		assertFalse(table.insertToBucket(5, testTag));
 		// make sure table will give me a tag and swap
-		long swap = table.swapRandomTagInBucket(5, 6);
+		long swap = table.readTagAndSet(5, 2, 6);
 		assertTrue("swapped tag is " + swap + " expected " + testTag, swap == testTag);
 		assertTrue(table.findTag(5, 1, 6));
 		assertTrue(table.findTag(1, 5, 6));
@@ -144,8 +148,9 @@ public class TestFilterTable {
 		assertTrue(table.insertToBucket(5, 4L));
 		// make sure table will give me a tag and swap
 		long swap = 5;
+		Random rando = new Random();
 		for (int i = 0; i < 1000; i++) {
-			swap = table.swapRandomTagInBucket(5, swap);
+			swap = table.readTagAndSet(5, rando.nextInt(4), swap);
 		}
 		HashSet<Long> tagVals = new HashSet<>();
 		tagVals.add(swap);
@@ -201,10 +206,312 @@ public class TestFilterTable {
 		assertTrue(table.readTag(6, 0) == 0);
 	}
 
+	@Test
+	public void testReadWriteAcrossWordBoundaries() {
+		// odd tag sizes put tags across 64 bit word boundaries in the bitset
+		for (int bitsPerTag : new int[] { 5, 7, 13, 31, 47 }) {
+			FilterTable table = FilterTable.create(bitsPerTag, 100);
+			long tagMask = -1L >>> (64 - bitsPerTag);
+			Random rando = new Random(bitsPerTag);
+			long[][] expected = new long[100][4];
+			for (int bucket = 0; bucket < 100; bucket++) {
+				for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+					long tag = rando.nextLong() & tagMask;
+					expected[bucket][posInBucket] = tag;
+					table.writeTagNoClear(bucket, posInBucket, tag);
+				}
+			}
+			for (int bucket = 0; bucket < 100; bucket++) {
+				for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+					long tag = expected[bucket][posInBucket];
+					assertEquals(tag, table.readTag(bucket, posInBucket));
+					assertTrue(table.checkTag(bucket, posInBucket, tag));
+					long newTag = ~tag & tagMask;
+					assertEquals(tag, table.readTagAndSet(bucket, posInBucket, newTag));
+					assertEquals(newTag, table.readTag(bucket, posInBucket));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBitRangesAcrossPages() {
+		long bitsPerPage = 64L << LongBitSet.PAGE_SHIFT;
+		LongBitSet bits = new LongBitSet(3 * bitsPerPage - 5);
+		Random rando = new Random(3);
+		// ranges that start just before a page boundary spill into the next
+		// page
+		for (long pageEnd : new long[] { bitsPerPage, 2 * bitsPerPage }) {
+			for (int numBits : new int[] { 1, 13, 47, 64 }) {
+				for (long startIndex = pageEnd - numBits - 1; startIndex <= pageEnd; startIndex++) {
+					long value = rando.nextLong() & (-1L >>> -numBits);
+					bits.setBitRange(startIndex, numBits, value);
+					assertEquals(value, bits.getBitRange(startIndex, numBits));
+					assertEquals(value, bits.getAndSetBitRange(startIndex, numBits, 0));
+				}
+			}
+		}
+		bits.set(bitsPerPage);
+		bits.set(3 * bitsPerPage - 6);
+		assertTrue(bits.get(bitsPerPage));
+		assertTrue(bits.get(3 * bitsPerPage - 6));
+		assertFalse(bits.get(bitsPerPage - 1));
+		assertEquals(1L, bits.getBitRange(bitsPerPage - 1, 2) >>> 1);
+		LongBitSet copy = bits.clone();
+		assertEquals(bits, copy);
+		assertEquals(bits.hashCode(), copy.hashCode());
+		copy.clear(bitsPerPage);
+		assertFalse(bits.equals(copy));
+		SerializableTester.reserializeAndAssert(bits);
+	}
+
+	@Test
+	public void testBucketMatchingAgainstSlotReads() {
+		// covers whole-bucket matching (tags <= 16 bits) and the per-slot
+		// fallback. Few distinct tag values so buckets have lots of duplicates,
+		// empty slots, and slots that only differ in the high bit
+		for (int bitsPerTag : new int[] { 5, 8, 11, 12, 16, 17, 24 }) {
+			FilterTable table = FilterTable.create(bitsPerTag, 200);
+			long highBit = 1L << (bitsPerTag - 1);
+			long[] tagChoices = { 0, 1, highBit, highBit | 1, highBit - 1, (highBit << 1) - 1 };
+			Random rando = new Random(bitsPerTag);
+			for (int bucket = 0; bucket < 200; bucket++) {
+				for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+					table.writeTagNoClear(bucket, posInBucket, tagChoices[rando.nextInt(tagChoices.length)]);
+				}
+			}
+			for (int bucket = 0; bucket < 199; bucket++) {
+				for (long tag : tagChoices) {
+					int expectedCount = 0;
+					for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+						if (table.readTag(bucket, posInBucket) == tag)
+							expectedCount++;
+						if (table.readTag(bucket + 1, posInBucket) == tag)
+							expectedCount++;
+					}
+					assertEquals(expectedCount, table.countTag(bucket, bucket + 1, tag));
+					assertEquals(expectedCount > 0, table.findTag(bucket, bucket + 1, tag));
+				}
+			}
+			// empty out a bucket with deletes, then fill it with inserts
+			for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+				long tag = table.readTag(7, posInBucket);
+				if (tag != 0)
+					assertTrue(table.deleteFromBucket(7, tag));
+			}
+			assertEquals(4, table.countTag(7, 7, 0) / 2);
+			for (int i = 0; i < 4; i++) {
+				assertTrue(table.insertToBucket(7, highBit));
+			}
+			assertFalse(table.insertToBucket(7, 1));
+			assertEquals(8, table.countTag(7, 7, highBit));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBucketSize() {
+		FilterTable.create(12, 100, 3, BitStorage.HEAP);
+	}
+
+	@Test
+	public void testBucketSizes() {
+		for (int bucketSize : new int[] { 2, 4, 8 }) {
+			for (int bitsPerTag : new int[] { 5, 8, 12, 13, 16, 17 }) {
+				FilterTable table = FilterTable.create(bitsPerTag, 100, bucketSize, BitStorage.HEAP);
+				assertEquals(100L * bucketSize * bitsPerTag, table.getStorageSize());
+				for (int i = 1; i <= bucketSize; i++) {
+					assertTrue(table.insertToBucket(10, i));
+				}
+				assertFalse(table.insertToBucket(10, 1));
+				// neighbours untouched
+				assertEquals(0, table.readTag(9, bucketSize - 1));
+				assertEquals(0, table.readTag(11, 0));
+				for (int i = 1; i <= bucketSize; i++) {
+					assertEquals(i, table.readTag(10, i - 1));
+					assertTrue(table.findTag(10, 11, i));
+					assertEquals(2, table.countTag(10, 10, i));
+				}
+				assertFalse(table.findTag(10, 11, bucketSize + 1));
+				long swapped = table.readTagAndSet(10, bucketSize - 1, bucketSize + 1);
+				assertEquals(bucketSize, swapped);
+				assertTrue(table.deleteFromBucket(10, bucketSize + 1));
+				assertTrue(table.insertToBucket(10, swapped));
+				for (int i = 1; i <= bucketSize; i++) {
+					assertTrue(table.deleteFromBucket(10, i));
+				}
+				assertEquals(2 * bucketSize, table.countTag(10, 10, 0));
+			}
+		}
+		// 3 shorts only hold buckets of 4
+		assertTrue(FilterTable.create(12, 100, 2, BitStorage.HEAP) instanceof PackedFilterTable);
+		assertTrue(FilterTable.create(8, 100, 8, BitStorage.HEAP) instanceof ByteFilterTable);
+		new EqualsTester().addEqualityGroup(FilterTable.create(8, 100, 2, BitStorage.HEAP))
+				.addEqualityGroup(FilterTable.create(8, 50, 4, BitStorage.HEAP))
+				.addEqualityGroup(FilterTable.create(13, 100, 2, BitStorage.HEAP))
+				.addEqualityGroup(FilterTable.create(13, 50, 4, BitStorage.HEAP)).testEquals();
+	}
+
+	@Test
+	public void testInsertToEmptierBucket() {
+		List<FilterTable> tables = new ArrayList<>();
+		for (int bucketSize : new int[] { 2, 4, 8 }) {
+			for (int bitsPerTag : new int[] { 5, 8, 12, 13, 16, 17 }) {
+				tables.add(FilterTable.create(bitsPerTag, 100, bucketSize, BitStorage.HEAP));
+			}
+		}
+		tables.add(SemiSortedFilterTable.create(13, 100));
+		for (FilterTable table : tables) {
+			int bucketSize = table.bucketSize;
+			assertEquals(bucketSize, table.countEmpty(10));
+			// a tie goes to the first bucket, after that they take turns
+			for (int i = 1; i <= 2 * bucketSize; i++) {
+				assertTrue(table.insertToEmptierBucket(10, 20, i));
+				assertEquals(bucketSize - (i + 1) / 2, table.countEmpty(10));
+				assertEquals(bucketSize - i / 2, table.countEmpty(20));
+			}
+			assertTrue(table.findTag(10, 10, 1));
+			assertTrue(table.findTag(20, 20, 2));
+			assertFalse(table.insertToEmptierBucket(10, 20, 1));
+			assertFalse(table.insertToEmptierBucket(20, 10, 1));
+			// neighbours untouched
+			assertEquals(bucketSize, table.countEmpty(11));
+			assertEquals(bucketSize, table.countEmpty(19));
+			assertTrue(table.deleteFromBucket(20, 2));
+			assertTrue(table.insertToEmptierBucket(10, 20, 5));
+			assertEquals(0, table.countEmpty(20));
+		}
+	}
+
+	@Test
+	public void testCreatePicksLayout() {
+		assertTrue(FilterTable.create(8, 1000) instanceof ByteFilterTable);
+		assertTrue(FilterTable.create(12, 1000) instanceof Bucket48FilterTable);
+		assertTrue(FilterTable.create(16, 1000) instanceof ShortFilterTable);
+		assertTrue(FilterTable.create(13, 1000) instanceof PackedFilterTable);
+		// storage size is the same no matter the layout
+		assertEquals(1000 * 4 * 8, FilterTable.create(8, 1000).getStorageSize());
+		assertEquals(1000 * 4 * 12, FilterTable.create(12, 1000).getStorageSize());
+		assertEquals(1000 * 4 * 16, FilterTable.create(16, 1000).getStorageSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSemiSortedTagTooBig() {
+		SemiSortedFilterTable.create(17, 100);
+	}
+
+	@Test
+	public void testSemiSortedBuckets() {
+		for (int bitsPerTag = 5; bitsPerTag <= 16; bitsPerTag++) {
+			FilterTable table = SemiSortedFilterTable.create(bitsPerTag, 500);
+			// one bit less per tag
+			assertEquals(500 * 4 * (bitsPerTag - 1), table.getStorageSize());
+			long tagMask = -1L >>> (64 - bitsPerTag);
+			Random rando = new Random(bitsPerTag);
+			ArrayList<ArrayList<Long>> expected = new ArrayList<>();
+			for (int bucket = 0; bucket < 500; bucket++) {
+				ArrayList<Long> bucketTags = new ArrayList<>();
+				// leave some buckets partly empty
+				int fill = rando.nextInt(5);
+				for (int i = 0; i < fill; i++) {
+					long tag = 1 + rando.nextInt((int) tagMask);
+					assertTrue(table.insertToBucket(bucket, tag));
+					bucketTags.add(tag);
+				}
+				expected.add(bucketTags);
+			}
+			for (int bucket = 0; bucket < 500; bucket++) {
+				ArrayList<Long> bucketTags = expected.get(bucket);
+				// slot order isn't kept, compare contents
+				ArrayList<Long> stored = new ArrayList<>();
+				for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+					long tag = table.readTag(bucket, posInBucket);
+					if (tag != 0)
+						stored.add(tag);
+				}
+				Collections.sort(stored);
+				Collections.sort(bucketTags);
+				assertEquals(bucketTags, stored);
+				for (long tag : bucketTags) {
+					assertTrue(table.findTag(bucket, bucket, tag));
+					assertEquals(2 * Collections.frequency(bucketTags, tag), table.countTag(bucket, bucket, tag));
+				}
+				assertEquals(bucketTags.size() < 4, table.insertToBucket(bucket, 1));
+			}
+			for (int bucket = 0; bucket < 500; bucket++) {
+				for (long tag : expected.get(bucket)) {
+					assertTrue(table.deleteFromBucket(bucket, tag));
+				}
+				assertFalse(table.findTag(bucket, bucket, tagMask));
+			}
+		}
+	}
+
+	@Test
+	public void testSemiSortedTornRead() {
+		final BitStorage[] storage = new BitStorage[1];
+		FilterTable table = SemiSortedFilterTable.create(9, 10, new BitStorage.Allocator() {
+			@Override
+			public BitStorage allocate(long numBits) {
+				storage[0] = BitStorage.HEAP.allocate(numBits);
+				return storage[0];
+			}
+		});
+		assertTrue(table.insertToBucket(3, 42));
+		// a read racing a write can see any code, even ones past the last
+		int bitsPerBucket = 4 * 8;
+		storage[0].setBitRange(3 * bitsPerBucket, 12, 4095);
+		for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+			assertEquals(0, table.readTag(3, posInBucket));
+		}
+		assertFalse(table.findTag(3, 3, 42));
+		assertEquals(4, table.countEmpty(3));
+	}
+
+	@Test
+	public void testOffHeapMatchesHeap() {
+		for (int bitsPerTag : new int[] { 5, 8, 12, 13, 16, 31, 47 }) {
+			FilterTable heap = FilterTable.create(bitsPerTag, 300);
+			FilterTable direct = FilterTable.create(bitsPerTag, 300, 4, BitStorage.DIRECT);
+			// no aligned layouts off-heap
+			assertTrue(direct instanceof PackedFilterTable);
+			assertEquals(heap.getStorageSize(), direct.getStorageSize());
+			long tagMask = -1L >>> (64 - bitsPerTag);
+			Random rando = new Random(bitsPerTag);
+			for (int i = 0; i < 2000; i++) {
+				long bucket = rando.nextInt(300);
+				long tag = 1 + (rando.nextLong() & (tagMask >>> 1));
+				if (rando.nextInt(3) == 0) {
+					assertEquals(heap.deleteFromBucket(bucket, tag), direct.deleteFromBucket(bucket, tag));
+				} else {
+					assertEquals(heap.insertToBucket(bucket, tag), direct.insertToBucket(bucket, tag));
+				}
+			}
+			for (long bucket = 0; bucket < 300; bucket++) {
+				for (int posInBucket = 0; posInBucket < 4; posInBucket++) {
+					assertEquals(heap.readTag(bucket, posInBucket), direct.readTag(bucket, posInBucket));
+				}
+			}
+			FilterTable copy = direct.copy();
+			assertEquals(direct, copy);
+			SerializableTester.reserializeAndAssert(direct);
+			direct.free();
+			// copy has its own memory
+			assertEquals(heap.readTag(7, 0), copy.readTag(7, 0));
+			copy.free();
+		}
+		FilterTable semiSorted = SemiSortedFilterTable.create(12, 1000, BitStorage.DIRECT);
+		semiSorted.insertToBucket(5, 7);
+		assertTrue(semiSorted.findTag(5, 6, 7));
+		SerializableTester.reserializeAndAssert(semiSorted);
+		semiSorted.free();
+	}
+
 	@Test
 	public void testEquals() {
 		new EqualsTester().addEqualityGroup(FilterTable.create(12, 1000)).addEqualityGroup(FilterTable.create(13, 1000))
-				.addEqualityGroup(FilterTable.create(12, 2000)).testEquals();
+				.addEqualityGroup(FilterTable.create(12, 2000)).addEqualityGroup(FilterTable.create(8, 1000))
+				.addEqualityGroup(FilterTable.create(16, 1000)).addEqualityGroup(FilterTable.create(16, 2000))
+				.testEquals();
 	}
 
 	@Test
@@ -223,7 +530,14 @@ public class TestFilterTable {
 
 	@Test
 	public void testSerialize() {
-		SerializableTester.reserializeAndAssert(FilterTable.create(12, 1000));
+		for (int bitsPerTag : new int[] { 8, 12, 13, 16 }) {
+			FilterTable table = FilterTable.create(bitsPerTag, 1000);
+			table.insertToBucket(5, 7);
+			SerializableTester.reserializeAndAssert(table);
+		}
+		FilterTable semiSorted = SemiSortedFilterTable.create(12, 1000);
+		semiSorted.insertToBucket(5, 7);
+		SerializableTester.reserializeAndAssert(semiSorted);
 	}
 
 }
@@ -19,6 +19,7 @@ package com.github.mgunlogson.cuckoofilter4j;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Test;
@@ -28,6 +29,7 @@ import com.github.mgunlogson.cuckoofilter4j.IndexTagCalc;
 import com.github.mgunlogson.cuckoofilter4j.SerializableSaltedHasher;
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
 import com.google.common.hash.Funnels;
+import com.google.common.primitives.Longs;
 import com.google.common.testing.ClassSanityTester;
 import com.google.common.testing.EqualsTester;
 import com.google.common.testing.SerializableTester;
@@ -145,11 +147,12 @@ public class TestIndexTagCalc {
 		}
 		// will be true if we're using the right number of bits for tag and
 		// index for this calculator
-		assertTrue(Long.bitCount(setBitsIndex) == 64);
+		assertTrue(Long.bitCount(setBitsIndex) == 62);
 		assertTrue(Long.bitCount(setBitsTag) == 64);
 		// check where the set bits are
 		long bitMask = -1L;// (mask for all 64 bits set)
-		assertTrue(bitMask == setBitsIndex);
+		// indexes are below the 2^62 bucket count
+		assertTrue(bitMask >>> 2 == setBitsIndex);
 		assertTrue(bitMask == setBitsTag);
 	}
 
@@ -222,6 +225,40 @@ public class TestIndexTagCalc {
 		}
 	}
 
+	@Test
+	public void testGenerateReused() {
+		IndexTagCalc<Integer> calc = IndexTagCalc.create(Funnels.integerFunnel(), 2048, 14);
+		BucketAndTag reused = calc.generateReused(0);
+		for (int i = 0; i < 10000; i++) {
+			BucketAndTag pos = calc.generate(i);
+			assertSame(reused, calc.generateReused(i));
+			assertEquals(pos.index, reused.index);
+			assertEquals(pos.tag, reused.tag);
+		}
+	}
+
+	@Test
+	public void testGenerateWideHashMatchesBytes() {
+		// the reused hasher path has to pick the same bits as reading the
+		// hash bytes
+		for (Algorithm alg : new Algorithm[] { Algorithm.XXH3_128, Algorithm.Murmur3_128 }) {
+			SerializableSaltedHasher<Integer> hasher = new SerializableSaltedHasher<>(0, 0, Funnels.integerFunnel(),
+					alg);
+			// short tags so some items need salted retries
+			IndexTagCalc<Integer> indexer = new IndexTagCalc<>(hasher, (long) Math.pow(2, 62), 4);
+			for (int i = 0; i < 10000; i++) {
+				byte[] hash = hasher.hashObj(i).asBytes();
+				long tag = indexer.getTagValue64(Longs.fromByteArray(hash));
+				for (int salt = 1; tag == 0; salt++) {
+					tag = indexer.getTagValue64(Longs.fromByteArray(hasher.hashObjWithSalt(i, salt).asBytes()));
+				}
+				BucketAndTag bt = indexer.generate(i);
+				assertEquals(indexer.getBucketIndex64(Longs.fromByteArray(Arrays.copyOfRange(hash, 8, 16))), bt.index);
+				assertEquals(tag, bt.tag);
+			}
+		}
+	}
+
 	@Test
 	public void testSerialize() {
 		SerializableTester.reserializeAndAssert(new IndexTagCalc<Integer>(getUnsaltedHasher(), 128, 4));
@@ -0,0 +1,84 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.testing.SerializableTester;
+
+public class TestIntCuckooFilter {
+
+	@Test
+	public void sanityPutContainDelete() {
+		IntCuckooFilter filter = new IntCuckooFilter.Builder(130000).withFalsePositiveRate(0.01).build();
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.put(i));
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain(i));
+		}
+		assertEquals(1, filter.approximateCount(7));
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.delete(i));
+		}
+		assertEquals(0, filter.getCount());
+	}
+
+	@Test
+	public void sanityFalsePositiveRate() {
+		IntCuckooFilter filter = new IntCuckooFilter.Builder(130000).withFalsePositiveRate(0.01)
+				.withSemiSortedBuckets(true).build();
+		int maxInsertedVal = 100000;
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.put(i));
+		}
+		int falsePositives = 0;
+		int totalAttempts = 100000;
+		for (int i = maxInsertedVal; i < totalAttempts + maxInsertedVal; i++) {
+			if (filter.mightContain(i))
+				falsePositives++;
+		}
+		assertTrue((double) falsePositives / totalAttempts + " false positive rate is above limit",
+				(double) falsePositives / totalAttempts < 0.02);
+	}
+
+	@Test
+	public void sanityPutIfAbsent() {
+		IntCuckooFilter filter = new IntCuckooFilter.Builder(1000).build();
+		assertFalse(filter.putIfAbsent(42));
+		assertTrue(filter.putIfAbsent(42));
+		assertTrue(filter.mightContain(42));
+		assertEquals(1, filter.getCount());
+	}
+
+	@Test
+	public void testSerialize() {
+		IntCuckooFilter filter = new IntCuckooFilter.Builder(2000).withOffHeapStorage(true).build();
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.put(i));
+		}
+		IntCuckooFilter reserialized = SerializableTester.reserializeAndAssert(filter);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(reserialized.mightContain(i));
+		}
+		filter.close();
+		reserialized.close();
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import com.google.common.testing.SerializableTester;
+
+public class TestLongCuckooFilter {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsTooBigFor64BitHash() {
+		new LongCuckooFilter.Builder(Long.MAX_VALUE / 64).withFalsePositiveRate(0.0001).build();
+	}
+
+	@Test
+	public void sanityFalseNegative() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(130000).withFalsePositiveRate(0.01).build();
+		// ids spread over the whole range
+		long step = Long.MAX_VALUE / 50000;
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.put(Long.MIN_VALUE + i * step));
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain(Long.MIN_VALUE + i * step));
+		}
+		assertEquals(100000, filter.getCount());
+	}
+
+	@Test
+	public void sanityFalsePositiveRate() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(130000).withFalsePositiveRate(0.01).build();
+		int maxInsertedVal = 100000;
+		for (long i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.put(i));
+		}
+		int falsePositives = 0;
+		int totalAttempts = 100000;
+		for (long i = maxInsertedVal; i < totalAttempts + maxInsertedVal; i++) {
+			if (filter.mightContain(i))
+				falsePositives++;
+		}
+		assertTrue((double) falsePositives / totalAttempts + " false positive rate is above limit",
+				(double) falsePositives / totalAttempts < 0.02);
+	}
+
+	@Test
+	public void sanityDeleteAndCount() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(130000).withFalsePositiveRate(0.01).build();
+		for (long i = 0; i < 100000; i++) {
+			assertTrue(filter.put(i));
+		}
+		assertTrue(filter.put(42));
+		assertTrue(filter.approximateCount(42) >= 2);
+		for (long i = 0; i < 100000; i++) {
+			assertTrue(filter.delete(i));
+		}
+		assertTrue(filter.delete(42));
+		assertEquals(0, filter.getCount());
+		assertEquals(0, filter.approximateCount(42));
+	}
+
+	@Test
+	public void sanityPutAll() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(130000).withFalsePositiveRate(0.01).build();
+		long[] items = new long[100000];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = i * 31L;
+		}
+		BitSet inserted = filter.putAll(items);
+		assertEquals(items.length, inserted.cardinality());
+		assertEquals(items.length, filter.getCount());
+		for (long item : items) {
+			assertTrue(filter.mightContain(item));
+		}
+		assertEquals(inserted, filter.mightContainAll(items));
+	}
+
+	@Test
+	public void sanityFillToCapacity() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(100000).build();
+		long i = 0;
+		while (filter.put(i)) {
+			i++;
+		}
+		// the failed key wasn't added, everything before it was
+		for (long j = 0; j < i; j++) {
+			assertTrue(filter.mightContain(j));
+		}
+		assertTrue(filter.getLoadFactor() > 0.9);
+	}
+
+	@Test
+	public void sanityMappedFile() throws IOException {
+		Path file = Files.createTempDirectory("cuckoo").resolve("filter");
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(130000).buildMapped(file);
+		for (long i = 0; i < 100000; i++) {
+			assertTrue(filter.put(i));
+		}
+		LongCuckooFilter copy = filter.copy();
+		filter.close();
+		LongCuckooFilter reopened = LongCuckooFilter.open(file);
+		assertEquals(copy, reopened);
+		for (long i = 0; i < 100000; i++) {
+			assertTrue(reopened.mightContain(i));
+		}
+		reopened.close();
+		Files.delete(file);
+	}
+
+	@Test
+	public void testEquals() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(2000).build();
+		assertTrue(filter.put(42));
+		LongCuckooFilter copy = filter.copy();
+		assertEquals(filter, copy);
+		assertNotSame(filter, copy);
+		assertEquals(filter.hashCode(), copy.hashCode());
+		assertTrue(copy.delete(42));
+		assertFalse(filter.equals(copy));
+	}
+
+	@Test
+	public void sanityPutIfAbsent() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(1000).build();
+		assertFalse(filter.putIfAbsent(42L));
+		assertTrue(filter.putIfAbsent(42L));
+		assertTrue(filter.mightContain(42L));
+		assertEquals(1, filter.getCount());
+	}
+
+	@Test
+	public void testSerialize() {
+		LongCuckooFilter filter = new LongCuckooFilter.Builder(2000).build();
+		for (long i = 0; i < 1000; i++) {
+			assertTrue(filter.put(i));
+		}
+		LongCuckooFilter reserialized = SerializableTester.reserializeAndAssert(filter);
+		for (long i = 0; i < 1000; i++) {
+			assertTrue(reserialized.mightContain(i));
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnels;
+import com.google.common.testing.SerializableTester;
+
+public class TestScalableCuckooFilter {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsGrowthFactor() {
+		new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000).withGrowthFactor(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidArgsTighteningRatio() {
+		new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000).withTighteningRatio(1);
+	}
+
+	@Test
+	public void sanityGrowPastMaxKeys() {
+		ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 10000)
+				.build();
+		assertEquals(1, filter.getStageCount());
+		for (int i = 0; i < 200000; i++) {
+			assertTrue(filter.put(i));
+		}
+		// 10k + 20k + 40k + 80k is too little
+		assertEquals(5, filter.getStageCount());
+		assertEquals(200000, filter.getCount());
+		for (int i = 0; i < 200000; i++) {
+			assertTrue(filter.mightContain(i));
+		}
+		assertTrue(filter.approximateCount(7) >= 1);
+		// a false positive in a newer stage deletes another item's tag, which
+		// then can't be deleted itself
+		int failedDeletes = 0;
+		for (int i = 0; i < 200000; i++) {
+			if (!filter.delete(i))
+				failedDeletes++;
+		}
+		assertTrue(failedDeletes + " failed deletes", failedDeletes < 200000 * 0.01);
+		assertEquals(failedDeletes, filter.getCount());
+	}
+
+	@Test
+	public void sanityStageFalsePositiveRates() {
+		ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withFalsePositiveRate(0.01).withGrowthFactor(4).withTighteningRatio(0.8).build();
+		double total = 0;
+		for (int stage = 0; stage < 30; stage++) {
+			if (stage < 20)
+				assertEquals(1000 * (long) Math.pow(4, stage), filter.stageKeys(stage));
+			total += filter.stageFpp(stage);
+			if (stage > 0)
+				assertEquals(filter.stageFpp(stage - 1) * 0.8, filter.stageFpp(stage), 1e-12);
+		}
+		assertTrue(total < 0.01);
+	}
+
+	@Test
+	public void sanityStageKeysCap() {
+		ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.withGrowthFactor(1000).build();
+		assertEquals(1000000000000000000L, filter.stageKeys(5));
+		// 10^21 overflows a long, the filter won't grow to it
+		assertEquals(0, filter.stageKeys(6));
+		assertEquals(0, filter.stageKeys(100));
+		assertEquals(0, filter.stageKeys(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void sanityFalsePositiveRate() {
+		ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 5000)
+				.withFalsePositiveRate(0.01).build();
+		int maxInsertedVal = 100000;
+		for (int i = 0; i < maxInsertedVal; i++) {
+			assertTrue(filter.put(i));
+		}
+		assertTrue(filter.getStageCount() > 4);
+		int falsePositives = 0;
+		int totalAttempts = 200000;
+		for (int i = maxInsertedVal; i < totalAttempts + maxInsertedVal; i++) {
+			if (filter.mightContain(i))
+				falsePositives++;
+		}
+		// bounded by the overall rate, however many stages
+		assertTrue((double) falsePositives / totalAttempts + " false positive rate is above limit",
+				(double) falsePositives / totalAttempts < 0.01);
+	}
+
+	@Test
+	public void sanityConcurrentGrowth() throws Exception {
+		final ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(),
+				1000).withExpectedConcurrency(4).build();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int start = t * 50000;
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = start; i < start + 50000; i++) {
+							assertTrue(filter.put(i));
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(200000, filter.getCount());
+		for (int i = 0; i < 200000; i++) {
+			assertTrue(filter.mightContain(i));
+		}
+	}
+
+	@Test
+	public void testCopyAndSerialize() {
+		ScalableCuckooFilter<Integer> filter = new ScalableCuckooFilter.Builder<>(Funnels.integerFunnel(), 1000)
+				.build();
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(filter.put(i));
+		}
+		ScalableCuckooFilter<Integer> copy = filter.copy();
+		assertEquals(filter, copy);
+		assertNotSame(filter, copy);
+		assertEquals(filter.hashCode(), copy.hashCode());
+		assertTrue(copy.delete(42));
+		assertFalse(filter.equals(copy));
+		assertEquals(5000, filter.getCount());
+		assertEquals(4999, copy.getCount());
+		ScalableCuckooFilter<Integer> reserialized = SerializableTester.reserializeAndAssert(filter);
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(reserialized.mightContain(i));
+		}
+		// grows the same way after deserializing
+		assertTrue(reserialized.put(5000));
+		assertEquals(filter.getStageCount(), reserialized.getStageCount());
+	}
+
+}
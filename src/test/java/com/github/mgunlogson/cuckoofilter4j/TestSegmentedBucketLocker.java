@@ -0,0 +1,68 @@
+/*
+   Copyright 2016 Mark Gunlogson
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.github.mgunlogson.cuckoofilter4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestSegmentedBucketLocker {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotPowerOfTwo() {
+		new SegmentedBucketLocker(12, 1024);
+	}
+
+	@Test
+	public void testSegmentCount() {
+		assertEquals(64, new SegmentedBucketLocker(16, 1 << 20).getSegmentCount());
+		assertEquals(4, new SegmentedBucketLocker(1, 1 << 20).getSegmentCount());
+		// never more segments than buckets
+		assertEquals(8, new SegmentedBucketLocker(16, 8).getSegmentCount());
+		assertEquals(1, new SegmentedBucketLocker(16, 1).getSegmentCount());
+		assertEquals(1 << 30, SegmentedBucketLocker.segmentsNeeded(1 << 30, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testOptimisticRead() {
+		SegmentedBucketLocker locker = new SegmentedBucketLocker(4, 1024);
+		long stamp1 = locker.tryOptimisticReadBucket(3);
+		long stamp2 = locker.tryOptimisticReadBucket(900);
+		assertTrue(locker.validateBucketsRead(3, stamp1, 900, stamp2));
+		// reading doesn't invalidate, writing either segment does
+		locker.lockBucketsRead(3, 900);
+		locker.unlockBucketsRead(3, 900);
+		assertTrue(locker.validateBucketsRead(3, stamp1, 900, stamp2));
+		locker.lockSingleBucketWrite(900);
+		assertEquals(0, locker.tryOptimisticReadBucket(900));
+		locker.unlockSingleBucketWrite(900);
+		assertFalse(locker.validateBucketsRead(3, stamp1, 900, stamp2));
+	}
+
+	@Test
+	public void testGroupBySegments() {
+		SegmentedBucketLocker locker = new SegmentedBucketLocker(2, 1024);
+		long[] i1s = { 1, 9, 2, 17, 6, 10 };
+		long[] i2s = { 2, 2, 1, 3, 5, 1 };
+		int[] order = locker.groupBySegments(i1s, i2s, i1s.length);
+		// 8 segments, so the pairs lock {1,2} {1,2} {1,2} {1,3} {5,6} {1,2}
+		assertArrayEquals(new int[] { 0, 1, 2, 5, 3, 4 }, order);
+		assertTrue(locker.isSameSegments(1, 2, 10, 9));
+		assertFalse(locker.isSameSegments(1, 2, 17, 3));
+	}
+
+}
@@ -25,6 +25,8 @@ import org.junit.Test;
 
 import com.github.mgunlogson.cuckoofilter4j.SerializableSaltedHasher;
 import com.github.mgunlogson.cuckoofilter4j.Utils.Algorithm;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.hash.Funnels;
 import com.google.common.testing.ClassSanityTester;
 import com.google.common.testing.EqualsTester;
@@ -76,12 +78,34 @@ public class TestSerializableSaltedHasher {
 		}
 	}
 
+	@Test
+	public void testHashAsLongMatchesHashCode() {
+		for (Algorithm alg : new Algorithm[] { Algorithm.xxHash64, Algorithm.XXH3_64, Algorithm.XXH3_128,
+				Algorithm.wyHash }) {
+			SerializableSaltedHasher<CharSequence> reusable = new SerializableSaltedHasher<>(1, 0,
+					Funnels.stringFunnel(Charsets.UTF_8), alg);
+			// the reused hasher has to give the same results as a new one no
+			// matter what it hashed before, so alternate long and short keys
+			for (int i = 0; i < 100; i++) {
+				String key = Strings.repeat("x", i % 2 == 0 ? i : 100 - i);
+				assertEquals(reusable.hashObj(key).asLong(), reusable.hashObjAsLong(key));
+				assertEquals(reusable.hashObjWithSalt(key, i).asLong(), reusable.hashObjWithSaltAsLong(key, i));
+			}
+		}
+		SerializableSaltedHasher<Integer> murmur = new SerializableSaltedHasher<>(1, 0, Funnels.integerFunnel(),
+				Algorithm.Murmur3_32);
+		assertEquals(murmur.hashObj(42).asInt(), (int) murmur.hashObjAsLong(42));
+		assertEquals(murmur.hashObjWithSalt(42, 1).asInt(), (int) murmur.hashObjWithSaltAsLong(42, 1));
+	}
+
 	@Test
 	public void testAutoAlgorithm() {
 		SerializableSaltedHasher<Integer> hasher = SerializableSaltedHasher.create(100, Funnels.integerFunnel());
 		assertTrue(hasher.codeBitSize() == 128);
+		assertEquals(Algorithm.XXH3_128, hasher.getAlgorithm());
 		hasher = SerializableSaltedHasher.create(30, Funnels.integerFunnel());
 		assertTrue(hasher.codeBitSize() < 128);
+		assertEquals(Algorithm.XXH3_64, hasher.getAlgorithm());
 	}
 
 	@Test
@@ -126,4 +150,12 @@ public class TestSerializableSaltedHasher {
 				new SerializableSaltedHasher<Integer>(0, 0, Funnels.integerFunnel(), Algorithm.Murmur3_32));
 	}
 
+	@Test
+	public void testSerializeReusableHasher() {
+		SerializableSaltedHasher<Integer> hasher = new SerializableSaltedHasher<>(0, 0, Funnels.integerFunnel(),
+				Algorithm.xxHash64);
+		SerializableSaltedHasher<Integer> copy = SerializableTester.reserializeAndAssert(hasher);
+		assertEquals(hasher.hashObjAsLong(42), copy.hashObjAsLong(42));
+	}
+
 }
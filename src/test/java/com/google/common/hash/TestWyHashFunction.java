@@ -0,0 +1,44 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class TestWyHashFunction {
+
+	@Test
+	public void testKnownValues() {
+		// test vectors from the reference implementation, seeded with their
+		// index
+		String[] messages = { "", "a", "abc", "message digest", "abcdefghijklmnopqrstuvwxyz",
+				"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+				"12345678901234567890123456789012345678901234567890123456789012345678901234567890" };
+		long[] expected = { 0x0409638ee2bde459L, 0xa8412d091b5fe0a9L, 0x32dd92e4b2915153L, 0x8619124089a3a16bL,
+				0x7a43afb61d7f5f40L, 0xff42329b90e50d58L, 0xc39cab13b115aad3L };
+		for (int i = 0; i < messages.length; i++) {
+			byte[] bytes = messages[i].getBytes(Charsets.US_ASCII);
+			assertEquals(expected[i], WyHashFunction.hashBytes(bytes, 0, bytes.length, i));
+			assertEquals(expected[i], new WyHashFunction(i).hashBytes(bytes).asLong());
+		}
+	}
+
+	@Test
+	public void testReusedHasher() {
+		Random rando = new Random(42);
+		WyHashFunction function = new WyHashFunction(rando.nextLong());
+		WyHashFunction.WyHasher reused = function.newHasher();
+		for (int len = 0; len < 200; len++) {
+			byte[] bytes = new byte[len];
+			rando.nextBytes(bytes);
+			int value = rando.nextInt();
+			HashCode expected = function.newHasher().putBytes(bytes).putInt(value).hash();
+			reused.reset().putBytes(bytes).putInt(value);
+			assertEquals(expected.asLong(), reused.hashAsLong());
+		}
+	}
+
+}
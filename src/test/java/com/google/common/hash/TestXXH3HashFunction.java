@@ -0,0 +1,86 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestXXH3HashFunction {
+
+	// length, seed, XXH3 64, XXH3 128 low, XXH3 128 high from the reference
+	// implementation, covering each input size range
+	private static final long[][] KNOWN = {
+			{ 0, 0x0L, 0x2d06800538d394c2L, 0x6001c324468d497fL, 0x99aa06d3014798d8L },
+			{ 0, 0x9e3779b185ebca87L, 0x07f70f819703314dL, 0xf9ece1036ecbb2edL, 0x45ef6ddc7afb225aL },
+			{ 3, 0x0L, 0x15f7093b173d005cL, 0x15f7093b173d005cL, 0x46f66cb935381565L },
+			{ 3, 0x9e3779b185ebca87L, 0xeeff2d8fa4029c4fL, 0xeeff2d8fa4029c4fL, 0x32db0fbabdcb48c6L },
+			{ 8, 0x0L, 0xdec6a9a43575982eL, 0x56bb836ceb6d4baaL, 0x803c675a846cc6c2L },
+			{ 8, 0x9e3779b185ebca87L, 0x1dd06667933ee8f2L, 0xc8c24bd963a0fcb8L, 0x3cc3e478cbd11106L },
+			{ 16, 0x0L, 0x7e484c18d74895d0L, 0xf853dd94614dfa07L, 0x650fe308c566747dL },
+			{ 16, 0x9e3779b185ebca87L, 0x440d0e06e6ec184fL, 0x77e70831c44fa8edL, 0x3409282a2e6b5525L },
+			{ 24, 0x0L, 0x48953b9e46ea32c5L, 0xd3f19c89625358b9L, 0x4d953fcc8202f763L },
+			{ 24, 0x9e3779b185ebca87L, 0xb57784de8cf955b5L, 0xb2aacf2c4bf5d68fL, 0x7748f6853ddbe375L },
+			{ 100, 0x0L, 0x8c97158042fbf926L, 0xd61d8dbff22d515fL, 0x7f5a1f03462e52b4L },
+			{ 100, 0x9e3779b185ebca87L, 0x155b585cc7116e06L, 0x6ec1f9e805cfcb80L, 0xb6718fbfb0d42ef4L },
+			{ 200, 0x0L, 0x12fdb864685f344dL, 0x60ea018811f9a437L, 0x8d8629a1aef9ef90L },
+			{ 200, 0x9e3779b185ebca87L, 0x769bc167bc2ea544L, 0xd6a5414f30b26956L, 0x740f5186f88c6b46L },
+			{ 2048, 0x0L, 0x19f6f9c987331373L, 0x19f6f9c987331373L, 0xb318976b177a38c7L },
+			{ 2048, 0x9e3779b185ebca87L, 0x59e0401857999ff7L, 0x59e0401857999ff7L, 0x494356b179e5fec1L }, };
+
+	private static byte[] input(int len) {
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++) {
+			bytes[i] = (byte) (i * 31 + 7);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testKnownValues() {
+		for (long[] known : KNOWN) {
+			byte[] bytes = input((int) known[0]);
+			assertEquals(known[2], new XXH3HashFunction(known[1], 64).hashBytes(bytes).asLong());
+			HashCode wide = new XXH3HashFunction(known[1], 128).hashBytes(bytes);
+			assertEquals(128, wide.bits());
+			assertEquals(known[3], wide.asLong());
+			assertEquals(known[4], HashCode.fromBytes(Arrays.copyOfRange(wide.asBytes(), 8, 16)).asLong());
+			XXH3HashFunction.XXH3Hasher hasher = new XXH3HashFunction(known[1], 128).newHasher();
+			hasher.putBytes(bytes);
+			assertEquals(known[3], hasher.hashAsLong());
+			assertEquals(known[4], hasher.lastHashHighAsLong());
+		}
+	}
+
+	@Test
+	public void testReusedHasher() {
+		Random rando = new Random(42);
+		for (int bits : new int[] { 64, 128 }) {
+			XXH3HashFunction function = new XXH3HashFunction(rando.nextLong(), bits);
+			XXH3HashFunction.XXH3Hasher reused = function.newHasher();
+			for (int len = 0; len < 1100; len += 7) {
+				byte[] bytes = new byte[len];
+				rando.nextBytes(bytes);
+				long value = rando.nextLong();
+				HashCode expected = function.newHasher().putBytes(bytes).putLong(value).hash();
+				reused.reset().putBytes(bytes).putLong(value);
+				assertEquals(expected.asLong(), reused.hashAsLong());
+				assertEquals(expected, reused.hash());
+			}
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testNoHighHalf() {
+		XXH3HashFunction.XXH3Hasher hasher = new XXH3HashFunction(0, 64).newHasher();
+		hasher.putInt(42).hash();
+		hasher.lastHashHighAsLong();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadLength() {
+		new XXH3HashFunction(0, 32);
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.google.common.hash;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class TestxxHashFunction {
+
+	@Test
+	public void testKnownValues() {
+		// from the reference implementation
+		assertEquals(0xef46db3751d8e999L, xxHashFunction.hashBytes(new byte[0], 0, 0, 0));
+		assertEquals(0x44bc2cf5ad770999L, xxHashFunction.hashBytes("abc".getBytes(Charsets.US_ASCII), 0, 3, 0));
+	}
+
+	@Test
+	public void testBuffersMatchArrays() {
+		Random rando = new Random(42);
+		for (int len = 0; len < 100; len++) {
+			byte[] bytes = new byte[len + 3];
+			rando.nextBytes(bytes);
+			long seed = rando.nextLong();
+			long expected = xxHashFunction.hashBytes(bytes, 3, len, seed);
+			ByteBuffer direct = ByteBuffer.allocateDirect(len + 3);
+			direct.put(bytes).position(3);
+			assertEquals(expected, xxHashFunction.hashBuffer(direct, seed));
+			assertEquals(3, direct.position());
+			direct.order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(expected, xxHashFunction.hashBuffer(direct, seed));
+			ByteBuffer heap = ByteBuffer.wrap(bytes, 3, len);
+			assertEquals(expected, xxHashFunction.hashBuffer(heap, seed));
+			assertEquals(expected, xxHashFunction.hashBuffer(heap.asReadOnlyBuffer(), seed));
+		}
+	}
+
+	@Test
+	public void testCharsMatchUtf16() {
+		Random rando = new Random(42);
+		for (int len = 0; len < 50; len++) {
+			StringBuilder chars = new StringBuilder();
+			for (int i = 0; i < len; i++) {
+				// no surrogates, the encoder would replace unpaired ones
+				chars.append((char) rando.nextInt(Character.MIN_SURROGATE));
+			}
+			byte[] utf16 = chars.toString().getBytes(Charsets.UTF_16LE);
+			assertEquals(xxHashFunction.hashBytes(utf16, 0, utf16.length, len),
+					xxHashFunction.hashChars(chars, len));
+		}
+	}
+
+	@Test
+	public void testHasherMatchesBytes() {
+		byte[] bytes = new byte[37];
+		new Random(42).nextBytes(bytes);
+		assertEquals(xxHashFunction.hashBytes(bytes, 0, bytes.length, 7),
+				new xxHashFunction(7).hashBytes(bytes).asLong());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testBadRange() {
+		xxHashFunction.hashBytes(new byte[10], 5, 6, 0);
+	}
+
+}